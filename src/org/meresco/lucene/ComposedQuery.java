@@ -111,6 +111,9 @@ public class ComposedQuery {
         cq.queryData.dedupField = json.getString("_dedupField", null);
         cq.queryData.getDedupSortFieldsFromJson(json, "_dedupSortField");
         cq.queryData.clustering = json.getBoolean("_clustering", false);
+        cq.queryData.setTimeAllowed(json.getInt("_timeAllowed", 0));
+        cq.queryData.totalHitsThreshold = json.getInt("_totalHitsThreshold", Integer.MAX_VALUE);
+        cq.queryData.facetSampleSize = json.getInt("_facetSampleSize", 0);
         JsonArray fields = json.getJsonArray("_storedFields");
         if (fields != null) {
             fields.stream().forEach(s -> cq.queryData.storedFields.add(((JsonString) s).getString()));
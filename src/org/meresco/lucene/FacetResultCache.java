@@ -0,0 +1,168 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.lucene.search.Query;
+import org.meresco.lucene.JsonQueryConverter.FacetRequest;
+import org.meresco.lucene.JsonQueryConverter.RangeFacetRequest;
+import org.meresco.lucene.LuceneResponse.DrilldownData;
+
+/**
+ * Facet results of one core, keyed by the query with its filters and
+ * drilldown queries, the facet requests, the sample size and the version
+ * of the index reader. Least recently used results are evicted when all cached results
+ * together have more than maxTerms terms. Lucene clears the cache after a
+ * refresh; the reader version in the key keeps a search that started
+ * before the refresh from serving its results to later ones.
+ */
+public class FacetResultCache {
+    private final Map<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxTerms;
+    private long terms;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public FacetResultCache(long maxTerms) {
+        this.maxTerms = maxTerms;
+    }
+
+    public synchronized void setMaxTerms(long maxTerms) {
+        this.maxTerms = Math.max(0, maxTerms);
+        evict();
+    }
+
+    public synchronized List<DrilldownData> get(Key key) {
+        Entry entry = this.cache.get(key);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.drilldownData;
+    }
+
+    public synchronized void put(Key key, List<DrilldownData> drilldownData) {
+        long size = 1;
+        for (DrilldownData dd : drilldownData)
+            size += terms(dd.terms);
+        if (size > this.maxTerms)
+            return;
+        Entry old = this.cache.put(key, new Entry(drilldownData, size));
+        if (old != null)
+            this.terms -= old.terms;
+        this.terms += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> entries = this.cache.values().iterator();
+        while (this.terms > this.maxTerms && entries.hasNext()) {
+            this.terms -= entries.next().terms;
+            entries.remove();
+            this.evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        this.cache.clear();
+        this.terms = 0;
+    }
+
+    public synchronized JsonObject statsAsJson() {
+        return Json.createObjectBuilder()
+                .add("entries", this.cache.size())
+                .add("terms", this.terms)
+                .add("maxTerms", this.maxTerms)
+                .add("hits", this.hits)
+                .add("misses", this.misses)
+                .add("evictions", this.evictions)
+                .build();
+    }
+
+    private static long terms(List<DrilldownData.Term> terms) {
+        long size = 0;
+        if (terms != null)
+            for (DrilldownData.Term term : terms)
+                size += 1 + terms(term.subTerms);
+        return size;
+    }
+
+    private static class Entry {
+        final List<DrilldownData> drilldownData;
+        final long terms;
+
+        Entry(List<DrilldownData> drilldownData, long terms) {
+            this.drilldownData = drilldownData;
+            this.terms = terms;
+        }
+    }
+
+    public static class Key {
+        private final Query query;
+        private final String facets;
+        private final int sampleSize;
+        private final long version;
+
+        public Key(Query query, List<FacetRequest> facets, int sampleSize, long version) {
+            this.query = query;
+            StringBuilder builder = new StringBuilder();
+            for (FacetRequest facet : facets) {
+                builder.append(facet.fieldname).append('\u001f').append(facet.maxTerms);
+                for (String p : facet.path)
+                    builder.append('\u001f').append(p);
+                if (facet instanceof RangeFacetRequest)
+                    builder.append('\u001f').append(facet);
+                builder.append('\u001e');
+            }
+            this.facets = builder.toString();
+            this.sampleSize = sampleSize;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.version == other.version && this.sampleSize == other.sampleSize && this.facets.equals(other.facets) && this.query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.query, this.facets, this.sampleSize, this.version);
+        }
+    }
+}
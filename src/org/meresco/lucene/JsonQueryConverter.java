@@ -146,6 +146,10 @@ public class JsonQueryConverter {
         List<FacetRequest> facetRequests = new ArrayList<>();
         for (int i = 0; i < facets.size(); i++) {
             JsonObject facet = facets.getJsonObject(i);
+            if (facet.containsKey("ranges") || facet.containsKey("interval")) {
+                facetRequests.add(convertToRangeFacet(facet));
+                continue;
+            }
             FacetRequest fr = new FacetRequest(facet.getString("fieldname"), facet.getInt("maxTerms"));
             if (facet.containsKey("path")) {
                 JsonArray jsonPath = facet.getJsonArray("path");
@@ -160,6 +164,24 @@ public class JsonQueryConverter {
         return facetRequests;
     }
 
+    private RangeFacetRequest convertToRangeFacet(JsonObject facet) {
+        RangeFacetRequest fr = new RangeFacetRequest(facet.getString("fieldname"), "Double".equals(facet.getString("type", "Long")));
+        if (facet.containsKey("interval")) {
+            fr.interval = facet.getJsonNumber("interval").doubleValue();
+            if (!(fr.interval > 0))
+                throw new IllegalArgumentException("interval must be > 0 (got: " + fr.interval + ")");
+            return fr;
+        }
+        JsonArray ranges = facet.getJsonArray("ranges");
+        for (int i = 0; i < ranges.size(); i++) {
+            JsonObject range = ranges.getJsonObject(i);
+            double min = range.containsKey("min") ? range.getJsonNumber("min").doubleValue() : Double.NEGATIVE_INFINITY;
+            double max = range.containsKey("max") ? range.getJsonNumber("max").doubleValue() : Double.POSITIVE_INFINITY;
+            fr.addRange(range.getString("label"), min, max);
+        }
+        return fr;
+    }
+
     public SuggestionRequest convertToSuggestionRequest(JsonObject suggestionRequest) {
         if (suggestionRequest == null)
             return null;
@@ -379,6 +401,53 @@ public class JsonQueryConverter {
         }
     }
 
+    /**
+     * Counts the values of a NumericDocValues field, in the given ranges
+     * (min inclusive, max exclusive) or, with an interval, in buckets of
+     * that width. Values of DoubleFields are decoded from their sortable
+     * long form.
+     */
+    public static class RangeFacetRequest extends FacetRequest {
+        public final boolean doubles;
+        public double interval;
+        public List<Range> ranges = new ArrayList<>();
+
+        public RangeFacetRequest(String fieldname, boolean doubles) {
+            super(fieldname, 0);
+            this.doubles = doubles;
+        }
+
+        public void addRange(String label, double min, double max) {
+            this.ranges.add(new Range(label, min, max));
+        }
+
+        public boolean isHistogram() {
+            return this.interval > 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(this.fieldname).append(this.doubles ? " Double" : " Long");
+            if (isHistogram())
+                builder.append(" interval ").append(this.interval);
+            for (Range range : this.ranges)
+                builder.append(' ').append(range.label).append(" [").append(range.min).append(", ").append(range.max).append(')');
+            return builder.toString();
+        }
+
+        public static class Range {
+            public final String label;
+            public final double min;
+            public final double max;
+
+            public Range(String label, double min, double max) {
+                this.label = label;
+                this.min = min;
+                this.max = max;
+            }
+        }
+    }
+
     public static class SuggestionRequest {
         public String field;
         public int count;
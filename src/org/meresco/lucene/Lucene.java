@@ -27,8 +27,11 @@
 package org.meresco.lucene;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -39,16 +42,28 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.collections4.map.LRUMap;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.lucene.codecs.StoredFieldsReader;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.facet.DrillDownQuery;
-import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.FacetField;
 import org.apache.lucene.facet.FacetsConfig;
 import org.apache.lucene.facet.LabelAndValue;
-import org.apache.lucene.facet.taxonomy.CachedOrdinalsReader;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.facet.taxonomy.DocValuesOrdinalsReader;
 import org.apache.lucene.facet.taxonomy.OrdinalsReader;
 import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
@@ -58,14 +73,23 @@ import org.apache.lucene.facet.taxonomy.TaxonomyReader.ChildrenIterator;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyReader;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
 import org.apache.lucene.facet.taxonomy.writercache.LruTaxonomyWriterCache;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiTerms;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -76,6 +100,7 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
 import org.apache.lucene.search.ReferenceManager.RefreshListener;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
@@ -85,27 +110,40 @@ import org.apache.lucene.search.spell.DirectSpellChecker;
 import org.apache.lucene.search.spell.SuggestMode;
 import org.apache.lucene.search.spell.SuggestWord;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.FixedBitSet;
 import org.meresco.lucene.JsonQueryConverter.FacetRequest;
+import org.meresco.lucene.JsonQueryConverter.RangeFacetRequest;
 import org.meresco.lucene.LuceneResponse.ClusterHit;
 import org.meresco.lucene.LuceneResponse.DedupHit;
 import org.meresco.lucene.LuceneResponse.DrilldownData;
 import org.meresco.lucene.LuceneResponse.Hit;
+import org.meresco.lucene.queries.KeyFilter;
 import org.meresco.lucene.search.DeDupFilterSuperCollector;
+import org.meresco.lucene.search.DeDupTopDocsSuperCollector;
 import org.meresco.lucene.search.FacetSuperCollector;
+import org.meresco.lucene.search.MerescoTaxonomyFacetCounts;
 import org.meresco.lucene.search.MerescoCluster;
 import org.meresco.lucene.search.MerescoCluster.DocScore;
 import org.meresco.lucene.search.MerescoClusterer;
 import org.meresco.lucene.search.MultiSuperCollector;
+import org.meresco.lucene.search.PackedOrdinalsReader;
+import org.meresco.lucene.search.RangeFacetSuperCollector;
+import org.meresco.lucene.search.SearchExecutor;
 import org.meresco.lucene.search.SuperCollector;
 import org.meresco.lucene.search.SuperIndexSearcher;
+import org.meresco.lucene.search.TimeBudget;
 import org.meresco.lucene.search.TopDocSuperCollector;
 import org.meresco.lucene.search.TopFieldSuperCollector;
 import org.meresco.lucene.search.TopScoreDocSuperCollector;
 import org.meresco.lucene.search.join.AggregateScoreSuperCollector;
+import org.meresco.lucene.search.join.KeySet;
 import org.meresco.lucene.search.join.KeySuperCollector;
+import org.meresco.lucene.search.join.KeyValuesCache;
 import org.meresco.lucene.search.join.ScoreSuperCollector;
+import org.meresco.lucene.search.join.SegmentKeySuperCollector;
+import org.meresco.lucene.search.join.SegmentCache;
+import org.meresco.lucene.search.join.SegmentScores;
 
 
 public class Lucene {
@@ -113,12 +151,28 @@ public class Lucene {
     public static class UninitializedException extends Exception {
     }
 
+    @SuppressWarnings("serial")
+    public static class SearchRejectedException extends Exception {
+        public final int retryAfter;
+
+        public SearchRejectedException(int retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+    }
+
     public static final String ID_FIELD = "__id__";
+    private static final String BACKFILL_PLACEHOLDER = "__backfill__";
+    private static final Metrics.Histogram STORED_FIELDS = Metrics.histogram("storedFields");
+    private static final Metrics.Histogram COMMIT = Metrics.histogram("commit");
+    private static final Metrics.Histogram REFRESH = Metrics.histogram("refresh");
     private int commitCount = 0;
     private Timer commitTimer;
+    private final AtomicBoolean backfilling = new AtomicBoolean();
+    private final AtomicInteger backfilled = new AtomicInteger();
     public String name;
     private Path stateDir;
-    private Map<String, OrdinalsReader> ordinalsReaders = new HashMap<>();
+    private Map<String, OrdinalsReader> ordinalsReaders = Collections.synchronizedMap(new HashMap<>());
+    private final Map<IndexReader.CacheKey, Map<String, FutureTask<SortedSetDocValuesReaderState>>> sortedSetStates = new ConcurrentHashMap<>();
     private DirectSpellChecker spellChecker = new DirectSpellChecker();
     LuceneData data = new LuceneData();
 	private JsonQueryConverter queryConverter;
@@ -141,6 +195,48 @@ public class Lucene {
 
     public void initSettings(LuceneSettings settings) throws Exception {
         data.initSettings(stateDir, settings);
+        data.getSearchFactory().setWarmer(this::warm);
+    }
+
+    public void updateSettings(Reader reader) throws Exception {
+        LuceneSettings settings = data.getSettings();
+        settings.updateSettings(reader);
+        data.getFacetResultCache().setMaxTerms(settings.facetResultCacheSize);
+        data.getKeyCollectorCache().setMaxBytes(settings.keyCollectorCacheSize * 1024L * 1024L);
+        data.getScoreCollectorCache().setMaxBytes(data.composedScoresBudget());
+        data.getSegmentScoresCache().setMaxBytes(settings.scoreCollectorCacheSize * 1024L * 1024L / 2);
+    }
+
+    /**
+     * Builds cached facet ordinals and key values for the new segments of a
+     * refreshed reader, for the index fields that were faceted on and the
+     * keyNames that were joined on before.
+     */
+    private void warm(IndexReader reader) throws IOException {
+        KeyValuesCache.shared().warm(reader);
+        try {
+            Set<String> indexFieldNames = new HashSet<>();
+            for (String dim : data.getSettings().sortedSetFacetDims)
+                indexFieldNames.add(data.getFacetsConfig().getDimConfig(dim).indexFieldName);
+            for (String indexFieldName : indexFieldNames)
+                sortedSetState(reader, indexFieldName);
+        } catch (UninitializedException e) {
+        }
+        List<OrdinalsReader> readers;
+        synchronized (this.ordinalsReaders) {
+            readers = new ArrayList<>(this.ordinalsReaders.values());
+        }
+        for (OrdinalsReader ordinalsReader : readers)
+            if (ordinalsReader instanceof PackedOrdinalsReader)
+                ((PackedOrdinalsReader) ordinalsReader).warm(reader);
+    }
+
+    public SearchExecutor.Admission admitQuery() throws Exception {
+        LuceneSettings settings = data.getSettings();
+        SearchExecutor.Admission admission = SearchExecutor.shared().admit(this.name, settings.maxConcurrentQueries, settings.admissionTimeout);
+        if (admission == null)
+            throw new SearchRejectedException(SearchExecutor.shared().retryAfter());
+        return admission;
     }
 
     public LuceneSettings getSettings() throws Exception {
@@ -158,18 +254,121 @@ public class Lucene {
     }
 
     public void addDocument(Document doc) throws Exception {
-        doc = data.getFacetsConfig().build(data.getTaxoWriter(), doc);
+        doc = buildFacets(doc);
         data.getIndexWriter().addDocument(doc);
         maybeCommitAfterUpdate();
     }
 
     public void addDocument(String identifier, Document doc) throws Exception {
         doc.add(new StringField(ID_FIELD, identifier, Store.YES));
-        doc = data.getFacetsConfig().build(data.getTaxoWriter(), doc);
+        doc.add(new BinaryDocValuesField(ID_FIELD, new BytesRef(identifier)));
+        doc = buildFacets(doc);
         data.getIndexWriter().updateDocument(new Term(ID_FIELD, identifier), doc);
         maybeCommitAfterUpdate();
     }
 
+    /**
+     * FacetFields of dims configured with sortedSetDocValues become
+     * SortedSetDocValuesFacetFields, which leave the taxonomy alone.
+     */
+    private Document buildFacets(Document doc) throws Exception {
+        Set<String> sortedSetDims = data.getSettings().sortedSetFacetDims;
+        if (!sortedSetDims.isEmpty()) {
+            Document converted = new Document();
+            for (IndexableField field : doc) {
+                if (field instanceof FacetField && sortedSetDims.contains(((FacetField) field).dim)) {
+                    FacetField facetField = (FacetField) field;
+                    if (facetField.path.length != 1)
+                        throw new IllegalArgumentException("SortedSetDocValues facet " + facetField.dim + " needs exactly one label, got " + facetField.path.length);
+                    field = new SortedSetDocValuesFacetField(facetField.dim, facetField.path[0]);
+                }
+                converted.add(field);
+            }
+            doc = converted;
+        }
+        return data.getFacetsConfig().build(data.getTaxoWriter(), doc);
+    }
+
+    /**
+     * Starts backfillIdentifiers on a thread of its own, unless a backfill
+     * is running already. Returns whether it was started.
+     */
+    public boolean startBackfillIdentifiers() {
+        if (!this.backfilling.compareAndSet(false, true))
+            return false;
+        this.backfilled.set(0);
+        Thread thread = new Thread(() -> {
+            try {
+                backfillIdentifiers();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                this.backfilling.set(false);
+            }
+        }, "backfillIdentifiers-" + this.name);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public JsonObject backfillStatus() {
+        return Json.createObjectBuilder()
+                .add("running", this.backfilling.get())
+                .add("updated", this.backfilled.get())
+                .build();
+    }
+
+    /**
+     * Adds the __id__ doc values to documents indexed before hit identifiers
+     * were read from them. The field must be known as binary doc values to
+     * the IndexWriter before it can be updated, so for an index that has
+     * none yet a placeholder document registers it. Updates are committed
+     * like other updates, after commitCount of them or commitTimeout.
+     * Returns the number of documents updated.
+     */
+    int backfillIdentifiers() throws Exception {
+        commit();
+        IndexWriter indexWriter = data.getIndexWriter();
+        SearcherAndTaxonomy reference = data.getManager().acquire();
+        int updated = 0;
+        try {
+            IndexReader reader = reference.searcher.getIndexReader();
+            FieldInfo fieldInfo = FieldInfos.getMergedFieldInfos(reader).fieldInfo(ID_FIELD);
+            if (fieldInfo == null || fieldInfo.getDocValuesType() != DocValuesType.BINARY) {
+                Document placeholder = new Document();
+                placeholder.add(new StringField(ID_FIELD, BACKFILL_PLACEHOLDER, Store.NO));
+                placeholder.add(new BinaryDocValuesField(ID_FIELD, new BytesRef(BACKFILL_PLACEHOLDER)));
+                indexWriter.addDocument(placeholder);
+                indexWriter.deleteDocuments(new Term(ID_FIELD, BACKFILL_PLACEHOLDER));
+            }
+            Set<String> fields = Collections.singleton(ID_FIELD);
+            for (LeafReaderContext context : reader.leaves()) {
+                LeafReader leaf = context.reader();
+                BinaryDocValues values = leaf.getBinaryDocValues(ID_FIELD);
+                Bits liveDocs = leaf.getLiveDocs();
+                for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc))
+                        continue;
+                    if (values != null && values.advanceExact(doc))
+                        continue;
+                    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+                    leaf.document(doc, visitor);
+                    String identifier = visitor.getDocument().get(ID_FIELD);
+                    if (identifier == null)
+                        continue;
+                    indexWriter.updateBinaryDocValue(new Term(ID_FIELD, identifier), ID_FIELD, new BytesRef(identifier));
+                    this.backfilled.incrementAndGet();
+                    updated++;
+                    maybeCommitAfterUpdate();
+                }
+            }
+        } finally {
+            data.getManager().release(reference);
+        }
+        commit();
+        return updated;
+    }
+
     public void deleteDocument(String identifier) throws Exception {
         data.getIndexWriter().deleteDocuments(new Term(ID_FIELD, identifier));
         maybeCommitAfterUpdate();
@@ -250,9 +449,9 @@ public class Lucene {
         Collectors collectors;
         Map<String, Long> times = new HashMap<>();
         long t0 = System.currentTimeMillis();
+        TimeBudget budget = q.timeBudget();
         int topCollectorStop = q.stop;
         int moreRecords = 0;
-        SearcherAndTaxonomy reference = data.getManager().acquire();
 
         ClusterConfig clusterConfig = null;
         if (q.clustering) {
@@ -264,7 +463,7 @@ public class Lucene {
                 moreRecords = clusterConfig.clusterMoreRecords;
             }
         }
-        if (q.dedupField != null) {
+        if (q.dedupField != null && q.clustering) {
             moreRecords = 100;
         }
 
@@ -275,17 +474,24 @@ public class Lucene {
             query = createDrilldownQuery(query, drilldownQueries);
         }
 
+        SearcherAndTaxonomy reference = data.getManager().acquire();
         try {
+            long tf = System.currentTimeMillis();
+            FacetResultCache.Key facetKey = facetResultKey(query, q.facets, q.facetSampleSize, reference);
+            List<DrilldownData> cachedFacets = facetKey == null ? null : data.getFacetResultCache().get(facetKey);
+            if (cachedFacets != null)
+                times.put("facetCacheTime", System.currentTimeMillis() - tf);
+
             long totalHits=0;
             long adjustedTotalHits=0;
 
             boolean isFirstLoop = true;
 
             while (true) {
-                collectors = createCollectors(q, topCollectorStop + moreRecords, keyCollectors, scoreCollectors, reference);
+                collectors = createCollectors(q, topCollectorStop + moreRecords, keyCollectors, scoreCollectors, reference, cachedFacets == null);
 
                 long t1 = System.currentTimeMillis();
-                ((SuperIndexSearcher) reference.searcher).search(query, collectors.root);
+                ((SuperIndexSearcher) reference.searcher).search(query, collectors.root, budget);
                 times.put("searchTime", System.currentTimeMillis() - t1);
 
                 if (isFirstLoop) {
@@ -305,11 +511,16 @@ public class Lucene {
                     times.put("totalClusterTime", System.currentTimeMillis() - t1);
                 } else {
                     t1 = System.currentTimeMillis();
-                    hits = topDocsResponse(q, collectors);
+                    hits = topDocsResponse(q, collectors, reference.searcher.getIndexReader());
                     times.put("topDocsTime", System.currentTimeMillis() - t1);
                 }
 
-                if (hits.size() == q.stop - q.start || (topCollectorStop + moreRecords) >= totalHits) {
+                // only clustering can end up with fewer hits than asked for; the
+                // top collector for dedup already keeps one document per key
+                if (!q.clustering || hits.size() == q.stop - q.start || (topCollectorStop + moreRecords) >= totalHits) {
+                    break;
+                }
+                if (budget != null && budget.isExceeded()) {
                     break;
                 }
                 topCollectorStop *= 10;
@@ -324,10 +535,18 @@ public class Lucene {
                 response.totalWithDuplicates = collectors.topCollector.getTotalHits();
 
             response.hits = hits;
-
-            if (collectors.facetCollector != null) {
+            if (q.totalHitsThreshold != Integer.MAX_VALUE)
+                response.totalRelation = collectors.topCollector.getTotalHitsRelation();
+            if (budget != null)
+                response.setTimeBudget(budget);
+
+            if (cachedFacets != null) {
+                response.drilldownData = new ArrayList<>(cachedFacets);
+            } else if (q.facets != null && !q.facets.isEmpty()) {
                 long t1 = System.currentTimeMillis();
-                response.drilldownData = facetResult(collectors.facetCollector, q.facets);
+                response.drilldownData = facetResult(collectors, q.facets);
+                if (facetKey != null && (budget == null || !budget.isExceeded()))
+                    data.getFacetResultCache().put(facetKey, new ArrayList<>(response.drilldownData));
                 times.put("facetTime", System.currentTimeMillis() - t1);
             }
 
@@ -375,6 +594,7 @@ public class Lucene {
         times.put("clusteringAlgorithm", System.currentTimeMillis() - t0);
 
         List<LuceneResponse.Hit> hits = new ArrayList<>();
+        List<Integer> docIds = new ArrayList<>();
         int count = q.start;
         HashSet<Integer> seenDocIds = new HashSet<>();
         t0 = System.currentTimeMillis();
@@ -398,23 +618,34 @@ public class Lucene {
                 }
             }
 
-            ClusterHit hit = new ClusterHit(getDocument(representative).get(ID_FIELD), scoreDoc.score);
+            ClusterHit hit = new ClusterHit(null, scoreDoc.score);
+            docIds.add(representative);
             if (cluster != null) {
                 hit.topTerms = cluster.topTerms;
                 hit.topDocs = cluster.topDocs;
                 for (DocScore docScore : cluster.topDocs) {
-                    docScore.identifier = getDocument(docScore.docId).get(ID_FIELD);
+                    docIds.add(docScore.docId);
                 }
             }
             hits.add(hit);
             count += 1;
         }
+        String[] identifiers = getIdentifiers(indexReader, toArray(docIds));
+        int i = 0;
+        for (Hit hit : hits) {
+            hit.id = identifiers[i++];
+            ClusterHit clusterHit = (ClusterHit) hit;
+            if (clusterHit.topDocs != null)
+                for (DocScore docScore : clusterHit.topDocs)
+                    docScore.identifier = identifiers[i++];
+        }
         times.put("collectClusters", System.currentTimeMillis() - t0);
         return hits;
     }
 
-    private List<Hit> topDocsResponse(QueryData q, Collectors collectors) throws Exception {
+    private List<Hit> topDocsResponse(QueryData q, Collectors collectors, IndexReader indexReader) throws Exception {
         List<LuceneResponse.Hit> hits = new ArrayList<>();
+        List<Integer> docIds = new ArrayList<>();
         DeDupFilterSuperCollector dedupCollector = collectors.dedupCollector;
 
         int startAt = q.stop == 0 ? 1 : q.start; // TODO: temp fix for start/stop = 0
@@ -424,12 +655,8 @@ public class Lucene {
                 if (count >= q.stop) {
                     break;
                 }
-                Document document = getDocument(scoreDoc.doc);
-                Hit hit = new Hit(document.get(ID_FIELD), scoreDoc.score);
-                for (String storedField : q.storedFields) {
-                    hit.fields.add(document.getFields(storedField));
-                }
-                hits.add(hit);
+                hits.add(new Hit(null, scoreDoc.score));
+                docIds.add(scoreDoc.doc);
                 count++;
             }
         }
@@ -461,43 +688,92 @@ public class Lucene {
                         newDocId = dedupKey.getDocId();
                     }
 
-                    Document document = getDocument(newDocId);
-                    DedupHit dedupHit = new DedupHit(document.get(ID_FIELD), scoreDoc.score);
+                    DedupHit dedupHit = new DedupHit(null, scoreDoc.score);
                     dedupHit.duplicateField = dedupCollector.getKeyName();
                     dedupHit.duplicateCount = 1;
                     if (dedupKey != null) {
                         dedupHit.duplicateCount = dedupKey.getCount();
                     }
                     dedupHit.score = scoreDoc.score;
-                    Hit hit = dedupHit;
-                    for (String storedField : q.storedFields) {
-                        hit.fields.add(document.getFields(storedField));
-                    }
-                    hits.add(hit);
+                    hits.add(dedupHit);
+                    docIds.add(newDocId);
                 }
                 count++;
             }
         }
+        int[] pageDocIds = toArray(docIds);
+        String[] identifiers = getIdentifiers(indexReader, pageDocIds);
+        for (int i = 0; i < identifiers.length; i++)
+            hits.get(i).id = identifiers[i];
+        if (!q.storedFields.isEmpty()) {
+            Document[] documents = getDocuments(indexReader, pageDocIds, new HashSet<>(q.storedFields));
+            for (int i = 0; i < documents.length; i++) {
+                for (String storedField : q.storedFields) {
+                    hits.get(i).fields.add(documents[i].getFields(storedField));
+                }
+            }
+        }
         return hits;
     }
 
     public List<DrilldownData> facets(List<FacetRequest> facets, List<Query> filterQueries, List<String[]> drilldownQueries, Query filter) throws Throwable {
+        return facets(facets, filterQueries, drilldownQueries, filter, null);
+    }
+
+    public List<DrilldownData> facets(List<FacetRequest> facets, List<Query> filterQueries, List<String[]> drilldownQueries, Query filter, TimeBudget budget) throws Throwable {
         SearcherAndTaxonomy reference = data.getManager().acquire();
         try {
-            FacetSuperCollector facetCollector = facetCollector(facets, reference.taxonomyReader);
-            if (facetCollector == null)
+            if (facets == null || facets.isEmpty())
                 return new ArrayList<>();
             Query filter_ = filtersFor(filterQueries, filter);
             Query query = new MatchAllDocsQuery();
             if (drilldownQueries != null)
                 query = createDrilldownQuery(query, drilldownQueries);
-            ((SuperIndexSearcher) reference.searcher).search(mergeQueryAndFilter(query, filter_, null), facetCollector);
-            return facetResult(facetCollector, facets);
+            query = mergeQueryAndFilter(query, filter_, null);
+            FacetResultCache.Key facetKey = facetResultKey(query, facets, 0, reference);
+            List<DrilldownData> drilldownData = facetKey == null ? null : data.getFacetResultCache().get(facetKey);
+            if (drilldownData != null)
+                return new ArrayList<>(drilldownData);
+            Collectors collectors = new Collectors();
+            List<SuperCollector<?>> facetCollectors = createFacetCollectors(collectors, facets, 0, reference);
+            if (facetCollectors.isEmpty())
+                return new ArrayList<>();
+            ((SuperIndexSearcher) reference.searcher).search(query, facetCollectors.size() == 1 ? facetCollectors.get(0) : new MultiSuperCollector(facetCollectors), budget);
+            drilldownData = facetResult(collectors, facets);
+            if (facetKey != null && (budget == null || !budget.isExceeded()))
+                data.getFacetResultCache().put(facetKey, new ArrayList<>(drilldownData));
+            return drilldownData;
         } finally {
             data.getManager().release(reference);
         }
     }
 
+    /**
+     * Returns null when the facets of this query are not cached. Queries
+     * with KeyFilters are left out: their key sets come from other cores,
+     * are large and seldom repeat.
+     */
+    private FacetResultCache.Key facetResultKey(Query query, List<FacetRequest> facets, int sampleSize, SearcherAndTaxonomy reference) throws Exception {
+        if (facets == null || facets.isEmpty() || data.getSettings().facetResultCacheSize <= 0)
+            return null;
+        boolean[] keyFilter = new boolean[1];
+        query.visit(new QueryVisitor() {
+            @Override
+            public void visitLeaf(Query leaf) {
+                if (leaf instanceof KeyFilter)
+                    keyFilter[0] = true;
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(Occur occur, Query parent) {
+                return this;
+            }
+        });
+        if (keyFilter[0])
+            return null;
+        return new FacetResultCache.Key(query, facets, sampleSize, ((DirectoryReader) reference.searcher.getIndexReader()).getVersion());
+    }
+
     private Query filtersFor(List<Query> filterQueries, Query... filter) throws Exception {
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
         int nr = 0;
@@ -517,31 +793,117 @@ public class Lucene {
         return builder.build();
     }
 
+    /**
+     * Stored fields of a page of hits, in the order of docIds. The documents
+     * are read in docId order with one stored fields reader per leaf, so hits
+     * in the same compressed block do not decompress it again.
+     */
+    public static Document[] getDocuments(IndexReader reader, int[] docIds, Set<String> fields) throws IOException {
+        long t0 = System.nanoTime();
+        long[] byDocId = byDocId(docIds);
+        Document[] documents = new Document[docIds.length];
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = null;
+        StoredFieldsReader fieldsReader = null;
+        for (long docIdAndIndex : byDocId) {
+            int docId = (int) (docIdAndIndex >>> 32);
+            if (leaf == null || docId >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+                fieldsReader = leaf.reader() instanceof CodecReader ? ((CodecReader) leaf.reader()).getFieldsReader().getMergeInstance() : null;
+            }
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+            if (fieldsReader != null)
+                fieldsReader.visitDocument(docId - leaf.docBase, visitor);
+            else
+                leaf.reader().document(docId - leaf.docBase, visitor);
+            documents[(int) docIdAndIndex] = visitor.getDocument();
+        }
+        STORED_FIELDS.record(System.nanoTime() - t0);
+        return documents;
+    }
+
+    /**
+     * Identifiers of a page of hits, in the order of docIds, from the doc
+     * values of __id__. Documents indexed before that column existed and not
+     * yet backfilled fall back to the stored field.
+     */
+    public static String[] getIdentifiers(IndexReader reader, int[] docIds) throws IOException {
+        String[] identifiers = new String[docIds.length];
+        List<Integer> missing = new ArrayList<>();
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = null;
+        BinaryDocValues values = null;
+        int lastDocId = -1;
+        String identifier = null;
+        for (long docIdAndIndex : byDocId(docIds)) {
+            int docId = (int) (docIdAndIndex >>> 32);
+            if (docId != lastDocId) {
+                if (leaf == null || docId >= leaf.docBase + leaf.reader().maxDoc()) {
+                    leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+                    values = leaf.reader().getBinaryDocValues(ID_FIELD);
+                }
+                identifier = values != null && values.advanceExact(docId - leaf.docBase) ? values.binaryValue().utf8ToString() : null;
+                lastDocId = docId;
+            }
+            if (identifier == null)
+                missing.add((int) docIdAndIndex);
+            identifiers[(int) docIdAndIndex] = identifier;
+        }
+        if (!missing.isEmpty()) {
+            int[] missingDocIds = new int[missing.size()];
+            for (int i = 0; i < missingDocIds.length; i++)
+                missingDocIds[i] = docIds[missing.get(i)];
+            Document[] documents = getDocuments(reader, missingDocIds, Collections.singleton(ID_FIELD));
+            for (int i = 0; i < documents.length; i++)
+                identifiers[missing.get(i)] = documents[i].get(ID_FIELD);
+        }
+        return identifiers;
+    }
+
+    private static long[] byDocId(int[] docIds) {
+        long[] byDocId = new long[docIds.length];
+        for (int i = 0; i < docIds.length; i++)
+            byDocId[i] = ((long) docIds[i] << 32) | i;
+        Arrays.sort(byDocId);
+        return byDocId;
+    }
+
+    private static int[] toArray(List<Integer> docIds) {
+        int[] result = new int[docIds.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = docIds.get(i);
+        return result;
+    }
+
     public Document getDocument(int docID) throws Exception {
         SearcherAndTaxonomy reference = data.getManager().acquire();
+        long t0 = System.nanoTime();
         try {
             return ((SuperIndexSearcher) reference.searcher).doc(docID);
         } finally {
+            STORED_FIELDS.record(System.nanoTime() - t0);
             data.getManager().release(reference);
         }
     }
 
-    private Collectors createCollectors(QueryData q, int stop, Collection<KeySuperCollector> keyCollectors, List<AggregateScoreSuperCollector> scoreCollectors, SearcherAndTaxonomy reference)
-            throws Exception {
+    private Collectors createCollectors(QueryData q, int stop, Collection<KeySuperCollector> keyCollectors, List<AggregateScoreSuperCollector> scoreCollectors, SearcherAndTaxonomy reference,
+            boolean facets) throws Exception {
         Collectors allCollectors = new Collectors();
-        allCollectors.topCollector = topCollector(q.start, stop, q.sort);
+        // dedup and clustering need the exact total
+        int totalHitsThreshold = q.dedupField == null && !q.clustering ? q.totalHitsThreshold : Integer.MAX_VALUE;
+        if (q.dedupField != null && !q.clustering)
+            allCollectors.topCollector = new DeDupTopDocsSuperCollector(q.dedupField, q.sort, stop == 0 ? 1 : stop);
+        else
+            allCollectors.topCollector = topCollector(q.start, stop, q.sort, totalHitsThreshold);
         SuperCollector<?> resultsCollector = allCollectors.topCollector;
         if (q.dedupField != null) {
             allCollectors.dedupCollector = new DeDupFilterSuperCollector(q.dedupField, q.dedupSortFields, allCollectors.topCollector);
             resultsCollector = allCollectors.dedupCollector;
         }
-        allCollectors.facetCollector = facetCollector(q.facets, reference.taxonomyReader);
-
         List<SuperCollector<?>> collectors = new ArrayList<>();
         collectors.add(resultsCollector);
-        if (allCollectors.facetCollector != null) {
-            collectors.add(allCollectors.facetCollector);
-        }
+        if (facets)
+            collectors.addAll(createFacetCollectors(allCollectors, q.facets, q.facetSampleSize, reference));
         if (keyCollectors != null)
             collectors.addAll(keyCollectors);
         allCollectors.root = new MultiSuperCollector(collectors);
@@ -555,21 +917,95 @@ public class Lucene {
         return allCollectors;
     }
 
-    private TopDocSuperCollector topCollector(int start, int stop, Sort sort) {
+    private TopDocSuperCollector topCollector(int start, int stop, Sort sort, int totalHitsThreshold) {
         if (stop <= start)
             // TODO: temp fix for start/stop = 0; You should use TotalHitCountSuperCollector
-            return new TopScoreDocSuperCollector(stop == 0 ? 1 : stop);
+            return new TopScoreDocSuperCollector(stop == 0 ? 1 : stop, totalHitsThreshold);
         // return new TotalHitCountSuperCollector();
         if (sort == null)
-            return new TopScoreDocSuperCollector(stop);
-        return new TopFieldSuperCollector(sort, stop, true, false);
+            return new TopScoreDocSuperCollector(stop, totalHitsThreshold);
+        return new TopFieldSuperCollector(sort, stop, true, false, totalHitsThreshold);
+    }
+
+    /**
+     * Sets the taxonomy, range and SortedSetDocValues facet collectors the
+     * facets need in collectors and returns them.
+     */
+    private List<SuperCollector<?>> createFacetCollectors(Collectors collectors, List<FacetRequest> facets, int sampleSize, SearcherAndTaxonomy reference) throws Exception {
+        List<SuperCollector<?>> result = new ArrayList<>();
+        if (facets == null)
+            return result;
+        collectors.facetCollector = facetCollector(facets, reference.taxonomyReader);
+        if (collectors.facetCollector != null) {
+            collectors.facetCollector.setSampleSize(sampleSize);
+            result.add(collectors.facetCollector);
+        }
+        collectors.rangeFacetCollector = rangeFacetCollector(facets);
+        if (collectors.rangeFacetCollector != null)
+            result.add(collectors.rangeFacetCollector);
+        Set<String> sortedSetDims = data.getSettings().sortedSetFacetDims;
+        for (FacetRequest f : facets) {
+            if (!sortedSetDims.contains(f.fieldname) || f instanceof RangeFacetRequest)
+                continue;
+            String indexFieldName = data.getFacetsConfig().getDimConfig(f.fieldname).indexFieldName;
+            if (collectors.sortedSetFacetCollectors.containsKey(indexFieldName))
+                continue;
+            SortedSetDocValuesReaderState state = sortedSetState(reference.searcher.getIndexReader(), indexFieldName);
+            if (state == null)
+                continue;
+            FacetSuperCollector collector = new FacetSuperCollector(state);
+            collector.setExecutor(SearchExecutor.shared(), getSettings().numberOfConcurrentTasks);
+            collector.setSampleSize(sampleSize);
+            collectors.sortedSetFacetCollectors.put(indexFieldName, collector);
+            result.add(collector);
+        }
+        return result;
+    }
+
+    /**
+     * The reader state with the global ordinals of a SortedSetDocValues
+     * facet field, built once per reader, normally by the warmer on refresh.
+     * It is built outside any lock: queries for the same field wait for it,
+     * queries for other fields and readers do not. Returns null when no
+     * document has the field.
+     */
+    SortedSetDocValuesReaderState sortedSetState(IndexReader reader, String indexFieldName) throws IOException {
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+        if (helper == null)
+            return buildSortedSetState(reader, indexFieldName);
+        Map<String, FutureTask<SortedSetDocValuesReaderState>> states = this.sortedSetStates.computeIfAbsent(helper.getKey(), key -> {
+            helper.addClosedListener(this.sortedSetStates::remove);
+            return new ConcurrentHashMap<>();
+        });
+        FutureTask<SortedSetDocValuesReaderState> state = states.computeIfAbsent(indexFieldName, field -> new FutureTask<>(() -> buildSortedSetState(reader, field)));
+        state.run();
+        try {
+            return state.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            states.remove(indexFieldName, state);
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static SortedSetDocValuesReaderState buildSortedSetState(IndexReader reader, String indexFieldName) throws IOException {
+        if (MultiDocValues.getSortedSetValues(reader, indexFieldName) == null)
+            return null;
+        return new DefaultSortedSetDocValuesReaderState(reader, indexFieldName);
     }
 
     private FacetSuperCollector facetCollector(List<FacetRequest> facets, TaxonomyReader taxonomyReader) throws Exception {
         if (facets == null || facets.size() == 0)
             return null;
         String[] indexFieldnames = getIndexFieldNames(facets);
+        if (indexFieldnames.length == 0)
+            return null;
         FacetSuperCollector collector = new FacetSuperCollector(taxonomyReader, data.getFacetsConfig(), getOrdinalsReader(indexFieldnames[0]));
+        collector.setExecutor(SearchExecutor.shared(), getSettings().numberOfConcurrentTasks);
         for (int i = 1; i < indexFieldnames.length; i++) {
             collector.addOrdinalsReader(getOrdinalsReader(indexFieldnames[i]));
         }
@@ -579,48 +1015,76 @@ public class Lucene {
     String[] getIndexFieldNames(List<FacetRequest> facets) throws Exception {
         Set<String> indexFieldnames = new HashSet<>();
         for (FacetRequest f : facets)
-            indexFieldnames.add(this.data.getFacetsConfig().getDimConfig(f.fieldname).indexFieldName);
+            if (!(f instanceof RangeFacetRequest) && !this.data.getSettings().sortedSetFacetDims.contains(f.fieldname))
+                indexFieldnames.add(this.data.getFacetsConfig().getDimConfig(f.fieldname).indexFieldName);
         return indexFieldnames.toArray(new String[0]);
     }
 
+    private RangeFacetSuperCollector rangeFacetCollector(List<FacetRequest> facets) {
+        List<RangeFacetRequest> rangeFacets = new ArrayList<>();
+        if (facets != null)
+            for (FacetRequest f : facets)
+                if (f instanceof RangeFacetRequest)
+                    rangeFacets.add((RangeFacetRequest) f);
+        return rangeFacets.isEmpty() ? null : new RangeFacetSuperCollector(rangeFacets);
+    }
+
     private OrdinalsReader getOrdinalsReader(String indexFieldname) throws Exception {
-        OrdinalsReader reader = ordinalsReaders.get(indexFieldname);
-        if (reader == null) {
-            reader = indexFieldname == null ? new DocValuesOrdinalsReader() : new DocValuesOrdinalsReader(indexFieldname);
-            if (this.getSettings().cacheFacetOrdinals)
-                reader = new CachedOrdinalsReader(reader);
-            ordinalsReaders.put(indexFieldname, reader);
-        }
-        return reader;
+        boolean cacheFacetOrdinals = this.getSettings().cacheFacetOrdinals;
+        return ordinalsReaders.computeIfAbsent(indexFieldname, fieldname -> {
+            OrdinalsReader reader = fieldname == null ? new DocValuesOrdinalsReader() : new DocValuesOrdinalsReader(fieldname);
+            return cacheFacetOrdinals ? new PackedOrdinalsReader(reader) : reader;
+        });
     }
 
-    private List<DrilldownData> facetResult(FacetSuperCollector facetCollector, List<FacetRequest> facets) throws Exception {
+    private List<DrilldownData> facetResult(Collectors collectors, List<FacetRequest> facets) throws Exception {
         List<DrilldownData> drilldownData = new ArrayList<>();
-        for (FacetRequest facet : facets) {
-            DrilldownData dd = new DrilldownData(this.name, facet.fieldname);
-            dd.path = facet.path;
-            List<DrilldownData.Term> terms = drilldownDataFromFacetResult(facetCollector, facet, facet.path, this.data.getFacetsConfig().getDimConfig(facet.fieldname).hierarchical);
-            if (terms != null) {
-                dd.terms = terms;
-                drilldownData.add(dd);
+        try {
+            for (FacetRequest facet : facets) {
+                DrilldownData dd = new DrilldownData(this.name, facet.fieldname);
+                dd.path = facet.path;
+                List<DrilldownData.Term> terms = null;
+                if (facet instanceof RangeFacetRequest) {
+                    terms = drilldownTerms(collectors.rangeFacetCollector.labelValues((RangeFacetRequest) facet));
+                } else {
+                    FacetSuperCollector facetCollector = collectors.facetCollector;
+                    if (data.getSettings().sortedSetFacetDims.contains(facet.fieldname))
+                        facetCollector = collectors.sortedSetFacetCollectors.get(data.getFacetsConfig().getDimConfig(facet.fieldname).indexFieldName);
+                    if (facetCollector != null) {
+                        dd.exact = !facetCollector.isSampled();
+                        terms = drilldownTerms(facetCollector.getTopChildrenTree(facet.maxTerms == 0 ? Integer.MAX_VALUE : facet.maxTerms, facet.fieldname, facet.path));
+                    }
+                }
+                if (terms != null) {
+                    dd.terms = terms;
+                    drilldownData.add(dd);
+                }
             }
+        } finally {
+            if (collectors.facetCollector != null)
+                collectors.facetCollector.release();
+            for (FacetSuperCollector facetCollector : collectors.sortedSetFacetCollectors.values())
+                facetCollector.release();
         }
         return drilldownData;
     }
 
-    public List<DrilldownData.Term> drilldownDataFromFacetResult(FacetSuperCollector facetCollector, FacetRequest facet, String[] path, boolean hierarchical) throws IOException {
-        FacetResult result = facetCollector.getTopChildren(facet.maxTerms == 0 ? Integer.MAX_VALUE : facet.maxTerms, facet.fieldname, path);
-        if (result == null)
+    private static List<DrilldownData.Term> drilldownTerms(LabelAndValue[] labelValues) {
+        if (labelValues == null)
             return null;
-        List<DrilldownData.Term> terms = new ArrayList<>();
-        for (LabelAndValue l : result.labelValues) {
-            DrilldownData.Term term = new DrilldownData.Term(l.label, l.value.intValue());
-            if (hierarchical) {
-                String[] newPath = new String[path.length + 1];
-                System.arraycopy(path, 0, newPath, 0, path.length);
-                newPath[newPath.length - 1] = l.label;
-                term.subTerms = drilldownDataFromFacetResult(facetCollector, facet, newPath, hierarchical);
-            }
+        List<DrilldownData.Term> terms = new ArrayList<>(labelValues.length);
+        for (LabelAndValue labelValue : labelValues)
+            terms.add(new DrilldownData.Term(labelValue.label, labelValue.value.intValue()));
+        return terms;
+    }
+
+    private static List<DrilldownData.Term> drilldownTerms(List<MerescoTaxonomyFacetCounts.TopChild> children) {
+        if (children == null)
+            return null;
+        List<DrilldownData.Term> terms = new ArrayList<>(children.size());
+        for (MerescoTaxonomyFacetCounts.TopChild child : children) {
+            DrilldownData.Term term = new DrilldownData.Term(child.label, child.value);
+            term.subTerms = drilldownTerms(child.children);
             terms.add(term);
         }
         return terms;
@@ -673,6 +1137,21 @@ public class Lucene {
         return this.data.getIndexWriter().getDocStats().maxDoc;
     }
 
+    public JsonObject facetResultCacheStats() throws Exception {
+        return this.data.getFacetResultCache().statsAsJson();
+    }
+
+    public JsonObject keyCollectorCacheStats() throws Exception {
+        return this.data.getKeyCollectorCache().statsAsJson();
+    }
+
+    public JsonObject scoreCollectorCacheStats() throws Exception {
+        return Json.createObjectBuilder()
+                .add("composed", this.data.getScoreCollectorCache().statsAsJson())
+                .add("segments", this.data.getSegmentScoresCache().statsAsJson())
+                .build();
+    }
+
     public List<String> fieldnames() throws Exception {
         SearcherAndTaxonomy reference = data.getManager().acquire();
         try {
@@ -722,9 +1201,13 @@ public class Lucene {
     }
 
     public void search(Query query, Query filterQuery, SuperCollector<?> collector) throws Throwable {
+        search(query, filterQuery, collector, null);
+    }
+
+    public void search(Query query, Query filterQuery, SuperCollector<?> collector, TimeBudget budget) throws Throwable {
         SearcherAndTaxonomy reference = data.getManager().acquire();
         try {
-            ((SuperIndexSearcher) reference.searcher).search(mergeQueryAndFilter(query, filterQuery, null), collector);
+            ((SuperIndexSearcher) reference.searcher).search(mergeQueryAndFilter(query, filterQuery, null), collector, budget);
         } finally {
             data.getManager().release(reference);
         }
@@ -734,29 +1217,76 @@ public class Lucene {
         this.search(q, null, keyCollector);
     }
 
-    public FixedBitSet collectKeys(Query filterQuery, String keyName, Query query) throws Throwable {
+    public KeySet collectKeys(Query filterQuery, String keyName, Query query) throws Throwable {
         return collectKeys(filterQuery, keyName, query, true);
     }
 
-    public FixedBitSet collectKeys(Query filterQuery, String keyName, Query query, boolean cacheCollectedKeys) throws Throwable {
-        if (cacheCollectedKeys) {
-            KeyNameQuery keyNameQuery = new KeyNameQuery(keyName, filterQuery);
-            FixedBitSet keys = data.getKeyCollectorCache().get(keyNameQuery);
-            if (keys == null) {
-                keys = doCollectKeys(filterQuery, keyName, query);
-                data.getKeyCollectorCache().put(keyNameQuery, keys);
+    public KeySet collectKeys(Query filterQuery, String keyName, Query query, boolean cacheCollectedKeys) throws Throwable {
+        return collectKeys(filterQuery, keyName, query, cacheCollectedKeys, null);
+    }
+
+    public KeySet collectKeys(Query filterQuery, String keyName, Query query, boolean cacheCollectedKeys, TimeBudget budget) throws Throwable {
+        if (cacheCollectedKeys)
+            return collectSegmentKeys(filterQuery, keyName, query, budget);
+        return doCollectKeys(filterQuery, keyName, query, budget);
+    }
+
+    /**
+     * Keys are cached per segment, so after a refresh only the new segments
+     * (and the ones with new deletes) are searched; the keys of the others
+     * come from the key collector cache.
+     */
+    private KeySet collectSegmentKeys(Query filterQuery, String keyName, Query query, TimeBudget budget) throws Throwable {
+        SegmentCache<KeySet> cache = data.getKeyCollectorCache();
+        SearcherAndTaxonomy reference = data.getManager().acquire();
+        try {
+            IndexReader reader = reference.searcher.getIndexReader();
+            Object queryKey = SegmentCache.queryKey(query, filterQuery);
+            KeySet keys = cache.get(reader, keyName, queryKey);
+            if (keys != null)
+                return keys;
+            List<LeafReaderContext> leaves = reader.leaves();
+            KeySet[] segmentKeys = new KeySet[leaves.size()];
+            boolean[] cached = new boolean[leaves.size()];
+            boolean complete = true;
+            for (LeafReaderContext context : leaves) {
+                segmentKeys[context.ord] = cache.get(context.reader(), keyName, queryKey);
+                cached[context.ord] = segmentKeys[context.ord] != null;
+                complete &= cached[context.ord];
             }
+            if (!complete) {
+                SegmentKeySuperCollector keyCollector = new SegmentKeySuperCollector(keyName, cached);
+                long t0 = System.nanoTime();
+                ((SuperIndexSearcher) reference.searcher).search(mergeQueryAndFilter(query == null ? new MatchAllDocsQuery() : query, filterQuery, null), keyCollector, budget);
+                Metrics.record("collectKeys." + this.name, System.nanoTime() - t0);
+                for (LeafReaderContext context : leaves) {
+                    if (cached[context.ord])
+                        continue;
+                    segmentKeys[context.ord] = keyCollector.getSegmentKeys(context.ord);
+                    // keys collected after the budget ran out are incomplete
+                    if (budget == null || !budget.isExceeded())
+                        cache.put(context.reader(), keyName, queryKey, segmentKeys[context.ord]);
+                }
+            }
+            keys = KeySet.empty();
+            for (KeySet keySet : segmentKeys)
+                keys = keys.cardinality() == 0 ? keySet : keys.or(keySet);
+            if (budget == null || !budget.isExceeded())
+                cache.put(reader, keyName, queryKey, keys);
             return keys;
+        } finally {
+            data.getManager().release(reference);
         }
-        return doCollectKeys(filterQuery, keyName, query);
     }
 
-    private FixedBitSet doCollectKeys(Query filterQuery, String keyName, Query query) throws Throwable {
+    private KeySet doCollectKeys(Query filterQuery, String keyName, Query query, TimeBudget budget) throws Throwable {
         KeySuperCollector keyCollector = new KeySuperCollector(keyName);
         if (query == null) {
             query = new MatchAllDocsQuery();
         }
-        search(query, filterQuery, keyCollector);
+        long t0 = System.nanoTime();
+        search(query, filterQuery, keyCollector, budget);
+        Metrics.record("collectKeys." + this.name, System.nanoTime() - t0);
         return keyCollector.getCollectedKeys();
     }
 
@@ -780,21 +1310,33 @@ public class Lucene {
     	return this.queryConverter;
     }
 
+    /**
+     * Scores are cached per segment like collected keys, so after a refresh
+     * only the new segments are searched for a rank query; the composed
+     * ScoreSuperCollector is cached for the reader as a whole, within a
+     * budget that grows with its table.
+     */
     public ScoreSuperCollector scoreCollector(String keyName, Query query) throws Throwable {
-        KeyNameQuery keyNameQuery = new KeyNameQuery(keyName, query);
-        ScoreSuperCollector scoreCollector = data.getScoreCollectorCache().get(keyNameQuery);
-        if (scoreCollector == null) {
-            scoreCollector = doScoreCollecting(keyName, query);
-            data.getScoreCollectorCache().put(keyNameQuery, scoreCollector);
-        }
-        return scoreCollector;
-    }
-
-    public ScoreSuperCollector doScoreCollecting(String keyName, Query query) throws Throwable {
         SearcherAndTaxonomy reference = data.getManager().acquire();
         try {
-            ScoreSuperCollector scoreCollector = new ScoreSuperCollector(keyName);
+            IndexReader reader = reference.searcher.getIndexReader();
+            Object queryKey = SegmentCache.queryKey(query);
+            ScoreSuperCollector scoreCollector = data.getScoreCollectorCache().get(reader, keyName, queryKey);
+            if (scoreCollector != null)
+                return scoreCollector;
+            SegmentCache<SegmentScores> cache = data.getSegmentScoresCache();
+            List<LeafReaderContext> leaves = reader.leaves();
+            SegmentScores[] cached = new SegmentScores[leaves.size()];
+            for (LeafReaderContext context : leaves)
+                cached[context.ord] = cache.get(context.reader(), keyName, queryKey);
+            scoreCollector = new ScoreSuperCollector(keyName, ScoreSuperCollector.Aggregate.MAX, cached);
             ((SuperIndexSearcher) reference.searcher).search(query, scoreCollector);
+            for (LeafReaderContext context : leaves)
+                if (cached[context.ord] == null)
+                    cache.put(context.reader(), keyName, queryKey, scoreCollector.getSegmentScores(context.ord));
+            scoreCollector.releaseSegmentScores();
+            data.fitComposedScores(scoreCollector.ramBytesUsed());
+            data.getScoreCollectorCache().put(reader, keyName, queryKey, scoreCollector);
             return scoreCollector;
         } finally {
             data.getManager().release(reference);
@@ -849,6 +1391,8 @@ public class Lucene {
         public DeDupFilterSuperCollector dedupCollector;
         public TopDocSuperCollector topCollector;
         public FacetSuperCollector facetCollector;
+        public RangeFacetSuperCollector rangeFacetCollector;
+        public Map<String, FacetSuperCollector> sortedSetFacetCollectors = new HashMap<>();
         public SuperCollector<?> root;
     }
 
@@ -862,47 +1406,31 @@ public class Lucene {
         }
     }
 
-    private static class KeyNameQuery {
-        private String keyName;
-        private Query query;
-
-        public KeyNameQuery(String keyName, Query query) {
-            this.keyName = keyName;
-            this.query = query;
-        }
-
-        @Override
-        public int hashCode() {
-            return keyName.hashCode() + 127 * query.hashCode();
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof KeyNameQuery) {
-                KeyNameQuery other = (KeyNameQuery) obj;
-                return other.keyName.equals(keyName) && other.query.equals(query);
-            }
-            return false;
-        }
-    }
-
-
     static class LuceneData {
+        static final int COMPOSED_SCORE_TABLES = 4;
+
         private IndexWriter indexWriter;
         private DirectoryTaxonomyWriter taxoWriter;
         private LuceneSettings settings;
-        private Map<KeyNameQuery, ScoreSuperCollector> scoreCollectorCache;
-        private Map<KeyNameQuery, FixedBitSet> keyCollectorCache;
+        private SegmentCache<ScoreSuperCollector> scoreCollectorCache;
+        private SegmentCache<SegmentScores> segmentScoresCache;
+        private SegmentCache<KeySet> keyCollectorCache;
+        private long composedScoresBytes;
+        private FacetResultCache facetResultCache;
         private SearcherTaxonomyManager manager;
+        private MerescoSearchFactory searchFactory;
         private LuceneRefreshListener refreshListener = new LuceneRefreshListener();
 
         public void commit() throws Exception {
+            long t0 = System.nanoTime();
             this.indexWriter.commit();
             this.taxoWriter.commit();
+            long t1 = System.nanoTime();
+            COMMIT.record(t1 - t0);
             this.manager.maybeRefreshBlocking();
+            REFRESH.record(System.nanoTime() - t1);
             if (this.refreshListener.isRefreshed()) {
-                this.scoreCollectorCache.clear();
-                this.keyCollectorCache.clear();
+                this.facetResultCache.clear();
             }
         }
 
@@ -937,10 +1465,13 @@ public class Lucene {
             this.taxoWriter = new DirectoryTaxonomyWriter(taxoDirectory, IndexWriterConfig.OpenMode.CREATE_OR_APPEND, new LruTaxonomyWriterCache(settings.lruTaxonomyWriterCacheSize));
             this.taxoWriter.commit();
 
-            this.scoreCollectorCache = Collections.synchronizedMap(new LRUMap<KeyNameQuery, ScoreSuperCollector>(50));
-            this.keyCollectorCache = Collections.synchronizedMap(new LRUMap<KeyNameQuery, FixedBitSet>(50));
+            this.scoreCollectorCache = new SegmentCache<>(composedScoresBudget());
+            this.segmentScoresCache = new SegmentCache<>(settings.scoreCollectorCacheSize * 1024L * 1024L / 2);
+            this.keyCollectorCache = new SegmentCache<>(settings.keyCollectorCacheSize * 1024L * 1024L);
+            this.facetResultCache = new FacetResultCache(settings.facetResultCacheSize);
 
-            this.manager = new SearcherTaxonomyManager(indexDirectory, taxoDirectory, new MerescoSearchFactory(indexDirectory, taxoDirectory, settings));
+            this.searchFactory = new MerescoSearchFactory(indexDirectory, taxoDirectory, settings);
+            this.manager = new SearcherTaxonomyManager(indexDirectory, taxoDirectory, this.searchFactory);
             this.manager.addListener(refreshListener);
         }
 
@@ -972,24 +1503,60 @@ public class Lucene {
             return this.settings != null;
         }
 
-        public Map<KeyNameQuery, ScoreSuperCollector> getScoreCollectorCache() throws UninitializedException {
+        public SegmentCache<ScoreSuperCollector> getScoreCollectorCache() throws UninitializedException {
             if (this.settings == null)
                 throw new UninitializedException();
             return scoreCollectorCache;
         }
 
-        public Map<KeyNameQuery, FixedBitSet> getKeyCollectorCache() throws UninitializedException {
+        /**
+         * A composed ScoreSuperCollector has a float16 for every key up to the
+         * largest one, so its size follows the key space rather than the
+         * query. The composed ones get half of scoreCollectorCacheSize, but
+         * at least room for COMPOSED_SCORE_TABLES of the largest seen, so a
+         * large key space does not make every rank query compose again.
+         */
+        synchronized long composedScoresBudget() {
+            return Math.max(this.settings.scoreCollectorCacheSize * 1024L * 1024L / 2, COMPOSED_SCORE_TABLES * this.composedScoresBytes);
+        }
+
+        synchronized void fitComposedScores(long bytes) {
+            if (bytes <= this.composedScoresBytes)
+                return;
+            this.composedScoresBytes = bytes;
+            this.scoreCollectorCache.setMaxBytes(composedScoresBudget());
+        }
+
+        public SegmentCache<SegmentScores> getSegmentScoresCache() throws UninitializedException {
+            if (this.settings == null)
+                throw new UninitializedException();
+            return segmentScoresCache;
+        }
+
+        public SegmentCache<KeySet> getKeyCollectorCache() throws UninitializedException {
             if (this.settings == null)
                 throw new UninitializedException();
             return keyCollectorCache;
         }
 
+        public FacetResultCache getFacetResultCache() throws UninitializedException {
+            if (this.settings == null)
+                throw new UninitializedException();
+            return facetResultCache;
+        }
+
         public SearcherTaxonomyManager getManager() throws UninitializedException {
             if (this.settings == null)
                 throw new UninitializedException();
             return manager;
         }
 
+        public MerescoSearchFactory getSearchFactory() throws UninitializedException {
+            if (this.settings == null)
+                throw new UninitializedException();
+            return searchFactory;
+        }
+
         private class LuceneRefreshListener implements RefreshListener {
             private boolean refreshed;
 
@@ -39,22 +39,28 @@ import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.search.spell.SuggestWord;
-import org.apache.lucene.util.FixedBitSet;
 import org.meresco.lucene.search.MerescoCluster;
 import org.meresco.lucene.search.MerescoCluster.DocScore;
 import org.meresco.lucene.search.MerescoCluster.TermScore;
+import org.meresco.lucene.search.TimeBudget;
+import org.meresco.lucene.search.join.KeySet;
 
 
 public class LuceneResponse {
     public long total;
     public Long totalWithDuplicates;
+    public TotalHits.Relation totalRelation;
+    public Boolean timedOut;
+    public Integer segments;
+    public Integer segmentsSearched;
     public List<Hit> hits = new ArrayList<>();
     public List<DrilldownData> drilldownData = new ArrayList<>();
     public long queryTime = 0;
     public Map<String,SuggestWord[]> suggestions = new HashMap<>();
     public Map<String, Long> times = new HashMap<>();
-    public FixedBitSet keys;
+    public KeySet keys;
 
     public LuceneResponse(long totalHits) {
         this.total = totalHits;
@@ -64,6 +70,12 @@ public class LuceneResponse {
         this.hits.add(hit);
     }
 
+    public void setTimeBudget(TimeBudget budget) {
+        this.timedOut = budget.isExceeded();
+        this.segments = budget.segments();
+        this.segmentsSearched = budget.segmentsSearched();
+    }
+
 
     public static class Hit implements Comparable<Hit> {
         public String id;
@@ -118,6 +130,7 @@ public class LuceneResponse {
         public String core;
         public String[] path = new String[0];
         public List<Term> terms;
+        public boolean exact = true;
 
         public DrilldownData(String core, String fieldname) {
             this.core = core;
@@ -222,17 +235,30 @@ public class LuceneResponse {
             jsonBuilder.add("totalWithDuplicates", totalWithDuplicates);
         }
 
+        if (totalRelation != null) {
+            jsonBuilder.add("totalRelation", totalRelation.name());
+        }
+
+        if (timedOut != null) {
+            jsonBuilder.add("timedOut", timedOut);
+            jsonBuilder.add("segments", segments);
+            jsonBuilder.add("segmentsSearched", segmentsSearched);
+        }
+
         if (drilldownData.size() > 0) {
             JsonArrayBuilder ddArray = Json.createArrayBuilder();
             for (DrilldownData dd : drilldownData) {
                 JsonArrayBuilder path = Json.createArrayBuilder();
                 for (String p : dd.path)
                     path.add(p);
-                ddArray.add(Json.createObjectBuilder()
+                JsonObjectBuilder ddObject = Json.createObjectBuilder()
                         .add("fieldname", dd.fieldname)
                         .add("core", dd.core)
                         .add("path", path)
-                        .add("terms", jsonTermList(dd.terms)));
+                        .add("terms", jsonTermList(dd.terms));
+                if (!dd.exact)
+                    ddObject.add("exact", false);
+                ddArray.add(ddObject);
             }
             jsonBuilder.add("drilldownData", ddArray);
         }
@@ -27,6 +27,8 @@
 package org.meresco.lucene;
 
 import java.io.Reader;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.json.Json;
 import javax.json.JsonArray;
@@ -55,6 +57,15 @@ public class LuceneSettings {
     private MergePolicy mergePolicy = this.getTieredMergePolicy(8.0, 2);
     public int lruTaxonomyWriterCacheSize = 4000;
     public int numberOfConcurrentTasks = 6;
+    public int maxConcurrentQueries = 50;
+    public int admissionTimeout = 100;
+    // facet terms kept in the FacetResultCache of this core, 0 disables it
+    public int facetResultCacheSize = 100000;
+    // megabytes for the keys collected per segment for filters of this core
+    public int keyCollectorCacheSize = 64;
+    // megabytes for rank scores of this core, half per segment, half composed
+    // (composed ones get more when a few of them do not fit)
+    public int scoreCollectorCacheSize = 64;
     public int commitTimeout = 10;
     public int commitCount = 100000;
     public FacetsConfig facetsConfig = new FacetsConfig() {
@@ -67,6 +78,9 @@ public class LuceneSettings {
     public ClusterConfig clusterConfig = new ClusterConfig(0.4, 1, 100);
     public InterpolateEpsilon interpolateEpsilon = new InterpolateEpsilon();
     public boolean cacheFacetOrdinals = true;
+    // dims indexed as SortedSetDocValuesFacetFields instead of in the taxonomy
+    public Set<String> sortedSetFacetDims = new HashSet<>();
+    public static final String SORTED_SET_FACETS_FIELD = "$facets_sortedset";
 
     public JsonObject asJson() {
         JsonArrayBuilder strategiesJsonBuilder = Json.createArrayBuilder();
@@ -89,6 +103,11 @@ public class LuceneSettings {
                                 .add("mergeFactor", ((LogMergePolicy) this.mergePolicy).getMergeFactor()))
                 .add("lruTaxonomyWriterCacheSize", lruTaxonomyWriterCacheSize)
                 .add("numberOfConcurrentTasks", numberOfConcurrentTasks)
+                .add("maxConcurrentQueries", maxConcurrentQueries)
+                .add("admissionTimeout", admissionTimeout)
+                .add("facetResultCacheSize", facetResultCacheSize)
+                .add("keyCollectorCacheSize", keyCollectorCacheSize)
+                .add("scoreCollectorCacheSize", scoreCollectorCacheSize)
                 .add("commitCount", commitCount)
                 .add("commitTimeout", commitTimeout)
                 .add("cacheFacetOrdinals", this.cacheFacetOrdinals)
@@ -132,6 +151,21 @@ public class LuceneSettings {
             case "numberOfConcurrentTasks":
                 numberOfConcurrentTasks = object.getInt(key);
                 break;
+            case "maxConcurrentQueries":
+                maxConcurrentQueries = object.getInt(key);
+                break;
+            case "admissionTimeout":
+                admissionTimeout = object.getInt(key);
+                break;
+            case "facetResultCacheSize":
+                facetResultCacheSize = object.getInt(key);
+                break;
+            case "keyCollectorCacheSize":
+                keyCollectorCacheSize = object.getInt(key);
+                break;
+            case "scoreCollectorCacheSize":
+                scoreCollectorCacheSize = object.getInt(key);
+                break;
             case "cacheFacetOrdinals":
                 this.cacheFacetOrdinals = object.getBoolean("cacheFacetOrdinals");
                 break;
@@ -173,6 +207,14 @@ public class LuceneSettings {
             if (fieldname != null && fieldname != null) {
                 this.facetsConfig.setIndexFieldName(dim, fieldname);
             }
+            if (drilldownField.getBoolean("sortedSetDocValues", false)) {
+                if (this.facetsConfig.getDimConfig(dim).hierarchical)
+                    throw new IllegalArgumentException("Dimension " + dim + " is hierarchical, which SortedSetDocValues facets do not support");
+                // the taxonomy ordinals are binary doc values, so these need a field of their own
+                if (fieldname == null)
+                    this.facetsConfig.setIndexFieldName(dim, SORTED_SET_FACETS_FIELD);
+                this.sortedSetFacetDims.add(dim);
+            }
         }
     }
 
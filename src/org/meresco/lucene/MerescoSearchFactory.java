@@ -27,26 +27,36 @@
 package org.meresco.lucene;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils.IOConsumer;
+import org.meresco.lucene.search.SearchExecutor;
 import org.meresco.lucene.search.SuperIndexSearcher;
 
 public class MerescoSearchFactory extends SearcherFactory {
-    private ExecutorService executor = null;
+    private SearchExecutor executor = null;
     private LuceneSettings settings;
+    private IOConsumer<IndexReader> warmer;
 
     public MerescoSearchFactory(Directory indexDirectory, Directory taxoDirectory, LuceneSettings settings) throws IOException {
         this.settings = settings;
-        this.executor = Executors.newFixedThreadPool(100);
+        this.executor = SearchExecutor.shared();
     }
     
+    /**
+     * Called with every new reader before its searcher is used.
+     */
+    public void setWarmer(IOConsumer<IndexReader> warmer) {
+        this.warmer = warmer;
+    }
+
     @Override
     public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+        if (this.warmer != null)
+            this.warmer.accept(reader);
         SuperIndexSearcher searcher = new SuperIndexSearcher(reader, this.executor, this.settings.numberOfConcurrentTasks);
         searcher.setSimilarity(this.settings.similarity);
         return searcher;
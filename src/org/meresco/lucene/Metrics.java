@@ -0,0 +1,139 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Durations in nanoseconds of the phases of searching and indexing, summed
+ * over all requests since startup. Served on /metrics.
+ */
+public class Metrics {
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public static void record(String name, long nanos) {
+        histogram(name).record(nanos);
+    }
+
+    public static JsonObject asJson() {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet())
+            builder.add(entry.getKey(), entry.getValue().asJson());
+        return builder.build();
+    }
+
+    /**
+     * Like HdrHistogram: a bucket for every eighth of a power of two, so a
+     * percentile is off by at most 12.5% while recording is one increment in
+     * a fixed array of counts.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            this.counts.incrementAndGet(bucket(nanos));
+            this.count.increment();
+            this.total.add(nanos);
+            if (nanos > this.max.get())
+                this.max.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long count() {
+            return this.count.sum();
+        }
+
+        public long max() {
+            return this.max.get();
+        }
+
+        /**
+         * The highest value in the bucket holding the given fraction of the
+         * recorded values.
+         */
+        public long percentile(double fraction) {
+            long count = count();
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length(); i++) {
+                seen += this.counts.get(i);
+                if (seen >= rank)
+                    return Math.min(lowest(i + 1) - 1, max());
+            }
+            return max();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long lowest(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            if (exponent > 62)
+                return Long.MAX_VALUE;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        public JsonObject asJson() {
+            long count = count();
+            return Json.createObjectBuilder()
+                    .add("count", count)
+                    .add("meanNs", count == 0 ? 0 : this.total.sum() / count)
+                    .add("p50Ns", percentile(0.5))
+                    .add("p90Ns", percentile(0.9))
+                    .add("p99Ns", percentile(0.99))
+                    .add("p999Ns", percentile(0.999))
+                    .add("maxNs", max())
+                    .build();
+        }
+    }
+}
@@ -30,17 +30,26 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntSupplier;
 
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.SortField;
-import org.apache.lucene.util.FixedBitSet;
 import org.meresco.lucene.ComposedQuery.Unite;
 import org.meresco.lucene.JsonQueryConverter.FacetRequest;
+import org.meresco.lucene.LuceneResponse.DrilldownData;
 import org.meresco.lucene.queries.KeyFilter;
 import org.meresco.lucene.search.JoinSortCollector;
 import org.meresco.lucene.search.JoinSortField;
+import org.meresco.lucene.search.SearchExecutor;
+import org.meresco.lucene.search.TimeBudget;
 import org.meresco.lucene.search.join.AggregateScoreSuperCollector;
+import org.meresco.lucene.search.join.KeySet;
 import org.meresco.lucene.search.join.KeySuperCollector;
 import org.meresco.lucene.search.join.ScoreSuperCollector;
 import org.meresco.lucene.search.join.relational.KeyBits;
@@ -50,6 +59,7 @@ import org.meresco.lucene.search.join.relational.WrappedRelationalQuery;
 
 public class MultiLucene {
     private Map<String, Lucene> lucenes = new HashMap<String, Lucene>();
+    private IntSupplier keySpace = () -> 0;
 
     public MultiLucene(List<Lucene> lucenes) {
         for (Lucene lucene : lucenes) {
@@ -57,6 +67,16 @@ public class MultiLucene {
         }
     }
 
+    /**
+     * keySpace is the number of keys issued so far (TermNumerator.size()).
+     * The keys of the result core are then collected in one shared bitset;
+     * they are collected for every result, so usually for many documents.
+     */
+    public MultiLucene(List<Lucene> lucenes, IntSupplier keySpace) {
+        this(lucenes);
+        this.keySpace = keySpace;
+    }
+
     public Map<String, Lucene> getLucenes() {
         return new HashMap<String, Lucene>(this.lucenes);
     }
@@ -81,7 +101,7 @@ public class MultiLucene {
         query.queryData.query = resultCoreQuery;
         query.queryData.facets = query.facetsFor(resultCoreName);
 
-        Map<String, FixedBitSet> finalExcludeKeys = this.excludeFilterKeys(query);
+        Map<String, KeySet> finalExcludeKeys = this.excludeFilterKeys(query);
         List<Query> excludeFilters = new ArrayList<>();
         for (String keyName : finalExcludeKeys.keySet()) {
             excludeFilters.add(new KeyFilter(finalExcludeKeys.get(keyName), keyName));
@@ -97,8 +117,31 @@ public class MultiLucene {
                 null);
     }
 
+    /**
+     * Admits the query on every core it searches, in name order so two
+     * composed queries never wait for each other.
+     */
+    public AutoCloseable admitQuery(ComposedQuery query) throws Exception {
+        Set<String> cores = new TreeSet<>(query.cores);
+        cores.add(query.resultsFrom);
+        List<SearchExecutor.Admission> admissions = new ArrayList<>();
+        try {
+            for (String core : cores)
+                admissions.add(this.lucenes.get(core).admitQuery());
+        } catch (Exception e) {
+            for (SearchExecutor.Admission admission : admissions)
+                admission.close();
+            throw e;
+        }
+        return () -> {
+            for (SearchExecutor.Admission admission : admissions)
+                admission.close();
+        };
+    }
+
     public LuceneResponse multipleCoreQuery(ComposedQuery query, String exportKey) throws Throwable {
         long t0 = System.currentTimeMillis();
+        TimeBudget budget = query.queryData.timeBudget();
         String resultCoreName = query.resultsFrom;
         List<String> otherCoreNames = new ArrayList<>();
         for (String core : query.cores) {
@@ -107,7 +150,7 @@ public class MultiLucene {
             }
         }
 
-        Map<String, FixedBitSet> finalKeys = this.filterKeys(query);
+        Map<String, KeySet> finalKeys = this.filterKeys(query);
         for (String otherCoreName : otherCoreNames) {
             finalKeys = this.coreQueries(otherCoreName, resultCoreName, query, finalKeys);
         }
@@ -115,7 +158,7 @@ public class MultiLucene {
         for (String keyName : finalKeys.keySet()) {
             resultFilters.add(new KeyFilter(finalKeys.get(keyName), keyName));
         }
-        Map<String, FixedBitSet> finalExcludeKeys = this.excludeFilterKeys(query);
+        Map<String, KeySet> finalExcludeKeys = this.excludeFilterKeys(query);
         List<Query> excludeFilters = new ArrayList<>();
         for (String keyName : finalExcludeKeys.keySet()) {
             excludeFilters.add(new KeyFilter(finalExcludeKeys.get(keyName), keyName));
@@ -135,11 +178,12 @@ public class MultiLucene {
         }
 
         Map<String, KeySuperCollector> keyCollectors = new HashMap<>();
+        int keySpace = this.keySpace.getAsInt();
         for (String keyName : query.keyNames(resultCoreName)) {
-            keyCollectors.put(keyName, new KeySuperCollector(keyName));
+            keyCollectors.put(keyName, new KeySuperCollector(keyName, keySpace));
         }
         if (exportKey != null && !keyCollectors.containsKey(exportKey)) {
-            keyCollectors.put(exportKey, new KeySuperCollector(exportKey));
+            keyCollectors.put(exportKey, new KeySuperCollector(exportKey, keySpace));
         }
 
         if (query.queryData.sort != null) {
@@ -168,6 +212,7 @@ public class MultiLucene {
                 keyCollectors.values()
                 );
 
+        List<Job<List<DrilldownData>>> facetJobs = new ArrayList<>();
         for (String otherCoreName : otherCoreNames) {
             List<FacetRequest> facets = query.facetsFor(otherCoreName);
             if (facets != null && facets.size() > 0) {
@@ -176,15 +221,16 @@ public class MultiLucene {
                 List<Query> queries = new ArrayList<Query>();
                 queries.addAll(query.queriesFor(otherCoreName));
                 queries.addAll(query.otherCoreFacetFiltersFor(otherCoreName));
-                response.drilldownData.addAll(this.lucenes.get(otherCoreName).facets(
-                        facets,
-                        queries,
-                        query.drilldownQueriesFor(otherCoreName),
-                        keyFilter
-                        ));
+                Lucene lucene = this.lucenes.get(otherCoreName);
+                List<String[]> drilldownQueries = query.drilldownQueriesFor(otherCoreName);
+                facetJobs.add(() -> lucene.facets(facets, queries, drilldownQueries, keyFilter, budget));
             }
         }
+        for (List<DrilldownData> drilldownData : runConcurrently(facetJobs))
+            response.drilldownData.addAll(drilldownData);
 
+        if (budget != null)
+            response.setTimeBudget(budget);
         if (exportKey != null) {
             response.keys = keyCollectors.get(exportKey).getCollectedKeys();
         }
@@ -192,15 +238,52 @@ public class MultiLucene {
         return response;
     }
 
-    private Map<String, FixedBitSet> filterKeys(ComposedQuery query) throws Throwable {
-        Map<String, FixedBitSet> keys = new HashMap<String, FixedBitSet>();
+    /**
+     * Runs the jobs on the shared search executor and returns their results
+     * in order. The calling thread runs the first job itself, and afterwards
+     * every job that no search thread picked up yet, so a full queue only
+     * costs concurrency. A failing job is rethrown as it failed: its
+     * Throwable is wrapped once to pass through the FutureTask.
+     */
+    private static <T> List<T> runConcurrently(List<Job<T>> jobs) throws Throwable {
+        List<FutureTask<T>> tasks = new ArrayList<>();
+        for (Job<T> job : jobs)
+            tasks.add(new FutureTask<>(() -> {
+                try {
+                    return job.call();
+                } catch (Throwable e) {
+                    throw new ExecutionException(e);
+                }
+            }));
+        for (int i = 1; i < tasks.size(); i++) {
+            try {
+                SearchExecutor.shared().execute(tasks.get(i));
+            } catch (RejectedExecutionException e) {
+            }
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (FutureTask<T> task : tasks) {
+                task.run();
+                results.add(task.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause().getCause();
+        } finally {
+            for (FutureTask<T> task : tasks)
+                task.cancel(true);
+        }
+        return results;
+    }
+
+    private Map<String, KeySet> filterKeys(ComposedQuery query) throws Throwable {
+        Map<String, KeySet> keys = new HashMap<String, KeySet>();
 
         if (query.relationalFilter != null) {
             String keyName = query.keyName(query.resultsFrom, query.resultsFrom);  // Note: this relies heavily on the RelationalQuery to return the right keys (semantically)
             RelationalQuery rq = ((WrappedRelationalQuery) query.relationalFilter).relationalQuery;
             KeyBits relationalFilterKeys = rq.collectKeys(this.lucenes);
-            FixedBitSet collectedKeys = relationalFilterKeys.getBitSet(this.lucenes.get(query.resultsFrom), keyName);
-            keys.put(keyName, collectedKeys.clone());
+            keys.put(keyName, relationalFilterKeys.getKeySet(this.lucenes.get(query.resultsFrom), keyName));
             return keys;
         }
 
@@ -209,10 +292,10 @@ public class MultiLucene {
             String keyNameB = query.keyName(unite.coreB, unite.coreA);
             String resultKeyName = query.resultsFrom.equals(unite.coreA) ? keyNameA : keyNameB;
 
-            FixedBitSet collectedKeys = this.collectKeys(unite.coreA, unite.queryA, query.keyName(unite.coreA, unite.coreB));
+            KeySet collectedKeys = this.collectKeys(unite.coreA, unite.queryA, query.keyName(unite.coreA, unite.coreB), query.queryData.timeBudget());
             this.unionCollectedKeys(keys, collectedKeys, resultKeyName);
 
-            collectedKeys = this.collectKeys(unite.coreB, unite.queryB, query.keyName(unite.coreB, unite.coreA));
+            collectedKeys = this.collectKeys(unite.coreB, unite.queryB, query.keyName(unite.coreB, unite.coreA), query.queryData.timeBudget());
             this.unionCollectedKeys(keys, collectedKeys, resultKeyName);
         }
 
@@ -220,52 +303,55 @@ public class MultiLucene {
             for (Query q : query.filterQueries.get(core)) {
                 String keyNameResult = query.keyName(query.resultsFrom, core);
                 String keyNameOther = query.keyName(core, query.resultsFrom);
-                FixedBitSet collectedKeys = this.collectKeys(core, q, keyNameOther);
+                KeySet collectedKeys = this.collectKeys(core, q, keyNameOther, query.queryData.timeBudget());
                 if (keys.containsKey(keyNameResult)) {
-                    keys.get(keyNameResult).and(collectedKeys);
+                    keys.put(keyNameResult, keys.get(keyNameResult).and(collectedKeys));
                 }
                 else {
-                    keys.put(keyNameResult, collectedKeys.clone());
+                    keys.put(keyNameResult, collectedKeys);
                 }
             }
         }
         return keys;
     }
 
-    private Map<String, FixedBitSet> excludeFilterKeys(ComposedQuery query) throws Throwable {
-        Map<String, FixedBitSet> keys = new HashMap<String, FixedBitSet>();
+    /**
+     * Exclude keys are collected without the time budget: a cut short set
+     * would let excluded records through, which is a wrong answer rather
+     * than a partial one.
+     */
+    private Map<String, KeySet> excludeFilterKeys(ComposedQuery query) throws Throwable {
+        Map<String, KeySet> keys = new HashMap<String, KeySet>();
 
         for (String core : query.excludeFilterQueries.keySet()) {
             for (Query q : query.excludeFilterQueries.get(core)) {
                 String keyNameResult = query.keyName(query.resultsFrom, core);
                 String keyNameOther = query.keyName(core, query.resultsFrom);
-                FixedBitSet collectedKeys = this.collectKeys(core, q, keyNameOther);
+                KeySet collectedKeys = this.collectKeys(core, q, keyNameOther, null);
                 if (keys.containsKey(keyNameResult)) {
-                    keys.get(keyNameResult).and(collectedKeys);
+                    keys.put(keyNameResult, keys.get(keyNameResult).and(collectedKeys));
                 }
                 else {
-                    keys.put(keyNameResult, collectedKeys.clone());
+                    keys.put(keyNameResult, collectedKeys);
                 }
             }
         }
         return keys;
     }
 
-    private FixedBitSet collectKeys(String coreName, Query query, String keyName) throws Throwable {
+    private KeySet collectKeys(String coreName, Query query, String keyName, TimeBudget budget) throws Throwable {
         if (query != null && query instanceof WrappedRelationalQuery) {
             RelationalQuery rq = ((WrappedRelationalQuery) query).relationalQuery;
             query = rq.collectKeys(this.lucenes).keyFilterFor(keyName);
         }
-        return this.lucenes.get(coreName).collectKeys(query, keyName, null);
+        return this.lucenes.get(coreName).collectKeys(query, keyName, null, true, budget);
     }
 
-    private void unionCollectedKeys(Map<String, FixedBitSet> keys, FixedBitSet collectedKeys, String keyName) {
-        if (keys.containsKey(keyName)) {
-            FixedBitSet bitSet = FixedBitSet.ensureCapacity(keys.get(keyName), collectedKeys.length());
-            bitSet.or(collectedKeys);
-            keys.put(keyName, bitSet);
-        } else
-            keys.put(keyName, collectedKeys.clone());
+    private void unionCollectedKeys(Map<String, KeySet> keys, KeySet collectedKeys, String keyName) {
+        if (keys.containsKey(keyName))
+            keys.put(keyName, keys.get(keyName).or(collectedKeys));
+        else
+            keys.put(keyName, collectedKeys);
     }
 
     private Query luceneQueryForCore(String coreName, ComposedQuery query) throws Exception {
@@ -276,13 +362,13 @@ public class MultiLucene {
         return luceneQuery;
     }
 
-    private Map<String, FixedBitSet> coreQueries(String coreName, String otherCoreName, ComposedQuery query, Map<String, FixedBitSet> keysForKeyName) throws Throwable {
+    private Map<String, KeySet> coreQueries(String coreName, String otherCoreName, ComposedQuery query, Map<String, KeySet> keysForKeyName) throws Throwable {
         Query luceneQuery = this.luceneQueryForCore(coreName, query);
         if (luceneQuery != null) {
-            FixedBitSet collectedKeys = this.lucenes.get(coreName).collectKeys(null, query.keyName(coreName, otherCoreName), luceneQuery, false);
+            KeySet collectedKeys = this.lucenes.get(coreName).collectKeys(null, query.keyName(coreName, otherCoreName), luceneQuery, false, query.queryData.timeBudget());
             String otherKeyName = query.keyName(otherCoreName, coreName);
             if (keysForKeyName.containsKey(otherKeyName))
-                keysForKeyName.get(otherKeyName).and(collectedKeys);
+                keysForKeyName.put(otherKeyName, keysForKeyName.get(otherKeyName).and(collectedKeys));
             else
                 keysForKeyName.put(otherKeyName, collectedKeys);
         }
@@ -319,4 +405,8 @@ public class MultiLucene {
         }
         return aggregateScoreCollectors;
     }
+
+    private interface Job<T> {
+        T call() throws Throwable;
+    }
 }
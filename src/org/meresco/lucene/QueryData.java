@@ -35,6 +35,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.meresco.lucene.JsonQueryConverter.FacetRequest;
 import org.meresco.lucene.JsonQueryConverter.SuggestionRequest;
+import org.meresco.lucene.search.TimeBudget;
 
 import javax.json.*;
 
@@ -51,6 +52,9 @@ public class QueryData {
     public String dedupSortFields[];
     public boolean clustering;
     public ClusterConfig clusterConfig;
+    public int totalHitsThreshold = Integer.MAX_VALUE;
+    public int facetSampleSize = 0;
+    private TimeBudget timeBudget;
 
     public QueryData(Reader queryReader, JsonQueryConverter converter) {
         JsonObject object = Json.createReader(queryReader).readObject();
@@ -67,12 +71,30 @@ public class QueryData {
         getDedupSortFieldsFromJson(object, "dedupSortField");
         this.clustering = object.getBoolean("clustering", false);
         this.clusterConfig = ClusterConfig.parseFromJsonObject(object);
+        setTimeAllowed(object.getInt("timeAllowed", 0));
+        this.totalHitsThreshold = object.getInt("totalHitsThreshold", Integer.MAX_VALUE);
+        this.facetSampleSize = object.getInt("facetSampleSize", 0);
     }
 
     public QueryData() {
 
     }
 
+    /**
+     * Starts the budget for the request, so it is counted from when the
+     * request was parsed and all searches for it share one. 0 is no budget.
+     */
+    public void setTimeAllowed(int timeAllowed) {
+        this.timeBudget = timeAllowed > 0 ? new TimeBudget(timeAllowed) : null;
+    }
+
+    /**
+     * Returns null when no timeAllowed (milliseconds) was given.
+     */
+    public TimeBudget timeBudget() {
+        return this.timeBudget;
+    }
+
     public void getDedupSortFieldsFromJson(JsonObject object, String fieldName) {
         JsonValue v = object.get(fieldName);
         if (v!=null) {
@@ -42,6 +42,7 @@ import java.util.Formatter;
 import java.util.List;
 
 import org.apache.lucene.util.FixedBitSet;
+import org.meresco.lucene.search.join.KeySet;
 
 
 public class Utils {
@@ -125,36 +126,60 @@ public class Utils {
         dos.flush();
     }
 
+    public static KeySet readKeySet(InputStream input) throws IOException {
+        return KeySet.readFrom(new DataInputStream(input));
+    }
+
+    public static void writeKeySet(KeySet keySet, OutputStream output) throws IOException {
+        DataOutputStream dos = new DataOutputStream(output);
+        keySet.writeTo(dos);
+        dos.flush();
+    }
+
     public static void assertTrue(boolean b, String message) {
         if (!b) {
             System.err.println(message);
         }
     }
 
-    // Modelled after SmallFloat.floatToByte from the Lucene core library
-    // mantissa=11 bits and zeroExp=20
-    // result is an int where the 2 least significant bytes contain the result
-    // range of this float is 9.5414E-7 to 4095.0
-    public static int floatToInt1120(float f) {
-        int fzero = (127-20) << 11;
+    // IEEE 754 half precision, rounded to nearest; scores only, so negative
+    // values and NaN become 0, positive values too small for a half become
+    // the smallest half (0 stays reserved for no score) and values above
+    // 65504.0 become 65504.0
+    public static short floatToHalf(float f) {
+        if (!(f > 0))
+            return 0;
         int bits = Float.floatToRawIntBits(f);
-        int smallfloat = bits >> (23-11);
-        if (smallfloat <= fzero) {
-            return (bits <= 0) ? 0 : 1;
-        } else if (smallfloat > fzero + 0xffff) {
-            return 0xffff;
+        int exp = (bits >>> 23) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+        if (exp >= 0x1f)
+            return 0x7bff;
+        int half, shift;
+        if (exp <= 0) {
+            if (exp < -10)
+                return 1;
+            mantissa |= 0x800000;
+            shift = 14 - exp;
+            half = mantissa >>> shift;
         } else {
-            return (smallfloat - fzero);
+            shift = 13;
+            half = exp << 10 | mantissa >>> shift;
         }
+        int rest = mantissa & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        if (rest > halfway || (rest == halfway && (half & 1) != 0))
+            half++;
+        return (short) Math.max(1, Math.min(half, 0x7bff));
     }
 
-    // Modelled after SmallFloat.byteToFloat from the Lucene core library
-    // mantissa=11 bits and zeroExp=20
-    // reverses the conversion as done by floatToInt1115
-    public static float int1120ToFloat(int b) {
-        if (b == 0) return 0.0f;
-        int bits = (b & 0xffff) << (23-11);
-        bits += (127-20) << 23;
-        return Float.intBitsToFloat(bits);
+    public static float halfToFloat(short h) {
+        int exp = (h >>> 10) & 0x1f;
+        int mantissa = h & 0x3ff;
+        float f;
+        if (exp == 0)
+            f = mantissa * 0x1p-24f;
+        else
+            f = Float.intBitsToFloat((exp - 15 + 127) << 23 | mantissa << 13);
+        return (h & 0x8000) == 0 ? f : -f;
     }
 }
@@ -34,6 +34,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.meresco.lucene.Lucene.SearchRejectedException;
 import org.meresco.lucene.Lucene.UninitializedException;
 import org.meresco.lucene.OutOfMemoryShutdown;
 import org.meresco.lucene.Utils;
@@ -59,6 +60,12 @@ public abstract class AbstractMerescoLuceneHandler extends AbstractHandler {
             response.getWriter().write("Lucene cores should be initialized first. Send a request to /'core-name'/settings to initialize.");
             baseRequest.setHandled(true);
             return;
+        } catch (SearchRejectedException e) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", String.valueOf(e.retryAfter));
+            response.getWriter().write("Too many concurrent searches, try again later.");
+            baseRequest.setHandled(true);
+            return;
         } catch (Throwable e) {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             response.getWriter().write(Utils.getStackTrace(e));
@@ -0,0 +1,58 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.http;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.meresco.lucene.Lucene;
+import org.meresco.lucene.OutOfMemoryShutdown;
+
+
+/**
+ * POST starts adding __id__ doc values to documents indexed without them,
+ * in the background; 409 when that is running already. GET tells whether
+ * it runs and how many documents it updated.
+ */
+public class BackfillHandler extends AbstractMerescoLuceneHandler {
+    private Lucene lucene;
+
+    public BackfillHandler(Lucene lucene, OutOfMemoryShutdown shutdown) {
+        super(shutdown);
+        this.lucene = lucene;
+    }
+
+    @Override
+    public void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        if ("POST".equals(request.getMethod())) {
+            response.setStatus(this.lucene.startBackfillIdentifiers() ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_CONFLICT);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.getWriter().write(this.lucene.backfillStatus().toString());
+    }
+}
@@ -32,6 +32,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.meresco.lucene.ComposedQuery;
 import org.meresco.lucene.LuceneResponse;
+import org.meresco.lucene.Metrics;
 import org.meresco.lucene.MultiLucene;
 import org.meresco.lucene.OutOfMemoryShutdown;
 
@@ -55,14 +56,20 @@ public class ComposedQueryHandler extends AbstractMerescoLuceneHandler {
             t.printStackTrace();
             throw t;
         }
+        AutoCloseable admission = this.multiLucene.admitQuery(q);
         try {
             luceneResponse = this.multiLucene.executeComposedQuery(q);
         } catch (Throwable t) {
             t.printStackTrace();
             throw t;
+        } finally {
+            admission.close();
         }
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("application/json");
-        response.getWriter().write(luceneResponse.toJson().toString());
+        long t0 = System.nanoTime();
+        String json = luceneResponse.toJson().toString();
+        Metrics.record("toJson", System.nanoTime() - t0);
+        response.getWriter().write(json);
     }
 }
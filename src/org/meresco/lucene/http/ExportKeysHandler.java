@@ -56,11 +56,14 @@ public class ExportKeysHandler extends AbstractMerescoLuceneHandler {
             t.printStackTrace();
             throw t;
         }
+        AutoCloseable admission = this.multiLucene.admitQuery(q);
         try {
             luceneResponse = this.multiLucene.executeComposedQuery(q, exportKey);
         } catch (Throwable t) {
             t.printStackTrace();
             throw t;
+        } finally {
+            admission.close();
         }
         if (luceneResponse.keys == null) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -70,6 +73,10 @@ public class ExportKeysHandler extends AbstractMerescoLuceneHandler {
         }
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("application/octet-stream");
-        Utils.writeFixedBitSet(luceneResponse.keys, response.getOutputStream());
+        // format=keyset sends the compressed KeySet; the default FixedBitSet grows with the largest key
+        if ("keyset".equals(request.getParameter("format")))
+            Utils.writeKeySet(luceneResponse.keys, response.getOutputStream());
+        else
+            Utils.writeFixedBitSet(luceneResponse.keys.toFixedBitSet(), response.getOutputStream());
     }
 }
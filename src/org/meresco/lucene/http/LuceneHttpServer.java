@@ -50,6 +50,10 @@ import org.meresco.lucene.LuceneShutdown;
 import org.meresco.lucene.MultiLucene;
 import org.meresco.lucene.OutOfMemoryShutdown;
 import org.meresco.lucene.numerate.TermNumerator;
+import org.meresco.lucene.queries.KeyFilterCache;
+import org.meresco.lucene.search.FacetOrdinalsCache;
+import org.meresco.lucene.search.SearchExecutor;
+import org.meresco.lucene.search.join.KeyValuesCache;
 
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -74,6 +78,30 @@ public class LuceneHttpServer {
         option.setRequired(true);
         options.addOption(option);
 
+        option = new Option(null, "searchThreads", true, "Number of search threads shared by all cores (default 100)");
+        option.setType(Integer.class);
+        options.addOption(option);
+
+        option = new Option(null, "searchQueueSize", true, "Number of queued search tasks before queries are refused (default 1000)");
+        option.setType(Integer.class);
+        options.addOption(option);
+
+        option = new Option(null, "retryAfter", true, "Seconds clients are asked to wait after a refused query (default 1)");
+        option.setType(Integer.class);
+        options.addOption(option);
+
+        option = new Option(null, "keyFilterCacheSize", true, "Megabytes for the key filter DocIdSets cached for all cores (default 64)");
+        option.setType(Integer.class);
+        options.addOption(option);
+
+        option = new Option(null, "facetOrdinalsCacheSize", true, "Megabytes (off-heap) for the facet ordinals cached for all cores (default 256)");
+        option.setType(Integer.class);
+        options.addOption(option);
+
+        option = new Option(null, "keyValuesCacheSize", true, "Megabytes for the packed join keys cached for all cores (default 1024)");
+        option.setType(Integer.class);
+        options.addOption(option);
+
         PosixParser parser = new PosixParser();
         CommandLine commandLine = null;
         try {
@@ -87,12 +115,23 @@ public class LuceneHttpServer {
         Integer port = new Integer(commandLine.getOptionValue("p"));
         String storeLocation = commandLine.getOptionValue("d");
         String[] cores = commandLine.getOptionValues("core");
+        int searchThreads = Integer.parseInt(commandLine.getOptionValue("searchThreads", "100"));
+        int searchQueueSize = Integer.parseInt(commandLine.getOptionValue("searchQueueSize", "1000"));
+        int retryAfter = Integer.parseInt(commandLine.getOptionValue("retryAfter", "1"));
+        int keyFilterCacheSize = Integer.parseInt(commandLine.getOptionValue("keyFilterCacheSize", "64"));
+        int facetOrdinalsCacheSize = Integer.parseInt(commandLine.getOptionValue("facetOrdinalsCacheSize", "256"));
+        int keyValuesCacheSize = Integer.parseInt(commandLine.getOptionValue("keyValuesCacheSize", "1024"));
 
         if (Charset.defaultCharset() != Charset.forName("UTF-8")) {
         System.err.println("file.encoding must be UTF-8.");
             System.exit(1);
         }
 
+        SearchExecutor.shared().configure(searchThreads, searchQueueSize, retryAfter);
+        KeyFilterCache.shared().setMaxBytes(keyFilterCacheSize * 1024L * 1024L);
+        FacetOrdinalsCache.shared().setMaxBytes(facetOrdinalsCacheSize * 1024L * 1024L);
+        KeyValuesCache.shared().setMaxBytes(keyValuesCacheSize * 1024L * 1024L);
+
         TermNumerator termNumerator = new TermNumerator(Paths.get(storeLocation, "keys-termnumerator"));
         ContextHandlerCollection contexts = new ContextHandlerCollection();
         List<Lucene> lucenes = new ArrayList<Lucene>();
@@ -122,6 +161,10 @@ public class LuceneHttpServer {
             context.setHandler(new DeleteHandler(lucene, shutdown));
             contexts.addHandler(context);
 
+            context = new ContextHandler("/" + core + "/backfillIdentifiers");
+            context.setHandler(new BackfillHandler(lucene, shutdown));
+            contexts.addHandler(context);
+
             context = new ContextHandler("/" + core + "/settings");
             context.setHandler(new SettingsHandler(lucene, shutdown));
             contexts.addHandler(context);
@@ -135,11 +178,11 @@ public class LuceneHttpServer {
             contexts.addHandler(context);
         }
         ContextHandler composedQueryHandler = new ContextHandler("/query");
-        composedQueryHandler.setHandler(new ComposedQueryHandler(new MultiLucene(lucenes), shutdown));
+        composedQueryHandler.setHandler(new ComposedQueryHandler(new MultiLucene(lucenes, termNumerator::size), shutdown));
         contexts.addHandler(composedQueryHandler);
 
         ContextHandler exportKeysHandler = new ContextHandler("/exportkeys");
-        exportKeysHandler.setHandler(new ExportKeysHandler(new MultiLucene(lucenes), shutdown));
+        exportKeysHandler.setHandler(new ExportKeysHandler(new MultiLucene(lucenes, termNumerator::size), shutdown));
         contexts.addHandler(exportKeysHandler);
 
         ContextHandler numerateHandler = new ContextHandler("/numerate");
@@ -150,6 +193,10 @@ public class LuceneHttpServer {
         commitHandler.setHandler(new CommitHandler(termNumerator, lucenes, shutdown));
         contexts.addHandler(commitHandler);       
 
+        ContextHandler metricsHandler = new ContextHandler("/metrics");
+        metricsHandler.setHandler(new MetricsHandler(shutdown));
+        contexts.addHandler(metricsHandler);
+
         registerShutdownHandler(shutdown);
 
         server.setHandler(contexts);
@@ -34,6 +34,9 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.meresco.lucene.Lucene;
 import org.meresco.lucene.OutOfMemoryShutdown;
+import org.meresco.lucene.queries.KeyFilterCache;
+import org.meresco.lucene.search.FacetOrdinalsCache;
+import org.meresco.lucene.search.join.KeyValuesCache;
 
 public class OtherHandler extends AbstractMerescoLuceneHandler {
 
@@ -71,6 +74,24 @@ public class OtherHandler extends AbstractMerescoLuceneHandler {
                     builder.add(fieldname);
                 result = builder.build().toString();
                 break;
+            case "/keyFilterCache/":
+                result = KeyFilterCache.shared().statsAsJson().toString();
+                break;
+            case "/facetOrdinalsCache/":
+                result = FacetOrdinalsCache.shared().statsAsJson().toString();
+                break;
+            case "/keyValuesCache/":
+                result = KeyValuesCache.shared().statsAsJson().toString();
+                break;
+            case "/facetResultCache/":
+                result = lucene.facetResultCacheStats().toString();
+                break;
+            case "/keyCollectorCache/":
+                result = lucene.keyCollectorCacheStats().toString();
+                break;
+            case "/scoreCollectorCache/":
+                result = lucene.scoreCollectorCacheStats().toString();
+                break;
             case "/similarDocuments/":
                 String identifier = request.getParameter("identifier");
                 result = this.lucene.similarDocuments(identifier).toJson().toString();
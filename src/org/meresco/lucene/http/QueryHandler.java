@@ -32,8 +32,10 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.meresco.lucene.Lucene;
 import org.meresco.lucene.LuceneResponse;
+import org.meresco.lucene.Metrics;
 import org.meresco.lucene.OutOfMemoryShutdown;
 import org.meresco.lucene.QueryData;
+import org.meresco.lucene.search.SearchExecutor;
 
 
 public class QueryHandler extends AbstractMerescoLuceneHandler {
@@ -48,9 +50,17 @@ public class QueryHandler extends AbstractMerescoLuceneHandler {
     public void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Throwable {
         LuceneResponse luceneResponse = new LuceneResponse(0);
         QueryData q = new QueryData(request.getReader(), this.lucene.getQueryConverter());
-        luceneResponse = this.lucene.executeQuery(q, null, null, null, null, null);
+        SearchExecutor.Admission admission = this.lucene.admitQuery();
+        try {
+            luceneResponse = this.lucene.executeQuery(q, null, null, null, null, null);
+        } finally {
+            admission.close();
+        }
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("application/json");
-        response.getWriter().write(luceneResponse.toJson().toString());
+        long t0 = System.nanoTime();
+        String json = luceneResponse.toJson().toString();
+        Metrics.record("toJson", System.nanoTime() - t0);
+        response.getWriter().write(json);
     }
 }
@@ -47,9 +47,12 @@ public class SettingsHandler extends AbstractMerescoLuceneHandler {
     public void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
         LuceneSettings settings = lucene.hasSettings() ? lucene.getSettings() : new LuceneSettings();
         if (request.getMethod() == "POST") {
-            settings.updateSettings(request.getReader());
-            if (! lucene.hasSettings())
+            if (lucene.hasSettings())
+                lucene.updateSettings(request.getReader());
+            else {
+                settings.updateSettings(request.getReader());
                 lucene.initSettings(settings);
+            }
         } else {
             response.setContentType("application/json");
             response.getWriter().write(settings.asJson().toString());
@@ -28,18 +28,26 @@
 package org.meresco.lucene.queries;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.ConstantScoreScorer;
 import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RoaringDocIdSet;
+import org.meresco.lucene.search.join.KeySet;
+import org.meresco.lucene.search.join.KeyValues;
 import org.meresco.lucene.search.join.KeyValuesCache;
 
 
@@ -47,6 +55,7 @@ public class KeyFilter extends Query {
     final private String keyName;
     final private Bits keySet;
     final private boolean inverted;
+    private volatile long[] fingerprint;
 
     public KeyFilter(Bits keySet, String keyName, boolean inverted) {
         this.keySet = keySet;
@@ -58,71 +67,147 @@ public class KeyFilter extends Query {
         this(keySet, keyName, false);
     }
 
+    /**
+     * The cost of a segment is estimated from the density of the key set, so
+     * a selective query can lead a conjunction. When another clause leads, the
+     * filter only verifies its candidates through a TwoPhaseIterator. When it
+     * leads itself, the matching docs of the segment are collected once into
+     * a DocIdSet with an exact cost, which is kept in the KeyFilterCache for
+     * later requests with the same key set. A leaf split into doc id ranges
+     * gets a scorer per range; the DocIdSet is built once per leaf for all of
+     * them, also when the KeyFilterCache does not keep it.
+     */
     @Override
     public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) {
+        final double density = density();
+        final long[] fingerprint = fingerprint();
+        final KeyFilterCache cache = KeyFilterCache.shared();
+        final Map<Integer, DocIdSet> docIdSets = new ConcurrentHashMap<>();
         return new ConstantScoreWeight(this, 1.0f) {  // simply ignore boost for filtering (javadoc suggests something else, but then not cachable...?!?)
             @Override
-            public Scorer scorer(LeafReaderContext context) throws IOException {
-                return new ConstantScoreScorer(this, score(), ScoreMode.COMPLETE_NO_SCORES, new DocIdSetIterator() {
-                    private int[] keyValuesArray = KeyValuesCache.get(context, keyName);
-                    private int maxDoc = context.reader().maxDoc();
-                    int docId = -1;
-
-                    @Override
-                    public int docID() {
-                       return this.docId;
-                    }
-
-                    @Override
-                    public int nextDoc() throws IOException {
-                        this.docId++;
-                        if (keyValuesArray != null) {
-                            try {
-                                if (!inverted) {
-                                    while (this.docId < this.maxDoc) {
-                                        int key = this.keyValuesArray[this.docId];
-                                        if (keySet.length() > key && keySet.get(key)) {
-                                            return this.docId;
-                                        }
-                                        this.docId++;
-                                    }
-                                }
-                                else {
-                                    while (this.docId < this.maxDoc) {
-                                        int key = this.keyValuesArray[this.docId];
-                                        if (keySet.length() <= key || !keySet.get(key)) {
-                                            return this.docId;
-                                        }
-                                        this.docId++;
-                                    }
-                                }
-                            } catch (IndexOutOfBoundsException e) {
-                            }
+            public ScorerSupplier scorerSupplier(LeafReaderContext context) throws IOException {
+                if (density == 0 && !inverted)
+                    return null;
+                final Weight weight = this;
+                final KeyFilterCache.Key cacheKey = fingerprint == null ? null : cache.key(keyName, inverted, fingerprint, context.reader());
+                final DocIdSet cached = cacheKey == null ? null : cache.get(cacheKey);
+                if (cached != null) {
+                    final DocIdSetIterator iterator = iterator(cached);
+                    return new ScorerSupplier() {
+                        @Override
+                        public Scorer get(long leadCost) throws IOException {
+                            return new ConstantScoreScorer(weight, score(), ScoreMode.COMPLETE_NO_SCORES, iterator);
                         }
-                        this.docId = DocIdSetIterator.NO_MORE_DOCS;
-                        return this.docId;
-                    }
 
+                        @Override
+                        public long cost() {
+                            return iterator.cost();
+                        }
+                    };
+                }
+                final KeyValues keyValues = KeyValuesCache.get(context, keyName);
+                if (keyValues == null)
+                    return null;
+                final int maxDoc = context.reader().maxDoc();
+                return new ScorerSupplier() {
                     @Override
-                    public int advance(int target) throws IOException {
-                        this.docId = target - 1;
-                        return nextDoc();
+                    public Scorer get(long leadCost) throws IOException {
+                        if (leadCost < cost())
+                            return new ConstantScoreScorer(weight, score(), ScoreMode.COMPLETE_NO_SCORES, twoPhaseIterator(keyValues, maxDoc));
+                        DocIdSet docIdSet = docIdSets.computeIfAbsent(context.ord, ord -> {
+                            DocIdSet built = docIdSet(keyValues, maxDoc);
+                            if (cacheKey != null)
+                                cache.put(cacheKey, built);
+                            return built;
+                        });
+                        return new ConstantScoreScorer(weight, score(), ScoreMode.COMPLETE_NO_SCORES, iterator(docIdSet));
                     }
 
                     @Override
                     public long cost() {
-                        return 1L;
+                        return inverted ? maxDoc : (long) Math.ceil(maxDoc * density);
                     }
-               });
-           }
+                };
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                ScorerSupplier supplier = scorerSupplier(context);
+                return supplier == null ? null : supplier.get(Long.MAX_VALUE);
+            }
 
             @Override
             public boolean isCacheable(LeafReaderContext ctx) {
-                return true;
+                return false;  // the KeyFilterCache does this, without keeping the key sets
             }
        };
     }
 
+    /**
+     * Equal for filters on the same keys, like the keys of the
+     * KeyFilterCache, without keeping the key set. Null when the keys can
+     * not be fingerprinted.
+     */
+    public Object cacheKey() {
+        long[] fingerprint = fingerprint();
+        return fingerprint == null ? null : new KeyFilterCache.Key(this.keyName, this.inverted, fingerprint, null, null);
+    }
+
+    private long[] fingerprint() {
+        if (this.fingerprint == null && this.keySet instanceof KeySet)
+            this.fingerprint = KeyFilterCache.fingerprint((KeySet) this.keySet);
+        else if (this.fingerprint == null && this.keySet instanceof FixedBitSet)
+            this.fingerprint = KeyFilterCache.fingerprint((FixedBitSet) this.keySet);
+        return this.fingerprint;
+    }
+
+    private double density() {
+        if (this.keySet instanceof KeySet) {
+            KeySet keySet = (KeySet) this.keySet;
+            return keySet.length() == 0 ? 0 : (double) keySet.cardinality() / keySet.length();
+        }
+        if (!(this.keySet instanceof FixedBitSet))
+            return 1.0;
+        FixedBitSet bitSet = (FixedBitSet) this.keySet;
+        return bitSet.length() == 0 ? 0 : (double) bitSet.cardinality() / bitSet.length();
+    }
+
+    private boolean matches(int key) {
+        boolean inKeySet = key < this.keySet.length() && this.keySet.get(key);
+        return inKeySet != this.inverted;
+    }
+
+    private TwoPhaseIterator twoPhaseIterator(final KeyValues keyValues, int maxDoc) {
+        return new TwoPhaseIterator(DocIdSetIterator.all(maxDoc)) {
+            @Override
+            public boolean matches() throws IOException {
+                return KeyFilter.this.matches(keyValues.get(this.approximation.docID()));
+            }
+
+            @Override
+            public float matchCost() {
+                return 2;  // a packed and a bit set lookup
+            }
+        };
+    }
+
+    /**
+     * DocIdSet.iterator() is null for sets without docs, a Scorer needs one.
+     */
+    private static DocIdSetIterator iterator(DocIdSet docIdSet) throws IOException {
+        DocIdSetIterator iterator = docIdSet.iterator();
+        return iterator == null ? DocIdSetIterator.empty() : iterator;
+    }
+
+    private DocIdSet docIdSet(KeyValues keyValues, int maxDoc) {
+        RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(maxDoc);
+        for (int docId = 0; docId < maxDoc; docId++) {
+            if (matches(keyValues.get(docId)))
+                builder.add(docId);
+        }
+        return builder.build();
+    }
+
     @Override
     public String toString(String field) {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,249 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.queries;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.FixedBitSet;
+import org.meresco.lucene.search.join.KeySet;
+
+/**
+ * DocIdSets of KeyFilters per segment, shared by all queries and cores.
+ * MultiLucene creates new KeyFilters for every request, so instead of the
+ * filter itself the cache key is the key name with a 128 bit fingerprint of
+ * the key set and the core of the segment. Least recently used sets are
+ * evicted when the sets together use more than maxBytes; all sets of a
+ * segment go when the segment is closed.
+ */
+public class KeyFilterCache {
+    private static KeyFilterCache shared;
+
+    private final Map<Key, DocIdSet> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<IndexReader.CacheKey> segments = new HashSet<>();
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public KeyFilterCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized KeyFilterCache shared() {
+        if (shared == null)
+            shared = new KeyFilterCache(64 * 1024 * 1024);
+        return shared;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    /**
+     * Returns null when the segment can not be cached.
+     */
+    Key key(String keyName, boolean inverted, long[] fingerprint, LeafReader reader) {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+        if (helper == null)
+            return null;
+        return new Key(keyName, inverted, fingerprint, helper.getKey(), helper);
+    }
+
+    synchronized DocIdSet get(Key key) {
+        DocIdSet docIdSet = this.cache.get(key);
+        if (docIdSet == null)
+            this.misses++;
+        else
+            this.hits++;
+        return docIdSet;
+    }
+
+    synchronized void put(Key key, DocIdSet docIdSet) {
+        long size = docIdSet.ramBytesUsed();
+        if (size > this.maxBytes)
+            return;
+        if (this.segments.add(key.segment)) {
+            try {
+                key.helper.addClosedListener(this::clearSegment);
+            } catch (AlreadyClosedException e) {
+                this.segments.remove(key.segment);
+                return;
+            }
+        }
+        DocIdSet old = this.cache.put(key, docIdSet);
+        if (old != null)
+            this.bytes -= old.ramBytesUsed();
+        this.bytes += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, DocIdSet>> entries = this.cache.entrySet().iterator();
+        while (this.bytes > this.maxBytes && entries.hasNext()) {
+            this.bytes -= entries.next().getValue().ramBytesUsed();
+            entries.remove();
+            this.evictions++;
+        }
+    }
+
+    synchronized void clearSegment(IndexReader.CacheKey segment) {
+        this.segments.remove(segment);
+        Iterator<Map.Entry<Key, DocIdSet>> entries = this.cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, DocIdSet> entry = entries.next();
+            if (entry.getKey().segment == segment) {
+                this.bytes -= entry.getValue().ramBytesUsed();
+                entries.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.cache.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized JsonObject statsAsJson() {
+        return Json.createObjectBuilder()
+                .add("entries", this.cache.size())
+                .add("ramBytesUsed", this.bytes)
+                .add("maxBytes", this.maxBytes)
+                .add("hits", this.hits)
+                .add("misses", this.misses)
+                .add("evictions", this.evictions)
+                .build();
+    }
+
+    /**
+     * MurmurHash3 (x64, 128 bits) of the words of the bit set. Trailing zero
+     * words are left out, so key sets that only differ in length match.
+     */
+    static long[] fingerprint(FixedBitSet bitSet) {
+        long[] words = bitSet.getBits();
+        int n = FixedBitSet.bits2words(bitSet.length());
+        while (n > 0 && words[n - 1] == 0)
+            n--;
+        Fingerprint fingerprint = new Fingerprint();
+        for (int i = 0; i < n; i++)
+            fingerprint.accept(words[i]);
+        return fingerprint.finish();
+    }
+
+    static long[] fingerprint(KeySet keySet) {
+        Fingerprint fingerprint = new Fingerprint();
+        keySet.forEachWord(fingerprint);
+        return fingerprint.finish();
+    }
+
+    private static class Fingerprint implements LongConsumer {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+        private long h1;
+        private long h2;
+        private long pending;
+        private long n;
+
+        @Override
+        public void accept(long word) {
+            if ((this.n++ & 1) == 0) {
+                this.pending = word;
+                return;
+            }
+            this.h1 ^= Long.rotateLeft(this.pending * C1, 31) * C2;
+            this.h1 = (Long.rotateLeft(this.h1, 27) + this.h2) * 5 + 0x52dce729;
+            this.h2 ^= Long.rotateLeft(word * C2, 33) * C1;
+            this.h2 = (Long.rotateLeft(this.h2, 31) + this.h1) * 5 + 0x38495ab5;
+        }
+
+        long[] finish() {
+            long h1 = this.h1;
+            long h2 = this.h2;
+            if ((this.n & 1) == 1)
+                h1 ^= Long.rotateLeft(this.pending * C1, 31) * C2;
+            h1 ^= this.n * 8L;
+            h2 ^= this.n * 8L;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new long[] {h1, h2};
+        }
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    static class Key {
+        final String keyName;
+        final boolean inverted;
+        final long[] fingerprint;
+        final IndexReader.CacheKey segment;
+        final IndexReader.CacheHelper helper;
+
+        Key(String keyName, boolean inverted, long[] fingerprint, IndexReader.CacheKey segment, IndexReader.CacheHelper helper) {
+            this.keyName = keyName;
+            this.inverted = inverted;
+            this.fingerprint = fingerprint;
+            this.segment = segment;
+            this.helper = helper;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.segment == other.segment && this.inverted == other.inverted && this.keyName.equals(other.keyName)
+                    && this.fingerprint[0] == other.fingerprint[0] && this.fingerprint[1] == other.fingerprint[1];
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(this.segment) + this.keyName.hashCode()) + Long.hashCode(this.fingerprint[0]);
+        }
+    }
+}
@@ -91,7 +91,15 @@ public class DeDupFilterSuperCollector extends SuperCollector<DeDupFilterSubColl
 
     public DeDupFilterSuperCollector.Key keyForDocId(int docId) throws IOException {
         if (this.topLevelReaderContext == null) {
-            this.topLevelReaderContext = ReaderUtil.getTopLevelContext(super.subs.get(0).context);
+            for (DeDupFilterSubCollector sub : super.subs) {
+                // not every SubCollector necessarily got a leaf to search
+                if (sub.context != null) {
+                    this.topLevelReaderContext = ReaderUtil.getTopLevelContext(sub.context);
+                    break;
+                }
+            }
+            if (this.topLevelReaderContext == null)
+                return null;
         }
 
         List<LeafReaderContext> leaves = this.topLevelReaderContext.leaves();
@@ -0,0 +1,269 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FieldValueHitQueue;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.LeafFieldComparator;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHits;
+
+
+/**
+ * Top documents with at most one document per value of keyName, the best
+ * ranked one. Documents without a key (0 or missing) are unique.
+ *
+ * Every SubCollector keeps its numHits best keys in a bounded queue, like
+ * Lucene's first pass grouping. A key in the overall top is also in the top
+ * of the SubCollector that saw its best document, so merging the queues and
+ * dropping keys already seen gives numHits unique documents in one search.
+ * Counting duplicates and choosing the document to show per key is left to
+ * DeDupFilterSuperCollector.
+ */
+public class DeDupTopDocsSuperCollector extends TopDocSuperCollector {
+    private final String keyName;
+
+    public DeDupTopDocsSuperCollector(String keyName, Sort sort, int numHits) {
+        super(sort, numHits);
+        this.keyName = keyName;
+    }
+
+    @Override
+    protected TopDocSubCollector<DeDupTopDocsSuperCollector> createSubCollector() throws IOException {
+        Sort sort = this.sort == null ? Sort.RELEVANCE : this.sort;
+        return new TopDocSubCollector<DeDupTopDocsSuperCollector>(new DeDupTopDocsCollector(this.keyName, sort, this.numHits), this);
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public TopDocs topDocs(int start) throws IOException {
+        int size = 0;
+        for (TopDocSubCollector<?> sub : this.subs)
+            size += sub.topdocs.scoreDocs.length;
+        TopDocs merged = merge(0, size);
+        Set<Long> seen = new HashSet<>();
+        List<ScoreDoc> unique = new ArrayList<>();
+        for (ScoreDoc scoreDoc : merged.scoreDocs) {
+            long key = ((DeDupTopDocsCollector.KeyFieldDoc) scoreDoc).key;
+            if (key > 0 && !seen.add(key))
+                continue;
+            unique.add(scoreDoc);
+        }
+        ScoreDoc[] scoreDocs = unique.subList(Math.min(start, unique.size()), Math.min(this.numHits, unique.size())).toArray(new ScoreDoc[0]);
+        if (merged instanceof TopFieldDocs)
+            return new TopFieldDocs(merged.totalHits, scoreDocs, ((TopFieldDocs) merged).fields);
+        return new TopDocs(merged.totalHits, scoreDocs);
+    }
+}
+
+
+class DeDupTopDocsCollector extends TopDocsCollector<DeDupTopDocsCollector.Entry> {
+    private final String keyName;
+    private final int numHits;
+    private final SortField[] sortFields;
+    private final FieldComparator<?>[] comparators;
+    private final int[] reverseMul;
+    private final boolean needsScores;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private int spareSlot;
+
+    DeDupTopDocsCollector(String keyName, Sort sort, int numHits) {
+        // one slot more than numHits: the spare slot holds the values of a
+        // document while it is compared with the one already kept for its key
+        super(FieldValueHitQueue.<Entry>create(sort.getSort(), numHits + 1));
+        this.keyName = keyName;
+        this.numHits = numHits;
+        this.sortFields = sort.getSort();
+        this.comparators = queue().getComparators();
+        this.reverseMul = queue().getReverseMul();
+        this.needsScores = sort.needsScores();
+        this.spareSlot = numHits;
+    }
+
+    private FieldValueHitQueue<Entry> queue() {
+        return (FieldValueHitQueue<Entry>) this.pq;
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return this.needsScores ? ScoreMode.COMPLETE : ScoreMode.COMPLETE_NO_SCORES;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+        final LeafFieldComparator[] leafComparators = queue().getComparators(context);
+        final NumericDocValuesRandomAccess keyValues = new NumericDocValuesRandomAccess(context.reader(), this.keyName);
+        final int docBase = context.docBase;
+        if (isFull())
+            setBottom(leafComparators);
+        return new LeafCollector() {
+            private Scorable scorer;
+
+            @Override
+            public void setScorer(Scorable scorer) throws IOException {
+                this.scorer = scorer;
+                for (LeafFieldComparator comparator : leafComparators)
+                    comparator.setScorer(scorer);
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                totalHits++;
+                if (isFull() && compareBottom(leafComparators, doc) <= 0)
+                    return;
+                long key = keyValues.get(doc);
+                Entry entry = key > 0 ? entries.get(key) : null;
+                if (entry != null) {
+                    copy(leafComparators, spareSlot, doc);
+                    if (compare(spareSlot, entry.slot) >= 0)
+                        return;
+                    queue().remove(entry);
+                    int slot = entry.slot;
+                    entry.slot = spareSlot;
+                    spareSlot = slot;
+                    entry.doc = docBase + doc;
+                    entry.score = this.score();
+                    queue().add(entry);
+                } else if (isFull()) {
+                    entry = queue().top();
+                    if (entry.key > 0)
+                        entries.remove(entry.key);
+                    copy(leafComparators, entry.slot, doc);
+                    entry.doc = docBase + doc;
+                    entry.key = key;
+                    entry.score = this.score();
+                    queue().updateTop();
+                } else {
+                    entry = new Entry(queue().size(), docBase + doc, key);
+                    copy(leafComparators, entry.slot, doc);
+                    entry.score = this.score();
+                    queue().add(entry);
+                }
+                if (key > 0)
+                    entries.put(key, entry);
+                if (isFull())
+                    setBottom(leafComparators);
+            }
+
+            private float score() throws IOException {
+                return needsScores ? this.scorer.score() : Float.NaN;
+            }
+        };
+    }
+
+    private boolean isFull() {
+        return this.pq.size() == this.numHits;
+    }
+
+    private void setBottom(LeafFieldComparator[] leafComparators) throws IOException {
+        int slot = this.pq.top().slot;
+        for (LeafFieldComparator comparator : leafComparators)
+            comparator.setBottom(slot);
+    }
+
+    private int compareBottom(LeafFieldComparator[] leafComparators, int doc) throws IOException {
+        for (int i = 0; i < leafComparators.length; i++) {
+            int c = this.reverseMul[i] * leafComparators[i].compareBottom(doc);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private void copy(LeafFieldComparator[] leafComparators, int slot, int doc) throws IOException {
+        for (LeafFieldComparator comparator : leafComparators)
+            comparator.copy(slot, doc);
+    }
+
+    /*
+     * Negative when slot1 ranks before slot2. The document in slot1 is always
+     * the later one, so a tie ranks it after.
+     */
+    private int compare(int slot1, int slot2) {
+        for (int i = 0; i < this.comparators.length; i++) {
+            int c = this.reverseMul[i] * this.comparators[i].compare(slot1, slot2);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    @Override
+    protected void populateResults(ScoreDoc[] results, int howMany) {
+        for (int i = howMany - 1; i >= 0; i--) {
+            Entry entry = this.pq.pop();
+            Object[] fields = new Object[this.comparators.length];
+            for (int j = 0; j < fields.length; j++)
+                fields[j] = this.comparators[j].value(entry.slot);
+            results[i] = new KeyFieldDoc(entry.doc, entry.score, fields, entry.key);
+        }
+    }
+
+    @Override
+    protected TopDocs newTopDocs(ScoreDoc[] results, int start) {
+        if (results == null)
+            results = new ScoreDoc[0];
+        return new TopFieldDocs(new TotalHits(this.totalHits, TotalHits.Relation.EQUAL_TO), results, this.sortFields);
+    }
+
+    static class Entry extends FieldValueHitQueue.Entry {
+        long key;
+
+        Entry(int slot, int doc, long key) {
+            super(slot, doc);
+            this.key = key;
+        }
+    }
+
+    static class KeyFieldDoc extends FieldDoc {
+        final long key;
+
+        KeyFieldDoc(int doc, float score, Object[] fields, long key) {
+            super(doc, score, fields);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Counts per taxonomy ordinal. Few hits are counted in a hash map; once that
+ * holds more than 1/128 of the taxonomy the counts move to an int[] of
+ * taxonomy size, borrowed from a shared pool. Dense counts remember which
+ * ordinals they touched, so merging and clearing for reuse only visit those,
+ * until that is more than 1/128 of the taxonomy as well; from then on they
+ * are scanned. Beyond about 1/128 hashing and tracking ordinals cost more
+ * than scanning the whole array does.
+ */
+public class FacetCounts {
+    static final int SPARSE_SHIFT = 7;
+    static final int PARALLEL_MERGE_MIN = 1 << 16;
+    static final Pool POOL = new Pool(256L * 1024 * 1024);
+
+    private final int size;
+    private final int maxSparse;
+    private TIntIntHashMap sparse;
+    private int[] values;
+    private TIntArrayList touched = new TIntArrayList();
+    private boolean clearAll;
+
+    public FacetCounts(int size, long expectedCounts) {
+        this.size = size;
+        this.maxSparse = size >>> SPARSE_SHIFT;
+        if (expectedCounts <= this.maxSparse)
+            this.sparse = new TIntIntHashMap((int) Math.max(16, expectedCounts));
+        else
+            this.values = POOL.borrow(size);
+        if (expectedCounts > (long) this.maxSparse << 2)
+            this.touched = null;
+    }
+
+    public void increment(int ord) {
+        add(ord, 1);
+    }
+
+    /**
+     * The dense array once touched ordinals are no longer tracked, so
+     * counting loops can increment it directly; null before that.
+     */
+    public int[] untrackedValues() {
+        return this.touched == null ? this.values : null;
+    }
+
+    public void add(int ord, int count) {
+        if (this.values != null) {
+            if (this.touched != null && this.values[ord] == 0)
+                touch(ord);
+            this.values[ord] += count;
+            return;
+        }
+        this.sparse.adjustOrPutValue(ord, count, count);
+        if (this.sparse.size() > this.maxSparse)
+            densify();
+    }
+
+    public boolean isSparse() {
+        return this.values == null;
+    }
+
+    /** Number of ordinals counted; size once that is no longer tracked. */
+    public int cardinality() {
+        if (isSparse())
+            return this.sparse.size();
+        return this.touched == null ? this.size : this.touched.size();
+    }
+
+    /**
+     * Adds the smaller of the two into the other and releases it. Returns
+     * the one holding the sum.
+     */
+    public FacetCounts merge(FacetCounts other) {
+        FacetCounts into = this;
+        if (into.isSparse() && (!other.isSparse() || other.sparse.size() > into.sparse.size())) {
+            into = other;
+            other = this;
+        }
+        if (other.isSparse()) {
+            final FacetCounts target = into;
+            other.sparse.forEachEntry((ord, count) -> {
+                target.add(ord, count);
+                return true;
+            });
+        } else if (other.touched != null) {
+            for (int i = 0; i < other.touched.size(); i++) {
+                int ord = other.touched.getQuick(i);
+                into.add(ord, other.values[ord]);
+            }
+        } else {
+            into.values();
+            into.addRange(other.values, 0, this.size);
+        }
+        other.release();
+        return into;
+    }
+
+    /**
+     * Merges all counts into the largest. When several dense counts are left
+     * and scanning the ordinal range in tasks parts is cheaper than merging
+     * them one by one, the range is split over the executor. Every task owns
+     * a disjoint range of the result, so no locking is needed. The calling
+     * thread runs every range no search thread picked up yet; on a search
+     * thread itself only idle search threads are asked to help.
+     */
+    public static FacetCounts mergeAll(List<FacetCounts> counts, ExecutorService executor, int tasks) throws IOException {
+        FacetCounts into = counts.get(0);
+        for (FacetCounts c : counts)
+            if (c.cardinality() > into.cardinality())
+                into = c;
+        into.values();
+        List<FacetCounts> dense = new ArrayList<>();
+        long work = 0;
+        for (FacetCounts c : counts) {
+            if (c == into)
+                continue;
+            if (c.isSparse()) {
+                into.merge(c);
+            } else {
+                dense.add(c);
+                work += c.cardinality();
+            }
+        }
+        tasks = SearchExecutor.tasks(executor, tasks);
+        if (tasks <= 1 || work < PARALLEL_MERGE_MIN || (long) into.size * dense.size() > work * tasks / 2) {
+            for (FacetCounts c : dense)
+                into.merge(c);
+            return into;
+        }
+        into.touched = null;
+        int rangeSize = (into.size + tasks - 1) / tasks;
+        List<FutureTask<Void>> ranges = new ArrayList<>();
+        for (int min = 0; min < into.size; min += rangeSize)
+            ranges.add(new FutureTask<>(new RangeMerge(into, dense, min, Math.min(into.size, min + rangeSize)), null));
+        for (int i = 1; i < ranges.size(); i++) {
+            try {
+                executor.execute(ranges.get(i));
+            } catch (RejectedExecutionException e) {
+            }
+        }
+        try {
+            for (FutureTask<Void> range : ranges) {
+                range.run();
+                range.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (FutureTask<Void> range : ranges)
+                range.cancel(false);
+        }
+        for (FacetCounts c : dense)
+            c.release();
+        return into;
+    }
+
+    /**
+     * Dense counts; at least size long. Changes made to the array are not
+     * tracked, call clearAllOnRelease() after writing to ordinals not
+     * counted before.
+     */
+    public int[] values() {
+        if (this.values == null)
+            densify();
+        return this.values;
+    }
+
+    public void clearAllOnRelease() {
+        this.clearAll = true;
+    }
+
+    public void release() {
+        if (this.values != null)
+            POOL.release(this.values, this.clearAll ? null : this.touched);
+        this.values = null;
+        this.sparse = null;
+    }
+
+    private void addRange(int[] from, int min, int max) {
+        int[] values = this.values;
+        if (this.touched == null) {
+            for (int ord = min; ord < max; ord++)
+                values[ord] += from[ord];
+            return;
+        }
+        for (int ord = min; ord < max; ord++) {
+            int count = from[ord];
+            if (count != 0) {
+                if (values[ord] == 0 && this.touched != null)
+                    touch(ord);
+                values[ord] += count;
+            }
+        }
+    }
+
+    private void touch(int ord) {
+        this.touched.add(ord);
+        if (this.touched.size() > this.maxSparse)
+            this.touched = null;
+    }
+
+    private void densify() {
+        this.values = POOL.borrow(this.size);
+        this.sparse.forEachEntry((ord, count) -> {
+            add(ord, count);
+            return true;
+        });
+        this.sparse = null;
+    }
+
+    static class RangeMerge implements Runnable {
+        private final FacetCounts into;
+        private final List<FacetCounts> from;
+        private final int min;
+        private final int max;
+
+        RangeMerge(FacetCounts into, List<FacetCounts> from, int min, int max) {
+            this.into = into;
+            this.from = from;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public void run() {
+            for (FacetCounts counts : this.from)
+                this.into.addRange(counts.values, this.min, this.max);
+        }
+    }
+
+    /**
+     * Zeroed arrays by size class, a class being the size rounded up to an
+     * eighth of its highest power of two. Arrays released beyond maxBytes
+     * are left to the garbage collector.
+     */
+    static class Pool {
+        private final Map<Integer, Deque<int[]>> free = new ConcurrentHashMap<>();
+        private final AtomicLong pooledBytes = new AtomicLong();
+        private final long maxBytes;
+
+        Pool(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        int[] borrow(int size) {
+            int length = sizeClass(size);
+            Deque<int[]> arrays = this.free.get(length);
+            int[] values = arrays == null ? null : arrays.poll();
+            if (values == null)
+                return new int[length];
+            this.pooledBytes.addAndGet(-4L * length);
+            return values;
+        }
+
+        /** With touched null the whole array is cleared. */
+        void release(int[] values, TIntArrayList touched) {
+            long bytes = 4L * values.length;
+            if (this.pooledBytes.addAndGet(bytes) > this.maxBytes) {
+                this.pooledBytes.addAndGet(-bytes);
+                return;
+            }
+            if (touched == null)
+                Arrays.fill(values, 0);
+            else
+                for (int i = 0; i < touched.size(); i++)
+                    values[touched.getQuick(i)] = 0;
+            this.free.computeIfAbsent(values.length, l -> new ConcurrentLinkedDeque<>()).push(values);
+        }
+
+        long pooledBytes() {
+            return this.pooledBytes.get();
+        }
+
+        static int sizeClass(int size) {
+            if (size <= 64)
+                return 64;
+            int shift = 31 - Integer.numberOfLeadingZeros(size) - 3;
+            return ((size + (1 << shift) - 1) >>> shift) << shift;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.AlreadyClosedException;
+
+/**
+ * Packed facet ordinals per index field and segment, shared by all cores.
+ * The ordinals themselves are kept off-heap; the cache accounts for those
+ * bytes and evicts the least recently used segments when they exceed
+ * maxBytes. All entries of a segment go when the segment is closed.
+ *
+ * Segments whose ordinals do not fit are remembered with the maxBytes they
+ * did not fit in, so they are not packed again for every query and refresh
+ * until maxBytes grows.
+ *
+ * Direct buffers are freed by the garbage collector once unreachable, so
+ * a search still reading an evicted segment is never left with freed
+ * memory.
+ */
+public class FacetOrdinalsCache {
+    private static FacetOrdinalsCache shared;
+
+    private final Map<Key, PackedOrdinalsReader.PackedOrdinals> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Long> tooLarge = new HashMap<>();
+    private final Set<IndexReader.CacheKey> segments = new HashSet<>();
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public FacetOrdinalsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized FacetOrdinalsCache shared() {
+        if (shared == null)
+            shared = new FacetOrdinalsCache(256 * 1024 * 1024);
+        return shared;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    public synchronized long maxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Returns null when the segment can not be cached.
+     */
+    Key key(String field, LeafReader reader) {
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+        if (helper == null)
+            return null;
+        return new Key(field, helper.getKey(), helper);
+    }
+
+    synchronized PackedOrdinalsReader.PackedOrdinals get(Key key) {
+        PackedOrdinalsReader.PackedOrdinals ordinals = this.cache.get(key);
+        if (ordinals == null)
+            this.misses++;
+        else
+            this.hits++;
+        return ordinals;
+    }
+
+    synchronized boolean contains(Key key) {
+        return this.cache.containsKey(key);
+    }
+
+    synchronized boolean isTooLarge(Key key) {
+        Long maxBytes = this.tooLarge.get(key);
+        return maxBytes != null && maxBytes >= this.maxBytes;
+    }
+
+    synchronized void putTooLarge(Key key) {
+        if (register(key))
+            this.tooLarge.put(key, this.maxBytes);
+    }
+
+    synchronized void put(Key key, PackedOrdinalsReader.PackedOrdinals ordinals) {
+        long size = ordinals.ramBytesUsed();
+        if (size > this.maxBytes) {
+            putTooLarge(key);
+            return;
+        }
+        if (!register(key))
+            return;
+        this.tooLarge.remove(key);
+        PackedOrdinalsReader.PackedOrdinals old = this.cache.put(key, ordinals);
+        if (old != null)
+            this.bytes -= old.ramBytesUsed();
+        this.bytes += size;
+        evict();
+    }
+
+    private boolean register(Key key) {
+        if (this.segments.add(key.segment)) {
+            try {
+                key.helper.addClosedListener(this::clearSegment);
+            } catch (AlreadyClosedException e) {
+                this.segments.remove(key.segment);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void evict() {
+        Iterator<PackedOrdinalsReader.PackedOrdinals> entries = this.cache.values().iterator();
+        while (this.bytes > this.maxBytes && entries.hasNext()) {
+            this.bytes -= entries.next().ramBytesUsed();
+            entries.remove();
+            this.evictions++;
+        }
+    }
+
+    synchronized void clearSegment(IndexReader.CacheKey segment) {
+        this.segments.remove(segment);
+        this.tooLarge.keySet().removeIf(key -> key.segment == segment);
+        Iterator<Map.Entry<Key, PackedOrdinalsReader.PackedOrdinals>> entries = this.cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, PackedOrdinalsReader.PackedOrdinals> entry = entries.next();
+            if (entry.getKey().segment == segment) {
+                this.bytes -= entry.getValue().ramBytesUsed();
+                entries.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.cache.clear();
+        this.tooLarge.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized JsonObject statsAsJson() {
+        return Json.createObjectBuilder()
+                .add("entries", this.cache.size())
+                .add("tooLarge", this.tooLarge.size())
+                .add("offHeapBytesUsed", this.bytes)
+                .add("maxBytes", this.maxBytes)
+                .add("hits", this.hits)
+                .add("misses", this.misses)
+                .add("evictions", this.evictions)
+                .build();
+    }
+
+    static class Key {
+        final String field;
+        final IndexReader.CacheKey segment;
+        final IndexReader.CacheHelper helper;
+
+        Key(String field, IndexReader.CacheKey segment, IndexReader.CacheHelper helper) {
+            this.field = field;
+            this.segment = segment;
+            this.helper = helper;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.segment == other.segment && this.field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.segment) + this.field.hashCode();
+        }
+    }
+}
@@ -29,23 +29,39 @@ package org.meresco.lucene.search;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.lucene.facet.FacetResult;
 import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
 import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.facet.taxonomy.OrdinalsReader;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.ScoreMode;
 
 public class FacetSuperCollector extends SuperCollector<FacetSubCollector> {
     final TaxonomyReader taxoReader;
     final FacetsConfig facetConfig;
     final List<OrdinalsReader> ordinalsReaders;
-    final BlockingDeque<int[]> arrayPool = new LinkedBlockingDeque<int[]>();
-    private int[] mergeValues;
+    final SortedSetDocValuesReaderState state;
+    final BlockingDeque<FacetCounts> countsPool = new LinkedBlockingDeque<FacetCounts>();
+    final List<MatchingDocs> matchingDocs = Collections.synchronizedList(new ArrayList<MatchingDocs>());
+    int sampleSize;
+    private boolean sampled;
+    private FacetCounts counts;
+    private MerescoTaxonomyFacetCounts facetCounts;
+    private ExecutorService executor;
+    private int tasks = 1;
 
     public FacetSuperCollector(TaxonomyReader taxoReader, FacetsConfig facetConfig, OrdinalsReader ordinalsReader) {
         super();
@@ -53,48 +69,151 @@ public class FacetSuperCollector extends SuperCollector<FacetSubCollector> {
         this.facetConfig = facetConfig;
         this.ordinalsReaders = new ArrayList<OrdinalsReader>();
         this.ordinalsReaders.add(ordinalsReader);
+        this.state = null;
+    }
+
+    /**
+     * Counts the dimensions of a SortedSetDocValues facet field instead of
+     * the taxonomy. The ordinals are the global ordinals of the state's
+     * reader, so counting, pooling and merging are the same.
+     */
+    public FacetSuperCollector(SortedSetDocValuesReaderState state) {
+        super();
+        this.taxoReader = null;
+        this.facetConfig = null;
+        this.ordinalsReaders = new ArrayList<OrdinalsReader>();
+        this.state = state;
     }
 
     public void addOrdinalsReader(OrdinalsReader ordinalsReader) {
         this.ordinalsReaders.add(ordinalsReader);
     }
 
+    /**
+     * Counts that SubCollectors did not merge among themselves are merged
+     * by complete() in up to tasks parts on the executor.
+     */
+    public void setExecutor(ExecutorService executor, int tasks) {
+        this.executor = executor;
+        this.tasks = Math.max(1, tasks);
+    }
+
+    /**
+     * With a sampleSize (0 counts all hits), at most about sampleSize hits
+     * are counted: every n-th hit in docId order, starting at a random one
+     * of the first n, and each counted hit adds n. The counts are then an
+     * estimate, see isSampled().
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(0, sampleSize);
+    }
+
+    public boolean isSampled() {
+        return this.sampled;
+    }
+
     @Override
     protected FacetSubCollector createSubCollector() throws IOException {
         return new FacetSubCollector(new FacetsCollector(), this);
     }
 
     public FacetResult getTopChildren(int topN, String dim, String... path) throws IOException {
-        // This will not really need a ordinalsReader. but will call getIndexFieldName()
-        return new MerescoTaxonomyFacetCounts(this.ordinalsReaders, this.taxoReader, this.facetConfig, null,
-                this.mergeValues).getTopChildren(topN, dim, path);
+        return this.facetCounts.getTopChildren(topN, dim, path);
+    }
+
+    public List<MerescoTaxonomyFacetCounts.TopChild> getTopChildrenTree(int topN, String dim, String... path) throws IOException {
+        if (this.state != null)
+            return SortedSetFacetCounts.topChildren(this.state, this.counts.values(), topN, dim);
+        return this.facetCounts.getTopChildrenTree(topN, dim, path);
+    }
+
+    int size() {
+        return this.state != null ? this.state.getSize() : this.taxoReader.getSize();
     }
 
+    int fields() {
+        return this.state != null ? 1 : this.ordinalsReaders.size();
+    }
+
+    /**
+     * SubCollectors merge pairwise as they complete, while other slices are
+     * still being searched; complete() merges what is left.
+     *
+     * Rollup of hierarchical dimensions is linear, so it is done once on the
+     * merged counts instead of for every SubCollector.
+     */
     @Override
-    public void complete() {
-        this.mergeValues = this.arrayPool.poll();
-        mergePool(this.mergeValues);
-    }
-
-    public void mergePool(int[] values) {
-        int count = 0;
-        int[] values1 = this.arrayPool.poll();
-        while (values1 != null) {
-            count++;
-            for (int i = 0; i < values.length; i++)
-                values[i] += values1[i];
-            values1 = this.arrayPool.poll();
-            if (count > 10000) {
-                System.out.println("More than 10000 tries in FacetSuperCollector.mergePool.");
-                System.out.flush();
-                throw new RuntimeException("More than 10000 tries in FacetSuperCollector.mergePool.");
-            }
+    public void complete() throws IOException {
+        if (this.sampleSize > 0)
+            countSample();
+        List<FacetCounts> counts = new ArrayList<>();
+        this.countsPool.drainTo(counts);
+        if (counts.isEmpty())
+            counts.add(new FacetCounts(size(), 0));
+        this.counts = FacetCounts.mergeAll(counts, this.executor, this.tasks);
+        if (this.state != null)
+            return;
+        this.facetCounts = new MerescoTaxonomyFacetCounts(this.ordinalsReaders, this.taxoReader, this.facetConfig, null,
+                this.counts.values());
+        if (this.facetCounts.rollup())
+            this.counts.clearAllOnRelease();
+    }
+
+    /**
+     * With sampling, SubCollectors only hand over their matching docs: the
+     * interval between counted hits depends on the total of all of them.
+     * They complete in any order, so the matching docs are put in docId
+     * order first.
+     */
+    private void countSample() throws IOException {
+        sortMatchingDocs();
+        long hits = 0;
+        for (MatchingDocs docs : this.matchingDocs)
+            hits += docs.totalHits;
+        int interval = (int) Math.min(Integer.MAX_VALUE, (hits + this.sampleSize - 1) / this.sampleSize);
+        this.sampled = interval > 1;
+        long expected = Math.min(hits, this.sampleSize) * fields();
+        FacetCounts counts = new FacetCounts(size(), expected);
+        int offset = this.sampled ? ThreadLocalRandom.current().nextInt(interval) : 0;
+        if (this.state != null)
+            SortedSetFacetCounts.count(this.state, this.matchingDocs, counts, Math.max(1, interval), offset);
+        else
+            new MerescoTaxonomyFacetCounts(this.ordinalsReaders, this.taxoReader, this.facetConfig, null, null)
+                    .doSampleCount(this.matchingDocs, counts, Math.max(1, interval), offset);
+        this.matchingDocs.clear();
+        this.countsPool.push(counts);
+    }
+
+    private void sortMatchingDocs() throws IOException {
+        Map<MatchingDocs, Long> firstDocs = new IdentityHashMap<>();
+        for (MatchingDocs docs : this.matchingDocs) {
+            DocIdSetIterator iterator = docs.bits.iterator();
+            int firstDoc = iterator == null ? DocIdSetIterator.NO_MORE_DOCS : iterator.nextDoc();
+            firstDocs.put(docs, (long) docs.context.docBase + firstDoc);
         }
-        this.arrayPool.push(values);
+        this.matchingDocs.sort(Comparator.comparingLong(firstDocs::get));
     }
 
-    public int[] getFirstArray() {
-        return this.arrayPool.peek();
+    /**
+     * Returns the counts array for reuse by other queries. getTopChildren can
+     * not be used afterwards.
+     */
+    public void release() {
+        if (this.counts != null)
+            this.counts.release();
+        this.counts = null;
+        this.facetCounts = null;
+    }
+
+    public void mergePool(FacetCounts counts) {
+        FacetCounts other;
+        while ((other = this.countsPool.poll()) != null)
+            counts = counts.merge(other);
+        this.countsPool.push(counts);
+    }
+
+    public FacetCounts getFirstCounts() {
+        return this.countsPool.peek();
     }
 }
 
@@ -105,11 +224,22 @@ class FacetSubCollector extends DelegatingSubCollector<FacetsCollector, FacetSup
 
     @Override
     public void complete() throws IOException {
-        int[] values = new int[this.parent.taxoReader.getSize()];
-        MerescoTaxonomyFacetCounts counts = new MerescoTaxonomyFacetCounts(this.parent.ordinalsReaders,
-                this.parent.taxoReader, this.parent.facetConfig, this.delegate, values);
-        counts.doCount();
-        this.parent.mergePool(values);
+        if (this.parent.sampleSize > 0) {
+            this.parent.matchingDocs.addAll(this.delegate.getMatchingDocs());
+            return;
+        }
+        long hits = 0;
+        for (MatchingDocs matchingDocs : this.delegate.getMatchingDocs())
+            hits += matchingDocs.totalHits;
+        FacetCounts counts = new FacetCounts(this.parent.size(), hits * this.parent.fields());
+        if (this.parent.state != null) {
+            SortedSetFacetCounts.count(this.parent.state, this.delegate.getMatchingDocs(), counts, 1, 0);
+        } else {
+            MerescoTaxonomyFacetCounts facetCounts = new MerescoTaxonomyFacetCounts(this.parent.ordinalsReaders,
+                    this.parent.taxoReader, this.parent.facetConfig, this.delegate, null);
+            facetCounts.doCount(counts);
+        }
+        this.parent.mergePool(counts);
     }
 
     @Override
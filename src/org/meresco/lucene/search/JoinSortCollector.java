@@ -44,6 +44,7 @@ import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
 import org.apache.lucene.util.BytesRef;
+import org.meresco.lucene.search.join.KeyValues;
 import org.meresco.lucene.search.join.KeyValuesCache;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.BinaryDocValues;
@@ -53,7 +54,7 @@ import org.apache.lucene.index.FilterNumericDocValues;
 public class JoinSortCollector extends SimpleCollector {
     protected String resultKeyName;
     private String otherKeyName;
-    private int[] keys;
+    private KeyValues keys;
     private int docBase;
     private IndexReaderContext topLevelReaderContext;
     private static int docIdsByKeyInitialSize = 0;
@@ -81,7 +82,7 @@ public class JoinSortCollector extends SimpleCollector {
     public void collect(int doc) throws IOException {
         if (this.keys == null)
             return;
-        int key = this.keys[doc];
+        int key = this.keys.get(doc);
         if (key == 0)
             return;
         if (key >= this.docIdsByKey.length)
@@ -26,6 +26,7 @@
 package org.meresco.lucene.search;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -57,13 +58,14 @@ public class MerescoTaxonomyFacetCounts extends TaxonomyFacets {
         this.fc = fc;
     }
 
-    final void doCount() throws IOException {
-        count(this.fc.getMatchingDocs());
+    final void doCount(FacetCounts counts) throws IOException {
+        count(this.fc.getMatchingDocs(), counts);
     }
 
-    private final void count(List<MatchingDocs> matchingDocs) throws IOException {
+    private final void count(List<MatchingDocs> matchingDocs, FacetCounts counts) throws IOException {
         IntsRef scratch = new IntsRef();
         OrdinalsReader.OrdinalsSegmentReader[] ordsReaders = new OrdinalsReader.OrdinalsSegmentReader[this.ordinalsReaders.size()];
+        int[] dense = null;
         for (MatchingDocs hits : matchingDocs) {
             for (int i = 0; i < ordsReaders.length; i++) {
                 ordsReaders[i] = this.ordinalsReaders.get(i).getReader(hits.context);
@@ -73,14 +75,47 @@ public class MerescoTaxonomyFacetCounts extends TaxonomyFacets {
             while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
                 for (OrdinalsReader.OrdinalsSegmentReader ords : ordsReaders) {
                     ords.get(doc, scratch);
-                    for (int i = 0; i < scratch.length; i++) {
-                        values[scratch.ints[scratch.offset + i]]++;
+                    if (dense == null)
+                        dense = counts.untrackedValues();
+                    if (dense != null) {
+                        for (int i = 0; i < scratch.length; i++)
+                            dense[scratch.ints[scratch.offset + i]]++;
+                    } else {
+                        for (int i = 0; i < scratch.length; i++)
+                            counts.increment(scratch.ints[scratch.offset + i]);
                     }
                 }
             }
         }
+    }
 
-        rollup();
+    /**
+     * Counts every interval-th doc of matchingDocs, starting at offset,
+     * with interval for each of its ordinals.
+     */
+    final void doSampleCount(List<MatchingDocs> matchingDocs, FacetCounts counts, int interval, int offset) throws IOException {
+        IntsRef scratch = new IntsRef();
+        OrdinalsReader.OrdinalsSegmentReader[] ordsReaders = new OrdinalsReader.OrdinalsSegmentReader[this.ordinalsReaders.size()];
+        int skip = offset;
+        for (MatchingDocs hits : matchingDocs) {
+            for (int i = 0; i < ordsReaders.length; i++) {
+                ordsReaders[i] = this.ordinalsReaders.get(i).getReader(hits.context);
+            }
+            DocIdSetIterator docs = hits.bits.iterator();
+            int doc;
+            while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                skip = interval - 1;
+                for (OrdinalsReader.OrdinalsSegmentReader ords : ordsReaders) {
+                    ords.get(doc, scratch);
+                    for (int i = 0; i < scratch.length; i++)
+                        counts.add(scratch.ints[scratch.offset + i], interval);
+                }
+            }
+        }
     }
 
     @Override
@@ -89,8 +124,12 @@ public class MerescoTaxonomyFacetCounts extends TaxonomyFacets {
     }
 
 
-    /** Rolls up any single-valued hierarchical dimensions. */
-    protected void rollup() throws IOException {
+    /**
+     * Rolls up any single-valued hierarchical dimensions. Returns whether
+     * there were any.
+     */
+    protected boolean rollup() throws IOException {
+      boolean rolledUp = false;
       int[] children = getChildren();
       // Rollup any necessary dims:
       for (Map.Entry<String,DimConfig> ent : config.getDimConfigs().entrySet()) {
@@ -102,9 +141,11 @@ public class MerescoTaxonomyFacetCounts extends TaxonomyFacets {
           // config but never indexed:
           if (dimRootOrd > 0) {
             values[dimRootOrd] += rollup(children[dimRootOrd]);
+            rolledUp = true;
           }
         }
       }
+      return rolledUp;
     }
 
     private int rollup(int ord) {
@@ -210,4 +251,101 @@ public class MerescoTaxonomyFacetCounts extends TaxonomyFacets {
 
       return new FacetResult(dim, path, totValue, labelValues, childCount);
     }
+
+    /**
+     * The top children of dim/path and, for a hierarchical dimension, the
+     * top children of each of those down to the leaves, topN per node. The
+     * whole tree comes from one walk over the children and siblings arrays,
+     * with one queue per level that is reused for every node on that level.
+     * Returns null when no child has a count.
+     */
+    public List<TopChild> getTopChildrenTree(int topN, String dim, String... path) throws IOException {
+        if (topN <= 0)
+            throw new IllegalArgumentException("topN must be > 0 (got: " + topN + ")");
+        DimConfig dimConfig = verifyDim(dim);
+        int dimOrd = taxoReader.getOrdinal(new FacetLabel(dim, path));
+        if (dimOrd == -1)
+            return null;
+        return topChildren(dimOrd, topN, dimConfig.hierarchical, new ArrayList<LevelQueue>(), 0);
+    }
+
+    private List<TopChild> topChildren(int parentOrd, int topN, boolean hierarchical, List<LevelQueue> queues, int level) throws IOException {
+        int[] siblings = getSiblings();
+        int first = getChildren()[parentOrd];
+        int childCount = 0;
+        for (int ord = first; ord != TaxonomyReader.INVALID_ORDINAL; ord = siblings[ord])
+            if (values[ord] > 0)
+                childCount++;
+        if (childCount == 0)
+            return null;
+
+        int size = Math.min(topN, childCount);
+        if (queues.size() == level)
+            queues.add(null);
+        LevelQueue q = queues.get(level);
+        if (q == null || q.capacity < size) {
+            q = new LevelQueue(size);
+            queues.set(level, q);
+        }
+        for (int ord = first; ord != TaxonomyReader.INVALID_ORDINAL; ord = siblings[ord])
+            if (values[ord] > 0)
+                q.insert(ord, values[ord], size);
+
+        int[] ords = new int[q.size()];
+        int[] counts = new int[ords.length];
+        for (int i = ords.length - 1; i >= 0; i--) {
+            TopOrdAndIntQueue.OrdAndValue ordAndValue = q.pop();
+            ords[i] = ordAndValue.ord;
+            counts[i] = ordAndValue.value;
+        }
+        List<TopChild> children = new ArrayList<>(ords.length);
+        for (int i = 0; i < ords.length; i++) {
+            String[] components = taxoReader.getPath(ords[i]).components;
+            TopChild child = new TopChild(components[components.length - 1], counts[i]);
+            if (hierarchical)
+                child.children = topChildren(ords[i], topN, hierarchical, queues, level + 1);
+            children.add(child);
+        }
+        return children;
+    }
+
+    public static class TopChild {
+        public final String label;
+        public final int value;
+        public List<TopChild> children;
+
+        TopChild(String label, int value) {
+            this.label = label;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Keeps the limit best entries, which may be fewer than its capacity,
+     * so the queue of a level can be reused for nodes with fewer children.
+     */
+    private static class LevelQueue extends TopOrdAndIntQueue {
+        final int capacity;
+
+        LevelQueue(int capacity) {
+            super(capacity);
+            this.capacity = capacity;
+        }
+
+        void insert(int ord, int value, int limit) {
+            if (size() < limit) {
+                TopOrdAndIntQueue.OrdAndValue entry = new TopOrdAndIntQueue.OrdAndValue();
+                entry.ord = ord;
+                entry.value = value;
+                add(entry);
+            } else {
+                TopOrdAndIntQueue.OrdAndValue top = top();
+                if (value > top.value || (value == top.value && ord < top.ord)) {
+                    top.ord = ord;
+                    top.value = value;
+                    updateTop();
+                }
+            }
+        }
+    }
 }
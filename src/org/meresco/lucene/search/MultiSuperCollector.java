@@ -29,9 +29,9 @@ package org.meresco.lucene.search;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.stream.Stream;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.FilterScorable;
 import org.apache.lucene.search.Scorable;
 import org.apache.lucene.search.ScoreMode;
 
@@ -69,10 +69,28 @@ public class MultiSuperCollector extends SuperCollector<MultiSubCollector> {
 
 class MultiSubCollector extends SubCollector {
     private final SubCollector[] subCollectors;
+    private final ScoreMode scoreMode;
 
     public MultiSubCollector(SubCollector[] subCollectors) throws IOException {
         super();
         this.subCollectors = subCollectors;
+        this.scoreMode = scoreMode(subCollectors);
+    }
+
+    /*
+     * As Lucene's MultiCollector: the common score mode if all agree, else
+     * COMPLETE. Only with TOP_SCORES may a SubCollector skip documents by
+     * raising the minimum competitive score.
+     */
+    private static ScoreMode scoreMode(SubCollector[] subCollectors) {
+        ScoreMode scoreMode = null;
+        for (SubCollector c : subCollectors) {
+            if (scoreMode == null)
+                scoreMode = c.scoreMode();
+            else if (scoreMode != c.scoreMode())
+                return ScoreMode.COMPLETE;
+        }
+        return scoreMode == null ? ScoreMode.COMPLETE_NO_SCORES : scoreMode;
     }
 
     @Override
@@ -84,6 +102,8 @@ class MultiSubCollector extends SubCollector {
 
     @Override
     public void setScorer(Scorable s) throws IOException {
+        if (this.scoreMode != ScoreMode.TOP_SCORES)
+            s = new FilterScorable(s);  // ignores setMinCompetitiveScore
         for (SubCollector c : this.subCollectors) {
             c.setScorer(s);
         }
@@ -105,9 +125,6 @@ class MultiSubCollector extends SubCollector {
 
     @Override
     public ScoreMode scoreMode() {
-        if (Stream.of(this.subCollectors).anyMatch(c -> (ScoreMode.COMPLETE_NO_SCORES != c.scoreMode()))) {
-            return ScoreMode.COMPLETE;
-        }
-        return ScoreMode.COMPLETE_NO_SCORES;
+        return this.scoreMode;
     }
 }
@@ -0,0 +1,196 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.apache.lucene.facet.taxonomy.OrdinalsReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntsRef;
+import org.meresco.lucene.Metrics;
+
+/**
+ * Replaces CachedOrdinalsReader, which keeps an int[] of offsets and one of
+ * ordinals per segment on the heap. Here the ordinals of each document are
+ * written as a vInt count followed by vInt deltas of the sorted ordinals, in
+ * a direct ByteBuffer kept in the FacetOrdinalsCache. Every BLOCK_SIZE
+ * documents the offset is stored; a segment reader walks forward from there,
+ * or from where it left off, as documents are asked for in increasing order.
+ *
+ * Segments that do not fit the cache are read from the wrapped reader; the
+ * cache remembers them, so they are not packed again.
+ */
+public class PackedOrdinalsReader extends OrdinalsReader {
+    static final int BLOCK_SHIFT = 6;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final Metrics.Histogram BUILD = Metrics.histogram("facetOrdinalsBuild");
+
+    private final OrdinalsReader source;
+    private final FacetOrdinalsCache cache;
+
+    public PackedOrdinalsReader(OrdinalsReader source) {
+        this(source, FacetOrdinalsCache.shared());
+    }
+
+    public PackedOrdinalsReader(OrdinalsReader source, FacetOrdinalsCache cache) {
+        this.source = source;
+        this.cache = cache;
+    }
+
+    @Override
+    public OrdinalsSegmentReader getReader(LeafReaderContext context) throws IOException {
+        FacetOrdinalsCache.Key key = this.cache.key(getIndexFieldName(), context.reader());
+        if (key == null || this.cache.isTooLarge(key))
+            return this.source.getReader(context);
+        PackedOrdinals ordinals = this.cache.get(key);
+        if (ordinals == null) {
+            ordinals = build(context);
+            if (ordinals == null) {
+                this.cache.putTooLarge(key);
+                return this.source.getReader(context);
+            }
+            this.cache.put(key, ordinals);
+        }
+        return ordinals.reader();
+    }
+
+    /**
+     * Builds the ordinals of segments not cached yet, so the first query on
+     * a new segment does not have to.
+     */
+    public void warm(IndexReader reader) throws IOException {
+        for (LeafReaderContext context : reader.leaves()) {
+            FacetOrdinalsCache.Key key = this.cache.key(getIndexFieldName(), context.reader());
+            if (key == null || this.cache.contains(key) || this.cache.isTooLarge(key))
+                continue;
+            PackedOrdinals ordinals = build(context);
+            if (ordinals == null)
+                this.cache.putTooLarge(key);
+            else
+                this.cache.put(key, ordinals);
+        }
+    }
+
+    @Override
+    public String getIndexFieldName() {
+        return this.source.getIndexFieldName();
+    }
+
+    /**
+     * Returns null when the ordinals would take more than the cache may
+     * hold, or more than a ByteBuffer can.
+     */
+    PackedOrdinals build(LeafReaderContext context) throws IOException {
+        long t0 = System.nanoTime();
+        int maxDoc = context.reader().maxDoc();
+        OrdinalsSegmentReader reader = this.source.getReader(context);
+        ByteBuffersDataOutput data = new ByteBuffersDataOutput();
+        int[] offsets = new int[(maxDoc + BLOCK_SIZE - 1) >>> BLOCK_SHIFT];
+        long maxBytes = Math.min(this.cache.maxBytes(), Integer.MAX_VALUE);
+        IntsRef scratch = new IntsRef();
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if ((doc & (BLOCK_SIZE - 1)) == 0) {
+                if (data.size() + 4L * offsets.length > maxBytes)
+                    return null;
+                offsets[doc >>> BLOCK_SHIFT] = (int) data.size();
+            }
+            reader.get(doc, scratch);
+            data.writeVInt(scratch.length);
+            int previous = 0;
+            for (int i = 0; i < scratch.length; i++) {
+                int ord = scratch.ints[scratch.offset + i];
+                data.writeVInt(ord - previous);
+                previous = ord;
+            }
+        }
+        if (data.size() + 4L * offsets.length > maxBytes)
+            return null;
+        ByteBuffer bytes = ByteBuffer.allocateDirect((int) data.size());
+        for (ByteBuffer buffer : data.toBufferList())
+            bytes.put(buffer);
+        IntBuffer index = ByteBuffer.allocateDirect(4 * offsets.length).asIntBuffer();
+        index.put(offsets);
+        BUILD.record(System.nanoTime() - t0);
+        return new PackedOrdinals(bytes, index);
+    }
+
+    static class PackedOrdinals {
+        private final ByteBuffer data;
+        private final IntBuffer index;
+
+        PackedOrdinals(ByteBuffer data, IntBuffer index) {
+            this.data = data;
+            this.index = index;
+        }
+
+        long ramBytesUsed() {
+            return this.data.capacity() + 4L * this.index.capacity();
+        }
+
+        OrdinalsSegmentReader reader() {
+            return new OrdinalsSegmentReader() {
+                private int nextDoc = Integer.MAX_VALUE;
+                private int position;
+
+                @Override
+                public void get(int docID, IntsRef ordinals) {
+                    if (docID < this.nextDoc || (docID >>> BLOCK_SHIFT) != (this.nextDoc >>> BLOCK_SHIFT)) {
+                        this.nextDoc = docID & ~(BLOCK_SIZE - 1);
+                        this.position = index.get(docID >>> BLOCK_SHIFT);
+                    }
+                    for (; this.nextDoc < docID; this.nextDoc++)
+                        for (int n = readVInt(); n > 0; n--)
+                            readVInt();
+                    int length = readVInt();
+                    ordinals.ints = ArrayUtil.grow(ordinals.ints, length);
+                    ordinals.offset = 0;
+                    ordinals.length = length;
+                    int ord = 0;
+                    for (int i = 0; i < length; i++) {
+                        ord += readVInt();
+                        ordinals.ints[i] = ord;
+                    }
+                    this.nextDoc++;
+                }
+
+                private int readVInt() {
+                    byte b = data.get(this.position++);
+                    int value = b & 0x7F;
+                    for (int shift = 7; b < 0; shift += 7) {
+                        b = data.get(this.position++);
+                        value |= (b & 0x7F) << shift;
+                    }
+                    return value;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.util.NumericUtils;
+import org.meresco.lucene.JsonQueryConverter.RangeFacetRequest;
+
+/**
+ * Counts the values of NumericDocValues fields for RangeFacetRequests.
+ * Every SubCollector counts its slice in its own primitive arrays, an
+ * int[] per request with ranges and a TLongIntHashMap of bucket counts per
+ * histogram; complete() adds those up.
+ */
+public class RangeFacetSuperCollector extends SuperCollector<RangeFacetSubCollector> {
+    final RangeFacetRequest[] facets;
+    private int[][] counts;
+    private TLongIntHashMap[] buckets;
+
+    public RangeFacetSuperCollector(List<RangeFacetRequest> facets) {
+        this.facets = facets.toArray(new RangeFacetRequest[0]);
+    }
+
+    @Override
+    protected RangeFacetSubCollector createSubCollector() throws IOException {
+        return new RangeFacetSubCollector(this.facets);
+    }
+
+    @Override
+    public void complete() throws IOException {
+        this.counts = new int[this.facets.length][];
+        this.buckets = new TLongIntHashMap[this.facets.length];
+        for (int i = 0; i < this.facets.length; i++) {
+            if (this.facets[i].isHistogram())
+                this.buckets[i] = new TLongIntHashMap();
+            else
+                this.counts[i] = new int[this.facets[i].ranges.size()];
+        }
+        for (RangeFacetSubCollector sub : this.subs) {
+            for (int i = 0; i < this.facets.length; i++) {
+                if (this.buckets[i] != null) {
+                    TLongIntHashMap target = this.buckets[i];
+                    sub.buckets[i].forEachEntry((bucket, count) -> {
+                        target.adjustOrPutValue(bucket, count, count);
+                        return true;
+                    });
+                } else {
+                    for (int r = 0; r < this.counts[i].length; r++)
+                        this.counts[i][r] += sub.counts[i][r];
+                }
+            }
+        }
+    }
+
+    /**
+     * The ranges of a request in their given order, or the buckets of a
+     * histogram with a count in ascending order, labelled with their lower
+     * bound. Returns null when no value was counted.
+     */
+    public LabelAndValue[] labelValues(RangeFacetRequest facet) {
+        int i = Arrays.asList(this.facets).indexOf(facet);
+        if (this.buckets[i] != null) {
+            long[] keys = this.buckets[i].keys();
+            if (keys.length == 0)
+                return null;
+            Arrays.sort(keys);
+            LabelAndValue[] labelValues = new LabelAndValue[keys.length];
+            for (int b = 0; b < keys.length; b++)
+                labelValues[b] = new LabelAndValue(bucketLabel(facet, keys[b]), this.buckets[i].get(keys[b]));
+            return labelValues;
+        }
+        LabelAndValue[] labelValues = new LabelAndValue[this.counts[i].length];
+        boolean counted = false;
+        for (int r = 0; r < labelValues.length; r++) {
+            labelValues[r] = new LabelAndValue(facet.ranges.get(r).label, this.counts[i][r]);
+            counted |= this.counts[i][r] > 0;
+        }
+        return counted ? labelValues : null;
+    }
+
+    private static String bucketLabel(RangeFacetRequest facet, long bucket) {
+        double min = bucket * facet.interval;
+        if (!facet.doubles && facet.interval == Math.rint(facet.interval))
+            return Long.toString((long) min);
+        return Double.toString(min);
+    }
+}
+
+class RangeFacetSubCollector extends SubCollector {
+    private final RangeFacetRequest[] facets;
+    private final double[][] mins;
+    private final double[][] maxs;
+    private final NumericDocValues[] values;
+    final int[][] counts;
+    final TLongIntHashMap[] buckets;
+
+    RangeFacetSubCollector(RangeFacetRequest[] facets) {
+        this.facets = facets;
+        this.values = new NumericDocValues[facets.length];
+        this.mins = new double[facets.length][];
+        this.maxs = new double[facets.length][];
+        this.counts = new int[facets.length][];
+        this.buckets = new TLongIntHashMap[facets.length];
+        for (int i = 0; i < facets.length; i++) {
+            if (facets[i].isHistogram()) {
+                this.buckets[i] = new TLongIntHashMap();
+                continue;
+            }
+            int n = facets[i].ranges.size();
+            this.mins[i] = new double[n];
+            this.maxs[i] = new double[n];
+            this.counts[i] = new int[n];
+            for (int r = 0; r < n; r++) {
+                this.mins[i][r] = facets[i].ranges.get(r).min;
+                this.maxs[i][r] = facets[i].ranges.get(r).max;
+            }
+        }
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        for (int i = 0; i < this.facets.length; i++)
+            this.values[i] = context.reader().getNumericDocValues(this.facets[i].fieldname);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        for (int i = 0; i < this.values.length; i++) {
+            NumericDocValues docValues = this.values[i];
+            if (docValues == null || !docValues.advanceExact(doc))
+                continue;
+            long raw = docValues.longValue();
+            double value = this.facets[i].doubles ? NumericUtils.sortableLongToDouble(raw) : raw;
+            if (this.buckets[i] != null) {
+                this.buckets[i].adjustOrPutValue((long) Math.floor(value / this.facets[i].interval), 1, 1);
+                continue;
+            }
+            double[] mins = this.mins[i];
+            double[] maxs = this.maxs[i];
+            int[] counts = this.counts[i];
+            for (int r = 0; r < counts.length; r++)
+                if (value >= mins[r] && value < maxs[r])
+                    counts[r]++;
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return ScoreMode.COMPLETE_NO_SCORES;
+    }
+}
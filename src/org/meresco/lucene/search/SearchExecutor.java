@@ -0,0 +1,257 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * One pool of search threads for all cores, configured for the server as a
+ * whole. The queue is bounded: when it is full, SuperIndexSearcher searches
+ * the remaining work on the calling thread instead, and new queries are
+ * refused by admit() until it drains.
+ *
+ * Queries are admitted per core, with at most maxConcurrentQueries running
+ * at the same time. A query that can not start within the admission timeout
+ * is refused, so a burst is answered with 503 instead of piling up, telling
+ * clients to retry after retryAfter seconds.
+ */
+public class SearchExecutor extends ThreadPoolExecutor {
+    private static SearchExecutor shared;
+
+    private volatile int maxQueued;
+    private volatile int retryAfter = 1;
+    private final Map<String, Admission> admissions = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final WaitTime queueWait = new WaitTime();
+
+    public SearchExecutor(int threads, int maxQueued) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SearchThreadFactory());
+        this.maxQueued = Math.max(1, maxQueued);
+    }
+
+    public static synchronized SearchExecutor shared() {
+        if (shared == null)
+            shared = new SearchExecutor(100, 1000);
+        return shared;
+    }
+
+    public synchronized void configure(int threads, int maxQueued, int retryAfter) {
+        threads = Math.max(1, threads);
+        if (threads > getMaximumPoolSize()) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+        } else {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads);
+        }
+        this.maxQueued = Math.max(1, maxQueued);
+        this.retryAfter = Math.max(1, retryAfter);
+    }
+
+    public int retryAfter() {
+        return this.retryAfter;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (getQueue().size() >= this.maxQueued) {
+            this.rejected.incrementAndGet();
+            throw new RejectedExecutionException("Search queue full");
+        }
+        super.execute(new QueuedTask(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (r instanceof QueuedTask)
+            this.queueWait.add(System.nanoTime() - ((QueuedTask) r).queued);
+    }
+
+    public static boolean isSearchThread() {
+        return Thread.currentThread() instanceof SearchThread;
+    }
+
+    /**
+     * How many tasks work split over executor gets, at most tasks. Work
+     * already running on a search thread, like the facets of other cores,
+     * gets one more than the search threads that are idle, so it keeps its
+     * parallelism while the pool has room without queueing behind the
+     * searches keeping it busy. Callers never wait for a task that did not
+     * start, they run those themselves, so no search thread waits for
+     * queued work.
+     */
+    public static int tasks(ExecutorService executor, int tasks) {
+        if (executor == null)
+            return 1;
+        if (isSearchThread()) {
+            if (!(executor instanceof ThreadPoolExecutor))
+                return 1;
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            tasks = Math.min(tasks, 1 + pool.getMaximumPoolSize() - pool.getActiveCount() - pool.getQueue().size());
+        }
+        return Math.max(1, tasks);
+    }
+
+    public boolean isSaturated() {
+        return getQueue().size() >= this.maxQueued;
+    }
+
+    /**
+     * Returns null when the query is refused: the queue is full, or the core
+     * already runs maxConcurrentQueries (0 is no limit) queries and none
+     * finished within timeout milliseconds.
+     */
+    public Admission admit(String core, int maxConcurrentQueries, long timeout) throws InterruptedException {
+        Admission admission = this.admissions.computeIfAbsent(String.valueOf(core), c -> new Admission());
+        if (isSaturated() || !admission.enter(maxConcurrentQueries, timeout)) {
+            admission.rejected.incrementAndGet();
+            return null;
+        }
+        return admission;
+    }
+
+    public JsonObject metricsAsJson() {
+        JsonObjectBuilder cores = Json.createObjectBuilder();
+        for (Map.Entry<String, Admission> entry : this.admissions.entrySet())
+            cores.add(entry.getKey(), entry.getValue().asJson());
+        return Json.createObjectBuilder()
+                .add("threads", getMaximumPoolSize())
+                .add("activeThreads", getActiveCount())
+                .add("maxQueued", this.maxQueued)
+                .add("retryAfter", this.retryAfter)
+                .add("queued", getQueue().size())
+                .add("completedTasks", getCompletedTaskCount())
+                .add("rejectedTasks", this.rejected.get())
+                .add("queueWait", this.queueWait.asJson())
+                .add("cores", cores)
+                .build();
+    }
+
+    public static class Admission implements AutoCloseable {
+        private int running;
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final WaitTime wait = new WaitTime();
+
+        synchronized boolean enter(int limit, long timeout) throws InterruptedException {
+            long t0 = System.nanoTime();
+            long deadline = t0 + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (limit > 0 && this.running >= limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            this.running++;
+            this.admitted.incrementAndGet();
+            this.wait.add(System.nanoTime() - t0);
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+            this.running--;
+            notifyAll();
+        }
+
+        public synchronized int running() {
+            return this.running;
+        }
+
+        JsonObject asJson() {
+            return Json.createObjectBuilder()
+                    .add("running", running())
+                    .add("admitted", this.admitted.get())
+                    .add("rejected", this.rejected.get())
+                    .add("wait", this.wait.asJson())
+                    .build();
+        }
+    }
+
+    static class WaitTime {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long nanos) {
+            this.count.incrementAndGet();
+            this.total.addAndGet(nanos);
+            this.max.accumulateAndGet(nanos, Math::max);
+        }
+
+        JsonObject asJson() {
+            long count = this.count.get();
+            return Json.createObjectBuilder()
+                    .add("count", count)
+                    .add("averageMs", count == 0 ? 0.0 : this.total.get() / count / 1e6)
+                    .add("maxMs", this.max.get() / 1e6)
+                    .build();
+        }
+    }
+
+    private static class QueuedTask implements Runnable {
+        private final Runnable command;
+        final long queued = System.nanoTime();
+
+        QueuedTask(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            this.command.run();
+        }
+    }
+
+    private static class SearchThread extends Thread {
+        SearchThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+    private static class SearchThreadFactory implements ThreadFactory {
+        private final AtomicInteger number = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new SearchThread(r, "search-" + this.number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
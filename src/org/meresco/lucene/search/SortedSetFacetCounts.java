@@ -0,0 +1,116 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.TopOrdAndIntQueue;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState.OrdRange;
+import org.apache.lucene.index.MultiDocValues.MultiSortedSetDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.LongValues;
+
+/**
+ * Counting and top children for dimensions indexed as
+ * SortedSetDocValuesFacetFields. Segment ordinals are mapped to the global
+ * ordinals of the OrdinalMap of the state, built once per reader. These
+ * dimensions are flat: every value is "dim/label".
+ */
+class SortedSetFacetCounts {
+
+    /**
+     * Counts every interval-th doc of matchingDocs, starting at offset,
+     * with interval for each of its ordinals.
+     */
+    static void count(SortedSetDocValuesReaderState state, List<MatchingDocs> matchingDocs, FacetCounts counts, int interval, int offset) throws IOException {
+        SortedSetDocValues docValues = state.getDocValues();
+        OrdinalMap ordinalMap = docValues instanceof MultiSortedSetDocValues ? ((MultiSortedSetDocValues) docValues).mapping : null;
+        int skip = offset;
+        for (MatchingDocs hits : matchingDocs) {
+            SortedSetDocValues values = hits.context.reader().getSortedSetDocValues(state.getField());
+            if (values == null)
+                continue;
+            LongValues globalOrds = ordinalMap == null ? null : ordinalMap.getGlobalOrds(hits.context.ord);
+            DocIdSetIterator docs = hits.bits.iterator();
+            int doc;
+            while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                skip = interval - 1;
+                if (!values.advanceExact(doc))
+                    continue;
+                long ord;
+                while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS)
+                    counts.add((int) (globalOrds == null ? ord : globalOrds.get(ord)), interval);
+            }
+        }
+    }
+
+    static List<MerescoTaxonomyFacetCounts.TopChild> topChildren(SortedSetDocValuesReaderState state, int[] values, int topN, String dim) throws IOException {
+        if (topN <= 0)
+            throw new IllegalArgumentException("topN must be > 0 (got: " + topN + ")");
+        OrdRange range = state.getOrdRange(dim);
+        if (range == null)
+            return null;
+        int childCount = 0;
+        for (int ord = range.start; ord <= range.end; ord++)
+            if (values[ord] > 0)
+                childCount++;
+        if (childCount == 0)
+            return null;
+
+        TopOrdAndIntQueue q = new TopOrdAndIntQueue(Math.min(topN, childCount));
+        TopOrdAndIntQueue.OrdAndValue reuse = null;
+        for (int ord = range.start; ord <= range.end; ord++) {
+            if (values[ord] > 0) {
+                if (reuse == null)
+                    reuse = new TopOrdAndIntQueue.OrdAndValue();
+                reuse.ord = ord;
+                reuse.value = values[ord];
+                reuse = q.insertWithOverflow(reuse);
+            }
+        }
+
+        SortedSetDocValues docValues = state.getDocValues();
+        MerescoTaxonomyFacetCounts.TopChild[] children = new MerescoTaxonomyFacetCounts.TopChild[q.size()];
+        for (int i = children.length - 1; i >= 0; i--) {
+            TopOrdAndIntQueue.OrdAndValue ordAndValue = q.pop();
+            String[] path = FacetsConfig.stringToPath(docValues.lookupOrd(ordAndValue.ord).utf8ToString());
+            children[i] = new MerescoTaxonomyFacetCounts.TopChild(path[1], ordAndValue.value);
+        }
+        return new ArrayList<>(Arrays.asList(children));
+    }
+}
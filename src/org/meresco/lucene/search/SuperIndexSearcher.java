@@ -29,94 +29,201 @@ package org.meresco.lucene.search;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.ConjunctionDISI;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.meresco.lucene.Metrics;
+import org.meresco.lucene.queries.KeyFilter;
 
 public class SuperIndexSearcher extends IndexSearcher {
+    public static final int MIN_DOCS_PER_RANGE = 100000;
+    static final int BUDGET_WINDOW = 1 << 16;
+    private static final Metrics.Histogram REWRITE = Metrics.histogram("rewrite");
+    private static final Metrics.Histogram CREATE_WEIGHT = Metrics.histogram("createWeight");
+    private static final Metrics.Histogram COLLECT = Metrics.histogram("collect");
+    private static final Metrics.Histogram SUB_COMPLETE = Metrics.histogram("subCollectorComplete");
+    private static final Metrics.Histogram COMPLETE = Metrics.histogram("collectorComplete");
 
     private ExecutorService executor;
-    private List<List<LeafReaderContext>> grouped_leaves;
+    private int tasks = 1;
+    private int minDocsPerRange = MIN_DOCS_PER_RANGE;
 
     public SuperIndexSearcher(IndexReader reader, ExecutorService executor, int tasks) {
         super(reader);
         this.executor = executor;
-        this.grouped_leaves = this.group_leaves(reader.leaves(), tasks);
-//        for (List<LeafReaderContext> l : this.grouped_leaves) {
-//            int t = 0;
-//            for (LeafReaderContext ctx : l)
-//                t += ctx.reader().numDocs();
-//             System.out.print(" " + t + " ");
-//        }
-//        System.out.println();
+        this.tasks = Math.max(1, tasks);
     }
 
-    private List<List<LeafReaderContext>> group_leaves(List<LeafReaderContext> leaves, int tasks) {
-        List<List<LeafReaderContext>> slices = new ArrayList<List<LeafReaderContext>>(tasks);
-        for (int i = 0; i < tasks; i++)
-            slices.add(new ArrayList<LeafReaderContext>());
-        int sizes[] = new int[tasks];
-        int max_i = 0;
-        for (LeafReaderContext context : leaves) {
-            int smallest_i = find_smallest_slice(sizes);
-            slices.get(smallest_i).add(context);
-            sizes[smallest_i] += context.reader().numDocs();
-            if (smallest_i > max_i)
-                max_i = smallest_i;
-        }
-        return slices.subList(0, max_i + 1);
-    }
-
-    private int find_smallest_slice(int[] sizes) {
-        int smallest = Integer.MAX_VALUE;
-        int smallest_i = 0;
-        for (int i = 0; i < sizes.length; i++)
-            if (sizes[i] < smallest) {
-                smallest = sizes[i];
-                smallest_i = i;
-            }
-        return smallest_i;
+    public void search(Query q, SuperCollector<?> c) throws Throwable {
+        search(q, c, null);
     }
 
-    public void search(Query q, SuperCollector<?> c) throws Throwable {
+    public void search(Query q, SuperCollector<?> c, TimeBudget budget) throws Throwable {
         SubCollector subCollector = c.subCollector();
         float boost = 1.0f;
+        long t0 = System.nanoTime();
         q = rewrite(q);
+        long t1 = System.nanoTime();
+        REWRITE.record(t1 - t0);
         Weight weight = super.createWeight(q, subCollector.scoreMode(), boost);
-        ExecutorCompletionService<String> ecs = new ExecutorCompletionService<String>(this.executor);
-        List<Future<String>> futures = new ArrayList<Future<String>>();
-        for (List<LeafReaderContext> leaf_group : this.grouped_leaves.subList(1, this.grouped_leaves.size()))
-            futures.add(ecs.submit(new SearchTask(leaf_group, weight, c.subCollector()), "Done"));
-        new SearchTask(this.grouped_leaves.get(0), weight, subCollector).run();
+        CREATE_WEIGHT.record(System.nanoTime() - t1);
+        WorkQueue queue = new WorkQueue(leafWork(weight), this.leafContexts.size(), budget);
+        int tasks = SearchExecutor.tasks(this.executor, Math.min(this.tasks, queue.size()));
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>();
+        for (int i = 1; i < tasks; i++) {
+            FutureTask<Void> task = new FutureTask<Void>(new SearchTask(queue, weight, c.subCollector()), null);
+            futures.add(task);
+            try {
+                this.executor.execute(task);
+            } catch (RejectedExecutionException e) {
+            }
+        }
         try {
-            for (int i = 0; i < this.grouped_leaves.size() - 1; i++) {
-                ecs.take().get();
+            new SearchTask(queue, weight, subCollector).run();
+            // the queue is empty by now; tasks not started yet only complete their subCollector
+            for (FutureTask<Void> task : futures) {
+                task.run();
+                task.get();
             }
         } catch (ExecutionException e) {
             throw e.getCause();
         } finally {
-            for (Future<String> future : futures)
+            for (FutureTask<Void> future : futures)
                 future.cancel(true);
         }
+        t0 = System.nanoTime();
         c.complete();
+        COMPLETE.record(System.nanoTime() - t0);
+        if (budget != null)
+            budget.searched(this.leafContexts.size(), queue.leavesSearched());
+    }
+
+    /**
+     * Leaves are not assigned to tasks up front. Each SearchTask takes the
+     * next piece of work from a shared queue until it is empty, so a task that
+     * runs into a dense leaf no longer keeps the others waiting.
+     *
+     * Leaves for which the weight has no scorer are left out. Whatever gave
+     * the cost of a leaf also scores it, so its setup is done once: the
+     * ScorerSupplier when the weight would score it on its plain Scorer
+     * anyway, otherwise the weight's own BulkScorer. A leaf that costs more
+     * than its share of the total is cut into doc id ranges, so one big merged
+     * segment can still be searched by several tasks; only the first range
+     * can use what was set up for the cost.
+     *
+     * The queue keeps docBase order, so every SubCollector still sees its
+     * documents in increasing order, which the TopDocsCollectors rely on for
+     * tie-breaking. With TieredMergePolicy the large segments come first anyway.
+     */
+    List<LeafWork> leafWork(Weight weight) throws IOException {
+        List<LeafWork> leaves = new ArrayList<LeafWork>();
+        long totalCost = 0;
+        boolean reuseSupplier = usesDefaultBulkScorer(weight.getQuery());
+        for (LeafReaderContext context : this.leafContexts) {
+            LeafWork leaf;
+            if (reuseSupplier) {
+                ScorerSupplier supplier = weight.scorerSupplier(context);
+                if (supplier == null)
+                    continue;
+                leaf = new LeafWork(context, 0, DocIdSetIterator.NO_MORE_DOCS, supplier.cost(), supplier, null);
+            } else {
+                BulkScorer bulkScorer = weight.bulkScorer(context);
+                if (bulkScorer == null)
+                    continue;
+                leaf = new LeafWork(context, 0, DocIdSetIterator.NO_MORE_DOCS, bulkScorer.cost(), null, bulkScorer);
+            }
+            leaves.add(leaf);
+            totalCost += leaf.cost;
+        }
+        if (this.tasks == 1 || this.executor == null)
+            return leaves;
+        long share = Math.max(1, totalCost / this.tasks);
+        List<LeafWork> work = new ArrayList<LeafWork>();
+        for (LeafWork leaf : leaves) {
+            int maxDoc = leaf.context.reader().maxDoc();
+            long ranges = Math.min(this.tasks, Math.min((leaf.cost + share - 1) / share, maxDoc / this.minDocsPerRange));
+            if (ranges <= 1) {
+                work.add(leaf);
+                continue;
+            }
+            int rangeSize = (int) ((maxDoc + ranges - 1) / ranges);
+            for (int min = 0; min < maxDoc; min += rangeSize)
+                work.add(new LeafWork(leaf.context, min, Math.min(maxDoc, min + rangeSize), leaf.cost / ranges,
+                        min == 0 ? leaf.supplier : null, min == 0 ? leaf.bulkScorer : null));
+        }
+        return work;
+    }
+
+    /**
+     * Returns false when the time budget ran out before the whole range was
+     * scored. With a budget the range is scored in windows of BUDGET_WINDOW
+     * docs, like Lucene's TimeLimitingBulkScorer, checking the budget in
+     * between.
+     */
+    boolean search(LeafWork work, Weight weight, SubCollector subCollector, TimeBudget budget) throws IOException {
+        LeafCollector leafCollector;
+        try {
+            leafCollector = subCollector.getLeafCollector(work.context);
+        } catch (CollectionTerminatedException e) {
+            return true;
+        }
+        BulkScorer scorer = work.bulkScorer(weight);
+        if (scorer == null)
+            return true;
+        Bits liveDocs = work.context.reader().getLiveDocs();
+        try {
+            if (budget == null) {
+                scorer.score(leafCollector, liveDocs, work.minDoc, work.maxDoc);
+                return true;
+            }
+            int maxDoc = Math.min(work.maxDoc, work.context.reader().maxDoc());
+            int min = work.minDoc;
+            while (min < maxDoc) {
+                if (budget.shouldExit())
+                    return false;
+                min = scorer.score(leafCollector, liveDocs, min, (int) Math.min(maxDoc, (long) min + BUDGET_WINDOW));
+            }
+        } catch (CollectionTerminatedException e) {
+        }
+        return true;
+    }
+
+    public void setMinDocsPerRange(int minDocsPerRange) {
+        this.minDocsPerRange = Math.max(1, minDocsPerRange);
     }
 
     public class SearchTask implements Runnable {
-        private List<LeafReaderContext> contexts;
+        private WorkQueue queue;
         private Weight weight;
         private SubCollector subCollector;
 
-        public SearchTask(List<LeafReaderContext> contexts, Weight weight, SubCollector subCollector) {
-            this.contexts = contexts;
+        public SearchTask(WorkQueue queue, Weight weight, SubCollector subCollector) {
+            this.queue = queue;
             this.weight = weight;
             this.subCollector = subCollector;
         }
@@ -124,23 +231,162 @@ public class SuperIndexSearcher extends IndexSearcher {
         @Override
         public void run() {
             try {
-                SuperIndexSearcher.this.search(this.contexts, this.weight, this.subCollector);
+                LeafWork work;
+                while ((work = this.queue.next()) != null) {
+                    long t0 = System.nanoTime();
+                    if (SuperIndexSearcher.this.search(work, this.weight, this.subCollector, this.queue.budget))
+                        this.queue.done(work);
+                    COLLECT.record(System.nanoTime() - t0);
+                }
+                long t0 = System.nanoTime();
                 this.subCollector.complete();
+                SUB_COMPLETE.record(System.nanoTime() - t0);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    public SuperIndexSearcher(DirectoryReader reader) {
-        super(reader);
+    /**
+     * Whether weight.bulkScorer would score through Weight.DefaultBulkScorer
+     * on the scorer of its ScorerSupplier anyway, so the supplier leafWork
+     * got for the cost can score the leaf. BooleanWeight has bulk scorers of
+     * its own for disjunctions and single required clauses, and
+     * MatchAllDocsQuery has one too; those are kept.
+     */
+    public static boolean usesDefaultBulkScorer(Query query) {
+        if (query instanceof BooleanQuery) {
+            BooleanQuery booleanQuery = (BooleanQuery) query;
+            int required = 0, optional = 0;
+            for (BooleanClause clause : booleanQuery) {
+                if (clause.isRequired())
+                    required++;
+                else if (clause.getOccur() == BooleanClause.Occur.SHOULD)
+                    optional++;
+            }
+            return required > 1 || (required == 1 && (optional > 0 || booleanQuery.getMinimumNumberShouldMatch() > 0));
+        }
+        return query instanceof TermQuery || query instanceof KeyFilter;
+    }
+
+    static class LeafWork {
+        final LeafReaderContext context;
+        final int minDoc;
+        final int maxDoc;
+        final long cost;
+        private ScorerSupplier supplier;
+        private BulkScorer bulkScorer;
+
+        LeafWork(LeafReaderContext context, int minDoc, int maxDoc, long cost, ScorerSupplier supplier, BulkScorer bulkScorer) {
+            this.context = context;
+            this.minDoc = minDoc;
+            this.maxDoc = maxDoc;
+            this.cost = cost;
+            this.supplier = supplier;
+            this.bulkScorer = bulkScorer;
+        }
+
+        BulkScorer bulkScorer(Weight weight) throws IOException {
+            BulkScorer bulkScorer = this.bulkScorer;
+            this.bulkScorer = null;
+            if (bulkScorer != null)
+                return bulkScorer;
+            if (this.supplier == null)
+                return weight.bulkScorer(this.context);
+            Scorer scorer = this.supplier.get(Long.MAX_VALUE);
+            this.supplier = null;
+            return scorer == null ? null : new ScorerBulkScorer(scorer);
+        }
+    }
+
+    /**
+     * Scores the leaf on one Scorer, as Weight.DefaultBulkScorer does,
+     * including skipping to the collector's competitive documents.
+     */
+    static class ScorerBulkScorer extends BulkScorer {
+        private final Scorer scorer;
+        private final DocIdSetIterator iterator;
+        private final TwoPhaseIterator twoPhase;
+
+        ScorerBulkScorer(Scorer scorer) {
+            this.scorer = scorer;
+            this.twoPhase = scorer.twoPhaseIterator();
+            this.iterator = this.twoPhase == null ? scorer.iterator() : this.twoPhase.approximation();
+        }
+
+        @Override
+        public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+            collector.setScorer(this.scorer);
+            DocIdSetIterator iterator = this.iterator;
+            DocIdSetIterator competitiveIterator = collector.competitiveIterator();
+            if (competitiveIterator != null) {
+                if (competitiveIterator.docID() < iterator.docID())
+                    competitiveIterator.advance(iterator.docID());
+                iterator = ConjunctionDISI.intersectIterators(Arrays.asList(iterator, competitiveIterator));
+            }
+            int doc = iterator.docID();
+            if (doc < min)
+                doc = iterator.advance(min);
+            while (doc < max) {
+                if ((acceptDocs == null || acceptDocs.get(doc)) && (this.twoPhase == null || this.twoPhase.matches()))
+                    collector.collect(doc);
+                doc = iterator.nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return this.iterator.cost();
+        }
     }
 
-    public int find_smallest_slice_test(int[] sizes) {
-        return find_smallest_slice(sizes);
+    static class WorkQueue {
+        private final List<LeafWork> work;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicIntegerArray remaining;
+        final TimeBudget budget;
+
+        WorkQueue(List<LeafWork> work, int leaves, TimeBudget budget) {
+            this.work = work;
+            this.budget = budget;
+            this.remaining = new AtomicIntegerArray(leaves);
+            for (LeafWork w : work)
+                this.remaining.incrementAndGet(w.context.ord);
+        }
+
+        LeafWork next() {
+            if (this.budget != null && this.budget.shouldExit())
+                return null;
+            int i = this.next.getAndIncrement();
+            return i < this.work.size() ? this.work.get(i) : null;
+        }
+
+        void done(LeafWork work) {
+            this.remaining.decrementAndGet(work.context.ord);
+        }
+
+        int size() {
+            return this.work.size();
+        }
+
+        int leavesSearched() {
+            int searched = 0;
+            for (int i = 0; i < this.remaining.length(); i++)
+                if (this.remaining.get(i) == 0)
+                    searched++;
+            return searched;
+        }
+    }
+
+    public SuperIndexSearcher(DirectoryReader reader) {
+        super(reader);
     }
 
-    public List<List<LeafReaderContext>> group_leaves_test(List<LeafReaderContext> leaves, int tasks) {
-        return group_leaves(leaves, tasks);
+    public List<int[]> leafWork_test(Query q) throws IOException {
+        List<int[]> work = new ArrayList<int[]>();
+        for (LeafWork w : leafWork(createWeight(rewrite(q), ScoreMode.COMPLETE_NO_SCORES, 1.0f)))
+            work.add(new int[] {w.context.docBase, w.minDoc, w.maxDoc});
+        return work;
     }
 }
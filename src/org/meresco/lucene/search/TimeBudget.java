@@ -0,0 +1,73 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.QueryTimeout;
+
+/**
+ * Time allowed for one request. All searches done for the request (keys for
+ * joins, other cores, facets) share one budget. SearchTasks check it between
+ * pieces of work; once it is exceeded they stop and the collectors complete
+ * with what they have, so the response is partial instead of late.
+ * The segment counts are summed over all searches of the request, so for a
+ * composed query they include the segments of the other cores.
+ */
+public class TimeBudget implements QueryTimeout {
+    private final long deadline;
+    private volatile boolean exceeded;
+    private final AtomicInteger segments = new AtomicInteger();
+    private final AtomicInteger segmentsSearched = new AtomicInteger();
+
+    public TimeBudget(long timeAllowed) {
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeAllowed);
+    }
+
+    @Override
+    public boolean shouldExit() {
+        if (!this.exceeded && System.nanoTime() - this.deadline >= 0)
+            this.exceeded = true;
+        return this.exceeded;
+    }
+
+    public boolean isExceeded() {
+        return this.exceeded;
+    }
+
+    void searched(int segments, int segmentsSearched) {
+        this.segments.addAndGet(segments);
+        this.segmentsSearched.addAndGet(segmentsSearched);
+    }
+
+    public int segments() {
+        return this.segments.get();
+    }
+
+    public int segmentsSearched() {
+        return this.segmentsSearched.get();
+    }
+}
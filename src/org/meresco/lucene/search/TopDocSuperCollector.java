@@ -28,9 +28,11 @@ package org.meresco.lucene.search;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHits;
 
 
 public abstract class TopDocSuperCollector extends SuperCollector<TopDocSubCollector<?>> {
@@ -44,23 +46,40 @@ public abstract class TopDocSuperCollector extends SuperCollector<TopDocSubColle
     }
 
     public TopDocs topDocs(int start) throws IOException {
+        return merge(start, this.numHits - start);
+    }
+
+    protected TopDocs merge(int start, int size) throws IOException {
         TopDocs[] topdocs;
         if (this.sort==null) {
             topdocs = new TopDocs[this.subs.size()];
             for (int i = 0; i < topdocs.length; i++) {
                 topdocs[i] = this.subs.get(i).topdocs;
             }
-            return TopDocs.merge(start, numHits - start, topdocs, true);
+            shardIndexByDoc(topdocs);
+            return TopDocs.merge(start, size, topdocs, false);
         }
         else {
             topdocs = new TopFieldDocs[this.subs.size()];
             for (int i = 0; i < topdocs.length; i++) {
                 topdocs[i] = this.subs.get(i).topdocs;
             }
-            return TopDocs.merge(this.sort, start, this.numHits - start, (TopFieldDocs[]) topdocs, true);
+            shardIndexByDoc(topdocs);
+            return TopDocs.merge(this.sort, start, size, (TopFieldDocs[]) topdocs, false);
         }
     }
 
+    /*
+     * Leaves are handed out to SubCollectors at query time, so the position of a
+     * SubCollector says nothing about document order. TopDocs.merge breaks ties on
+     * shard index; using the doc id for it keeps ties in index order.
+     */
+    private static void shardIndexByDoc(TopDocs[] topdocs) {
+        for (TopDocs td : topdocs)
+            for (ScoreDoc scoreDoc : td.scoreDocs)
+                scoreDoc.shardIndex = scoreDoc.doc;
+    }
+
     public long getTotalHits() throws IOException {
         long totalHits = 0;
         for (TopDocSubCollector<?> sub : this.subs) {
@@ -68,4 +87,12 @@ public abstract class TopDocSuperCollector extends SuperCollector<TopDocSubColle
         }
         return totalHits;
     }
+
+    public TotalHits.Relation getTotalHitsRelation() {
+        for (TopDocSubCollector<?> sub : this.subs) {
+            if (sub.topdocs.totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO)
+                return TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+        }
+        return TotalHits.Relation.EQUAL_TO;
+    }
 }
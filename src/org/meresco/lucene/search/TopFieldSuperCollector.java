@@ -29,25 +29,38 @@ package org.meresco.lucene.search;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.CollectorManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
 
 public class TopFieldSuperCollector extends TopDocSuperCollector {
 
     final boolean trackDocScores;
     final boolean trackMaxScore;
+    private final CollectorManager<TopFieldCollector, TopFieldDocs> sharedManager;
 
     public TopFieldSuperCollector(Sort sort, int numHits, boolean trackDocScores, boolean trackMaxScore) {
+        this(sort, numHits, trackDocScores, trackMaxScore, Integer.MAX_VALUE);
+    }
+
+    /**
+     * See TopScoreDocSuperCollector for totalHitsThreshold.
+     */
+    public TopFieldSuperCollector(Sort sort, int numHits, boolean trackDocScores, boolean trackMaxScore, int totalHitsThreshold) {
         super(sort, numHits);
         this.trackDocScores = trackDocScores;
         this.trackMaxScore = trackMaxScore;
+        this.sharedManager = totalHitsThreshold == Integer.MAX_VALUE ? null : TopFieldCollector.createSharedManager(sort, numHits, null, totalHitsThreshold);
     }
 
     @Override
     protected TopDocSubCollector<TopFieldSuperCollector> createSubCollector() throws IOException {
         // Needs some TLC: create on TopFieldCollector changed
+        if (this.sharedManager != null)
+            return new TopDocSubCollector<TopFieldSuperCollector>(this.sharedManager.newCollector(), this);
         return new TopDocSubCollector<TopFieldSuperCollector>(TopFieldCollector.create(this.sort,
-                this.numHits, this.numHits), this);
+                this.numHits, Integer.MAX_VALUE), this);
     }
 
     @Override
@@ -29,12 +29,26 @@ package org.meresco.lucene.search;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
 
 public class TopScoreDocSuperCollector extends TopDocSuperCollector {
+    private final CollectorManager<TopScoreDocCollector, TopDocs> sharedManager;
 
     public TopScoreDocSuperCollector(int numHits) {
+        this(numHits, Integer.MAX_VALUE);
+    }
+
+    /**
+     * With a totalHitsThreshold below Integer.MAX_VALUE hits are counted
+     * accurately up to that number only. The SubCollectors then share the
+     * minimum competitive score and the hit count, so scorers created with
+     * ScoreMode.TOP_SCORES skip documents that can not make the top anymore.
+     */
+    public TopScoreDocSuperCollector(int numHits, int totalHitsThreshold) {
         super(null, numHits);
+        this.sharedManager = totalHitsThreshold == Integer.MAX_VALUE ? null : TopScoreDocCollector.createSharedManager(numHits, null, totalHitsThreshold);
     }
 
     @Override
@@ -43,6 +57,8 @@ public class TopScoreDocSuperCollector extends TopDocSuperCollector {
 
     @Override
     protected TopDocSubCollector<TopScoreDocSuperCollector> createSubCollector() throws IOException {
-        return new TopDocSubCollector<TopScoreDocSuperCollector>(TopScoreDocCollector.create(super.numHits, super.numHits), this);
+        if (this.sharedManager != null)
+            return new TopDocSubCollector<TopScoreDocSuperCollector>(this.sharedManager.newCollector(), this);
+        return new TopDocSubCollector<TopScoreDocSuperCollector>(TopScoreDocCollector.create(super.numHits, Integer.MAX_VALUE), this);
     }
 }
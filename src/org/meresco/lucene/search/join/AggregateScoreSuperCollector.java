@@ -76,7 +76,7 @@ class AggregateScoreSubCollector extends SubCollector {
     private final SubCollector delegate;
     private final ScoreSuperCollector[] otherScoreCollectors;
     private String keyName;
-    private int[] keyValues;
+    private KeyValues keyValues;
     private AggregateSuperScorer scorer;
     private float otherScoreRatio;
 
@@ -121,11 +121,11 @@ class AggregateScoreSubCollector extends SubCollector {
 
 class AggregateSuperScorer extends Scorable {
     private final Scorable scorer;
-    private int[] keyValues;
+    private KeyValues keyValues;
     private final ScoreSuperCollector[] otherScoreCollectors;
     private float otherScoreRatio; // a value between 0.0f and 1.0f
 
-    AggregateSuperScorer(Scorable s, ScoreSuperCollector[] otherScoreCollectors, int[] keyValues,
+    AggregateSuperScorer(Scorable s, ScoreSuperCollector[] otherScoreCollectors, KeyValues keyValues,
             float otherScoreRatio) {
         this.scorer = s;
         this.otherScoreCollectors = otherScoreCollectors;
@@ -133,7 +133,7 @@ class AggregateSuperScorer extends Scorable {
         this.otherScoreRatio = otherScoreRatio;
     }
 
-    public void setKeyValues(int[] keyValues) {
+    public void setKeyValues(KeyValues keyValues) {
         this.keyValues = keyValues;
     }
 
@@ -142,7 +142,7 @@ class AggregateSuperScorer extends Scorable {
     	
         float score = 1.0f;
         int docId = this.docID();
-        int key = this.keyValues != null ? this.keyValues[docId] : 0;
+        int key = this.keyValues != null ? this.keyValues.get(docId) : 0;
         for (ScoreSuperCollector sc : this.otherScoreCollectors) {
             float otherScore = sc.score(key);
             score *= (1 + otherScore);
@@ -0,0 +1,77 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * One bitset for all subs of a KeySuperCollector, sized up front for the key
+ * space, so collecting neither grows per-sub bitmaps nor merges them. Words
+ * are set with an atomic OR, and only when the bit is not set yet, so keys
+ * found by several subs (or several times) do not contend for the word.
+ *
+ * The bits are kept per KeySet chunk, so the KeySet is built on them
+ * without copying.
+ */
+final class ConcurrentKeyBits {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[][] bitmaps;
+    private final int numBits;
+
+    ConcurrentKeyBits(int numBits) {
+        this.numBits = numBits;
+        this.bitmaps = new long[(numBits + 0xFFFF) >>> 16][KeySet.WORDS];
+    }
+
+    /**
+     * Returns false for keys beyond the key space, which TermNumerator may
+     * have issued after the bits were sized; the caller keeps those itself.
+     */
+    boolean set(int key) {
+        if (key >= this.numBits)
+            return false;
+        long[] words = this.bitmaps[key >>> 16];
+        int i = (key & 0xFFFF) >>> 6;
+        long mask = 1L << key;
+        if (((long) WORDS.getOpaque(words, i) & mask) == 0)
+            WORDS.getAndBitwiseOr(words, i, mask);
+        return true;
+    }
+
+    int length() {
+        return this.numBits;
+    }
+
+    /**
+     * Only once all subs are done; SuperIndexSearcher waits for their tasks
+     * before completing the collector.
+     */
+    KeySet.Builder toBuilder() {
+        return new KeySet.Builder(this.bitmaps);
+    }
+}
@@ -31,40 +31,55 @@ import java.io.IOException;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.ScoreMode;
-import org.apache.lucene.util.FixedBitSet;
 import org.meresco.lucene.search.SubCollector;
 
 public class KeyCollector extends SubCollector {
     protected String keyName;
-    private int[] keyValuesArray;
-    protected FixedBitSet currentKeySet = new FixedBitSet(0);
-    protected int biggestKeyFound = 0;
+    private KeyValues keyValues;
+    protected KeySet.Builder keys = new KeySet.Builder();
+    private final KeySuperCollector parent;
+    private ConcurrentKeyBits sharedKeys;
+    private int collected;
 
     public KeyCollector(String keyName) {
+        this(keyName, null);
+    }
+
+    /**
+     * With a parent, keys go to its shared bitset once there is one, see
+     * KeySuperCollector(String, int).
+     */
+    KeyCollector(String keyName, KeySuperCollector parent) {
         this.keyName = keyName;
+        this.parent = parent;
     }
 
     @Override
     public void collect(int docId) throws IOException {
-        if (this.keyValuesArray != null) {
-            int value = this.keyValuesArray[docId];
-            if (value > 0) {
-                if (value > this.biggestKeyFound) {
-                    this.biggestKeyFound = value;
-                    this.currentKeySet = FixedBitSet.ensureCapacity(this.currentKeySet, value + 1);
-                }
-                this.currentKeySet.set(value);
-            }
+        if (this.keyValues != null) {
+            int value = this.keyValues.get(docId);
+            if (value > 0)
+                add(value);
         }
     }
 
+    void add(int key) {
+        if (this.sharedKeys != null && this.sharedKeys.set(key))
+            return;
+        this.keys.add(key);
+        if (this.sharedKeys == null && this.parent != null && ++this.collected > this.parent.denseFrom)
+            this.sharedKeys = this.parent.createSharedKeys();
+    }
+
     @Override
     public void doSetNextReader(LeafReaderContext context) throws IOException {
-        keyValuesArray = KeyValuesCache.get(context, keyName);
+        keyValues = KeyValuesCache.get(context, keyName);
+        if (this.sharedKeys == null && this.parent != null)
+            this.sharedKeys = this.parent.sharedKeys();
     }
 
-    public FixedBitSet getCollectedKeys() throws IOException {
-        return this.currentKeySet;
+    public KeySet getCollectedKeys() throws IOException {
+        return this.keys.build();
     }
 
     @Override
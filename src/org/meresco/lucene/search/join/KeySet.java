@@ -0,0 +1,581 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search.join;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * An immutable set of join keys, split like a roaring bitmap into chunks of
+ * 65536 keys. A chunk with at most ARRAY_MAX keys is a sorted char[] of the
+ * low 16 bits; a denser one is a bitmap of 1024 words. A query matching a
+ * few documents so needs a few bytes per key instead of a bit for every key
+ * TermNumerator ever issued.
+ *
+ * Chunks are always in their smallest form, so equal sets have equal chunks.
+ * length() is the size of the key space the set was made for, as with
+ * FixedBitSet, and only matters for inverting; equals ignores it.
+ */
+public final class KeySet implements Bits, Accountable {
+    static final int ARRAY_MAX = 4096;
+    static final int WORDS = 1 << 10;
+    private static final Chunk[] NO_CHUNKS = new Chunk[0];
+
+    private final Chunk[] chunks;
+    private final int length;
+    private final int cardinality;
+    private int hash;
+
+    private KeySet(Chunk[] chunks, int length) {
+        int n = chunks.length;
+        while (n > 0 && chunks[n - 1] == null)
+            n--;
+        this.chunks = n == chunks.length ? chunks : Arrays.copyOf(chunks, n);
+        int cardinality = 0;
+        for (Chunk chunk : this.chunks)
+            if (chunk != null)
+                cardinality += chunk.cardinality;
+        this.cardinality = cardinality;
+        int last = n == 0 ? 0 : ((n - 1) << 16 | this.chunks[n - 1].last()) + 1;
+        this.length = Math.max(length, last);
+    }
+
+    public static KeySet empty() {
+        return new KeySet(NO_CHUNKS, 0);
+    }
+
+    public static KeySet of(FixedBitSet bitSet) {
+        long[] words = bitSet.getBits();
+        int numWords = FixedBitSet.bits2words(bitSet.length());
+        Chunk[] chunks = new Chunk[(numWords + WORDS - 1) / WORDS];
+        for (int i = 0; i < chunks.length; i++) {
+            int from = i * WORDS;
+            int n = Math.min(WORDS, numWords - from);
+            long[] chunkWords = new long[WORDS];
+            System.arraycopy(words, from, chunkWords, 0, n);
+            chunks[i] = Chunk.of(chunkWords, n);
+        }
+        return new KeySet(chunks, bitSet.length());
+    }
+
+    /**
+     * The keys from up to (exclusive) to.
+     */
+    public static KeySet range(int from, int to) {
+        FixedBitSet bitSet = new FixedBitSet(to);
+        bitSet.set(from, to);
+        return of(bitSet);
+    }
+
+    @Override
+    public boolean get(int key) {
+        int high = key >>> 16;
+        if (high >= this.chunks.length)
+            return false;
+        Chunk chunk = this.chunks[high];
+        return chunk != null && chunk.contains(key & 0xFFFF);
+    }
+
+    @Override
+    public int length() {
+        return this.length;
+    }
+
+    public int cardinality() {
+        return this.cardinality;
+    }
+
+    /**
+     * The first key at or after from, or DocIdSetIterator.NO_MORE_DOCS.
+     */
+    public int nextKey(int from) {
+        for (int high = from >>> 16; high < this.chunks.length; high++) {
+            Chunk chunk = this.chunks[high];
+            if (chunk == null)
+                continue;
+            int low = chunk.next(high == from >>> 16 ? from & 0xFFFF : 0);
+            if (low >= 0)
+                return high << 16 | low;
+        }
+        return DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    public KeySet and(KeySet other) {
+        Chunk[] chunks = new Chunk[Math.min(this.chunks.length, other.chunks.length)];
+        for (int i = 0; i < chunks.length; i++)
+            if (this.chunks[i] != null && other.chunks[i] != null)
+                chunks[i] = this.chunks[i].and(other.chunks[i]);
+        return new KeySet(chunks, Math.max(this.length, other.length));
+    }
+
+    public KeySet or(KeySet other) {
+        Chunk[] chunks = new Chunk[Math.max(this.chunks.length, other.chunks.length)];
+        for (int i = 0; i < chunks.length; i++) {
+            Chunk a = i < this.chunks.length ? this.chunks[i] : null;
+            Chunk b = i < other.chunks.length ? other.chunks[i] : null;
+            chunks[i] = a == null ? b : b == null ? a : a.or(b);
+        }
+        return new KeySet(chunks, Math.max(this.length, other.length));
+    }
+
+    public KeySet andNot(KeySet other) {
+        Chunk[] chunks = this.chunks.clone();
+        for (int i = 0; i < Math.min(chunks.length, other.chunks.length); i++)
+            if (chunks[i] != null && other.chunks[i] != null)
+                chunks[i] = chunks[i].andNot(other.chunks[i]);
+        return new KeySet(chunks, Math.max(this.length, other.length));
+    }
+
+    public FixedBitSet toFixedBitSet() {
+        FixedBitSet bitSet = new FixedBitSet(this.length);
+        long[] words = bitSet.getBits();
+        for (int i = 0; i < this.chunks.length; i++)
+            if (this.chunks[i] != null)
+                this.chunks[i].orInto(words, i * WORDS);
+        return bitSet;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long bytes = 16 + 8L * this.chunks.length;
+        for (Chunk chunk : this.chunks)
+            if (chunk != null)
+                bytes += chunk.ramBytesUsed();
+        return bytes;
+    }
+
+    /**
+     * Feeds the number and cardinality of each chunk, then its contents, to
+     * consumer, the same for equal sets; used for fingerprints. The
+     * cardinality tells how many values the packed words of an array chunk
+     * hold, so sets like {65536, 65537} and {65537} differ.
+     */
+    public void forEachWord(LongConsumer consumer) {
+        for (int i = 0; i < this.chunks.length; i++) {
+            if (this.chunks[i] != null) {
+                consumer.accept((long) i << 32 | this.chunks[i].cardinality);
+                this.chunks[i].forEachWord(consumer);
+            }
+        }
+    }
+
+    /**
+     * length, number of chunks, then per chunk its number (char), cardinality
+     * (int) and either cardinality sorted chars or 1024 longs when the
+     * cardinality exceeds ARRAY_MAX.
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        int count = 0;
+        for (Chunk chunk : this.chunks)
+            if (chunk != null)
+                count++;
+        output.writeInt(this.length);
+        output.writeInt(count);
+        for (int i = 0; i < this.chunks.length; i++) {
+            Chunk chunk = this.chunks[i];
+            if (chunk == null)
+                continue;
+            output.writeChar(i);
+            output.writeInt(chunk.cardinality);
+            chunk.writeTo(output);
+        }
+    }
+
+    public static KeySet readFrom(DataInput input) throws IOException {
+        int length = input.readInt();
+        int count = input.readInt();
+        Chunk[] chunks = NO_CHUNKS;
+        for (int i = 0; i < count; i++) {
+            int high = input.readChar();
+            int cardinality = input.readInt();
+            if (high >= chunks.length)
+                chunks = Arrays.copyOf(chunks, high + 1);
+            if (cardinality <= ARRAY_MAX) {
+                char[] values = new char[cardinality];
+                for (int j = 0; j < cardinality; j++)
+                    values[j] = input.readChar();
+                chunks[high] = new ArrayChunk(values);
+            } else {
+                long[] words = new long[WORDS];
+                for (int j = 0; j < WORDS; j++)
+                    words[j] = input.readLong();
+                chunks[high] = new BitmapChunk(words, cardinality);
+            }
+        }
+        return new KeySet(chunks, length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof KeySet))
+            return false;
+        KeySet other = (KeySet) o;
+        if (this.cardinality != other.cardinality || this.chunks.length != other.chunks.length)
+            return false;
+        for (int i = 0; i < this.chunks.length; i++) {
+            Chunk a = this.chunks[i];
+            Chunk b = other.chunks[i];
+            if (a == null ? b != null : !a.equals(b))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = this.hash;
+        if (hash == 0) {
+            hash = this.cardinality;
+            for (Chunk chunk : this.chunks)
+                hash = 31 * hash + (chunk == null ? 0 : chunk.hashCode());
+            this.hash = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("KeySet(");
+        int shown = 0;
+        for (int key = nextKey(0); key != DocIdSetIterator.NO_MORE_DOCS && shown < 20; key = nextKey(key + 1), shown++)
+            sb.append(shown == 0 ? "" : ", ").append(key);
+        if (this.cardinality > shown)
+            sb.append(", ... ").append(this.cardinality).append(" keys");
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Collects keys in any order, into a bitmap per chunk. build() turns the
+     * sparse chunks into arrays.
+     */
+    public static class Builder {
+        private long[][] bitmaps;
+
+        public Builder() {
+            this(new long[0][]);
+        }
+
+        /**
+         * Builds on bitmaps, one of WORDS words (or null) per chunk, without
+         * copying them.
+         */
+        Builder(long[][] bitmaps) {
+            this.bitmaps = bitmaps;
+        }
+
+        public void add(int key) {
+            int high = key >>> 16;
+            if (high >= this.bitmaps.length)
+                this.bitmaps = Arrays.copyOf(this.bitmaps, Math.max(high + 1, this.bitmaps.length * 2));
+            long[] words = this.bitmaps[high];
+            if (words == null)
+                words = this.bitmaps[high] = new long[WORDS];
+            words[(key & 0xFFFF) >>> 6] |= 1L << key;
+        }
+
+        public void addAll(Builder other) {
+            if (other.bitmaps.length > this.bitmaps.length)
+                this.bitmaps = Arrays.copyOf(this.bitmaps, other.bitmaps.length);
+            for (int i = 0; i < other.bitmaps.length; i++) {
+                long[] words = other.bitmaps[i];
+                if (words == null)
+                    continue;
+                if (this.bitmaps[i] == null)
+                    this.bitmaps[i] = words.clone();
+                else
+                    for (int j = 0; j < WORDS; j++)
+                        this.bitmaps[i][j] |= words[j];
+            }
+        }
+
+        public KeySet build() {
+            return build(0);
+        }
+
+        public KeySet build(int length) {
+            Chunk[] chunks = new Chunk[this.bitmaps.length];
+            for (int i = 0; i < chunks.length; i++)
+                if (this.bitmaps[i] != null)
+                    chunks[i] = Chunk.of(this.bitmaps[i], WORDS);
+            return new KeySet(chunks, length);
+        }
+    }
+
+    private static abstract class Chunk {
+        final int cardinality;
+
+        Chunk(int cardinality) {
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * Returns null for an empty chunk. A bitmap chunk keeps words, which
+         * must have WORDS words, the ones from numWords on zero.
+         */
+        static Chunk of(long[] words, int numWords) {
+            int cardinality = 0;
+            for (int i = 0; i < numWords; i++)
+                cardinality += Long.bitCount(words[i]);
+            if (cardinality == 0)
+                return null;
+            if (cardinality > ARRAY_MAX)
+                return new BitmapChunk(words, cardinality);
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < numWords; i++)
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    values[n++] = (char) (i << 6 | Long.numberOfTrailingZeros(word));
+            return new ArrayChunk(values);
+        }
+
+        abstract boolean contains(int low);
+
+        /**
+         * The first value at or after low, or -1.
+         */
+        abstract int next(int low);
+
+        abstract int last();
+
+        abstract void orInto(long[] words, int offset);
+
+        abstract void clearFrom(long[] words);
+
+        abstract void forEachWord(LongConsumer consumer);
+
+        abstract void writeTo(DataOutput output) throws IOException;
+
+        abstract long ramBytesUsed();
+
+        Chunk and(Chunk other) {
+            if (this instanceof BitmapChunk && other instanceof BitmapChunk) {
+                long[] words = ((BitmapChunk) this).words.clone();
+                long[] otherWords = ((BitmapChunk) other).words;
+                for (int i = 0; i < WORDS; i++)
+                    words[i] &= otherWords[i];
+                return of(words, WORDS);
+            }
+            ArrayChunk array = (ArrayChunk) (this instanceof ArrayChunk ? this : other);
+            return array.filter(this == array ? other : this, true);
+        }
+
+        Chunk or(Chunk other) {
+            if (this instanceof ArrayChunk && other instanceof ArrayChunk && this.cardinality + other.cardinality <= ARRAY_MAX)
+                return ((ArrayChunk) this).merge((ArrayChunk) other);
+            long[] words = new long[WORDS];
+            this.orInto(words, 0);
+            other.orInto(words, 0);
+            return of(words, WORDS);
+        }
+
+        Chunk andNot(Chunk other) {
+            if (this instanceof ArrayChunk)
+                return ((ArrayChunk) this).filter(other, false);
+            long[] words = ((BitmapChunk) this).words.clone();
+            other.clearFrom(words);
+            return of(words, WORDS);
+        }
+    }
+
+    private static final class ArrayChunk extends Chunk {
+        final char[] values;
+
+        ArrayChunk(char[] values) {
+            super(values.length);
+            this.values = values;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch(this.values, (char) low) >= 0;
+        }
+
+        @Override
+        int next(int low) {
+            int i = Arrays.binarySearch(this.values, (char) low);
+            if (i < 0)
+                i = -i - 1;
+            return i < this.values.length ? this.values[i] : -1;
+        }
+
+        @Override
+        int last() {
+            return this.values[this.values.length - 1];
+        }
+
+        Chunk filter(Chunk other, boolean keep) {
+            char[] values = new char[this.values.length];
+            int n = 0;
+            for (char value : this.values)
+                if (other.contains(value) == keep)
+                    values[n++] = value;
+            return n == 0 ? null : n == values.length ? this : new ArrayChunk(Arrays.copyOf(values, n));
+        }
+
+        Chunk merge(ArrayChunk other) {
+            char[] values = new char[this.values.length + other.values.length];
+            int i = 0, j = 0, n = 0;
+            while (i < this.values.length && j < other.values.length) {
+                char a = this.values[i];
+                char b = other.values[j];
+                values[n++] = a <= b ? a : b;
+                if (a <= b)
+                    i++;
+                if (b <= a)
+                    j++;
+            }
+            while (i < this.values.length)
+                values[n++] = this.values[i++];
+            while (j < other.values.length)
+                values[n++] = other.values[j++];
+            return new ArrayChunk(n == values.length ? values : Arrays.copyOf(values, n));
+        }
+
+        @Override
+        void orInto(long[] words, int offset) {
+            for (char value : this.values)
+                words[offset + (value >>> 6)] |= 1L << value;
+        }
+
+        @Override
+        void clearFrom(long[] words) {
+            for (char value : this.values)
+                words[value >>> 6] &= ~(1L << value);
+        }
+
+        @Override
+        void forEachWord(LongConsumer consumer) {
+            for (int i = 0; i < this.values.length; i += 4) {
+                long word = 0;
+                for (int j = i; j < Math.min(i + 4, this.values.length); j++)
+                    word = word << 16 | this.values[j];
+                consumer.accept(word);
+            }
+        }
+
+        @Override
+        void writeTo(DataOutput output) throws IOException {
+            for (char value : this.values)
+                output.writeChar(value);
+        }
+
+        @Override
+        long ramBytesUsed() {
+            return 32 + 2L * this.values.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ArrayChunk && Arrays.equals(this.values, ((ArrayChunk) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.values);
+        }
+    }
+
+    private static final class BitmapChunk extends Chunk {
+        final long[] words;
+
+        BitmapChunk(long[] words, int cardinality) {
+            super(cardinality);
+            this.words = words;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return (this.words[low >>> 6] & 1L << low) != 0;
+        }
+
+        @Override
+        int next(int low) {
+            int i = low >>> 6;
+            long word = this.words[i] >>> low;
+            if (word != 0)
+                return low + Long.numberOfTrailingZeros(word);
+            while (++i < WORDS)
+                if (this.words[i] != 0)
+                    return i << 6 | Long.numberOfTrailingZeros(this.words[i]);
+            return -1;
+        }
+
+        @Override
+        int last() {
+            int i = WORDS - 1;
+            while (this.words[i] == 0)
+                i--;
+            return i << 6 | 63 - Long.numberOfLeadingZeros(this.words[i]);
+        }
+
+        @Override
+        void orInto(long[] words, int offset) {
+            int n = Math.min(WORDS, words.length - offset);
+            for (int i = 0; i < n; i++)
+                words[offset + i] |= this.words[i];
+        }
+
+        @Override
+        void clearFrom(long[] words) {
+            for (int i = 0; i < WORDS; i++)
+                words[i] &= ~this.words[i];
+        }
+
+        @Override
+        void forEachWord(LongConsumer consumer) {
+            for (long word : this.words)
+                consumer.accept(word);
+        }
+
+        @Override
+        void writeTo(DataOutput output) throws IOException {
+            for (long word : this.words)
+                output.writeLong(word);
+        }
+
+        @Override
+        long ramBytesUsed() {
+            return 32 + 8L * WORDS;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BitmapChunk && Arrays.equals(this.words, ((BitmapChunk) o).words);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.words);
+        }
+    }
+}
@@ -29,35 +29,71 @@ package org.meresco.lucene.search.join;
 
 import java.io.IOException;
 
-import org.apache.lucene.util.FixedBitSet;
 import org.meresco.lucene.search.SuperCollector;
 
 public class KeySuperCollector extends SuperCollector<KeyCollector> {
     protected final String keyName;
-    private FixedBitSet currentKeySet;
+    private final int keySpace;
+    final int denseFrom;
+    private volatile ConcurrentKeyBits sharedKeys;
+    private KeySet currentKeySet;
 
     public KeySuperCollector(String keyName) {
+        this(keyName, 0);
+    }
+
+    /**
+     * With a keySpace (TermNumerator.size()) large results are collected in
+     * one bitset of keySpace / 8 bytes shared by all subs, instead of each
+     * sub growing its own chunks to be merged by complete(). Subs start on
+     * their own chunks; one that collects more keys than the key space has
+     * chunks (denseFrom) is likely to touch most of them, and creates the
+     * shared bitset for itself and all subs after it.
+     */
+    public KeySuperCollector(String keyName, int keySpace) {
         this.keyName = keyName;
+        this.keySpace = keySpace;
+        this.denseFrom = keySpace >>> 16;
     }
 
     @Override
     protected KeyCollector createSubCollector() throws IOException {
-        return new KeyCollector(this.keyName);
+        return new KeyCollector(this.keyName, this.keySpace > 0 ? this : null);
+    }
+
+    ConcurrentKeyBits sharedKeys() {
+        return this.sharedKeys;
     }
 
+    ConcurrentKeyBits createSharedKeys() {
+        ConcurrentKeyBits sharedKeys = this.sharedKeys;
+        if (sharedKeys == null) {
+            synchronized (this) {
+                if (this.sharedKeys == null)
+                    this.sharedKeys = new ConcurrentKeyBits(this.keySpace + 1);
+                sharedKeys = this.sharedKeys;
+            }
+        }
+        return sharedKeys;
+    }
+
+    /**
+     * The chunks the subs collected are merged before the KeySet is built,
+     * so equal key sets are equal KeySets whichever sub searched which leaf
+     * (KeyFilter and the key caches rely on that). With shared keys the subs
+     * only hold the keys they collected before switching to them, and keys
+     * numerated after the bitset was sized.
+     */
     @Override
     public void complete() throws IOException {
-        FixedBitSet currentKeySet = super.subs.get(0).currentKeySet;
-        for (int i = 1; i < super.subs.size(); i++) {
-            FixedBitSet otherKeySet = super.subs.get(i).currentKeySet;
-            currentKeySet = FixedBitSet.ensureCapacity(currentKeySet, otherKeySet.length() + 1);
-            currentKeySet.or(otherKeySet);
-        }
+        KeySet.Builder keys = this.sharedKeys == null ? new KeySet.Builder() : this.sharedKeys.toBuilder();
+        for (KeyCollector sub : super.subs)
+            keys.addAll(sub.keys);
         super.subs.clear();
-        this.currentKeySet = currentKeySet;
+        this.currentKeySet = keys.build();
     }
 
-    public FixedBitSet getCollectedKeys() {
+    public KeySet getCollectedKeys() {
         return this.currentKeySet;
     }
 }
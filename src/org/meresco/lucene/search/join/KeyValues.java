@@ -0,0 +1,51 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search.join;
+
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * The key of every document of one segment, packed with as many bits as the
+ * largest key needs. Documents without a key have key 0.
+ */
+public class KeyValues {
+    private final PackedInts.Reader values;
+
+    KeyValues(PackedInts.Reader values) {
+        this.values = values;
+    }
+
+    public int get(int docId) {
+        return (int) this.values.get(docId);
+    }
+
+    public int size() {
+        return this.values.size();
+    }
+
+    long ramBytesUsed() {
+        return this.values.ramBytesUsed();
+    }
+}
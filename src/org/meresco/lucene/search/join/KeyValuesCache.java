@@ -28,63 +28,234 @@
 package org.meresco.lucene.search.join;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.TreeMap;
 
-import org.apache.lucene.index.IndexReader.CacheKey;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.PackedInts;
 
-
+/**
+ * Packed key values per segment and keyName, shared by all cores. The cache
+ * accounts for the bytes of the packed values and evicts the least recently
+ * used entries when they exceed maxBytes. All entries of a segment go when
+ * the segment is closed.
+ *
+ * The values of an entry are read once: a search that asks for an entry
+ * another search is still filling waits for it. Lucene warms the keyNames
+ * asked for before when a reader is refreshed, so searches normally find
+ * the new segments filled already.
+ */
 public class KeyValuesCache {
-    private static Map<Object, Map<String, CacheValue>> cache = new WeakHashMap<>();
+    private static KeyValuesCache shared;
+
+    private final Map<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<IndexReader.CacheKey> segments = new HashSet<>();
+    private final Map<String, Stats> stats = new TreeMap<>();
+    private long maxBytes;
+    private long bytes;
+
+    public KeyValuesCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized KeyValuesCache shared() {
+        if (shared == null)
+            shared = new KeyValuesCache(1024 * 1024 * 1024);
+        return shared;
+    }
+
+    public static KeyValues get(LeafReaderContext context, String keyName) throws IOException {
+        return shared().values(context.reader(), keyName, true);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    public synchronized long maxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Fills the entries of the segments of reader for every keyName asked
+     * for before.
+     */
+    public void warm(IndexReader reader) throws IOException {
+        Set<String> keyNames;
+        synchronized (this) {
+            keyNames = new HashSet<>(this.stats.keySet());
+        }
+        for (LeafReaderContext context : reader.leaves())
+            for (String keyName : keyNames)
+                values(context.reader(), keyName, false);
+    }
 
-    public static int[] get(LeafReaderContext context, String keyName) throws IOException {
-        LeafReader reader = context.reader();
+    KeyValues values(LeafReader reader, String keyName, boolean count) throws IOException {
         NumericDocValues ndv = reader.getNumericDocValues(keyName);
-        if (ndv == null) {
+        if (ndv == null)
             return null;
+        IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+        if (helper == null)
+            return read(ndv, reader.maxDoc());
+        Entry entry = entry(new Key(keyName, helper.getKey(), helper), count);
+        synchronized (entry) {
+            if (entry.values == null) {
+                entry.values = read(ndv, reader.maxDoc());
+                filled(entry);
+            }
+            return entry.values;
+        }
+    }
+
+    private static KeyValues read(NumericDocValues ndv, int maxDoc) throws IOException {
+        GrowableWriter values = new GrowableWriter(1, maxDoc, PackedInts.FAST);
+        for (int doc = ndv.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = ndv.nextDoc())
+            values.set(doc, ndv.longValue());
+        return new KeyValues(values.getMutable());
+    }
+
+    private synchronized Entry entry(Key key, boolean count) {
+        Stats stats = this.stats.computeIfAbsent(key.keyName, k -> new Stats());
+        Entry entry = this.cache.get(key);
+        if (entry != null && (entry.values != null || !count)) {
+            if (count)
+                stats.hits++;
+            return entry;
+        }
+        if (count)
+            stats.misses++;
+        if (entry == null) {
+            entry = new Entry(key);
+            this.cache.put(key, entry);
         }
+        return entry;
+    }
 
-        CacheValue cacheValue = safeGet(reader, keyName);
-        int[] keyValues = cacheValue.keyValues;
-        if (!cacheValue.newValue) {
-            return keyValues;
+    private synchronized void filled(Entry entry) {
+        if (this.cache.get(entry.key) != entry)
+            return;
+        if (this.segments.add(entry.key.segment)) {
+            try {
+                entry.key.helper.addClosedListener(this::clearSegment);
+            } catch (AlreadyClosedException e) {
+                this.segments.remove(entry.key.segment);
+                this.cache.remove(entry.key);
+                return;
+            }
         }
-        for (int i = 0; i <  reader.maxDoc(); i++) {
-            if (ndv.advanceExact(i)) {
-                keyValues[i] = (int) ndv.longValue();
+        this.bytes += entry.values.ramBytesUsed();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> entries = this.cache.values().iterator();
+        while (this.bytes > this.maxBytes && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.values == null)
+                continue;
+            this.bytes -= entry.values.ramBytesUsed();
+            entries.remove();
+            this.stats.get(entry.key.keyName).evictions++;
+        }
+    }
+
+    synchronized void clearSegment(IndexReader.CacheKey segment) {
+        this.segments.remove(segment);
+        Iterator<Entry> entries = this.cache.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.key.segment == segment) {
+                if (entry.values != null)
+                    this.bytes -= entry.values.ramBytesUsed();
+                entries.remove();
             }
         }
-        return keyValues;
     }
 
-    private static synchronized CacheValue safeGet(LeafReader reader, String keyName) {
-        CacheKey cacheKey = reader.getCoreCacheHelper().getKey();
-        Map<String, CacheValue> fieldCache = cache.get(cacheKey);
-        if (fieldCache == null) {
-            fieldCache = new HashMap<>();
-            KeyValuesCache.cache.put(cacheKey, fieldCache);
+    public synchronized void clear() {
+        this.cache.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized JsonObject statsAsJson() {
+        Map<String, long[]> sizes = new TreeMap<>();
+        for (Entry entry : this.cache.values()) {
+            if (entry.values == null)
+                continue;
+            long[] size = sizes.computeIfAbsent(entry.key.keyName, k -> new long[2]);
+            size[0]++;
+            size[1] += entry.values.ramBytesUsed();
         }
-        CacheValue cacheValue = fieldCache.get(keyName);
-        if (cacheValue == null) {
-            int[] keyValues = new int[reader.maxDoc()];
-            fieldCache.put(keyName, new CacheValue(keyValues, false));
-            cacheValue = new CacheValue(keyValues, true);
+        JsonObjectBuilder keyNames = Json.createObjectBuilder();
+        for (Map.Entry<String, Stats> e : this.stats.entrySet()) {
+            long[] size = sizes.getOrDefault(e.getKey(), new long[2]);
+            keyNames.add(e.getKey(), Json.createObjectBuilder()
+                    .add("entries", size[0])
+                    .add("bytesUsed", size[1])
+                    .add("hits", e.getValue().hits)
+                    .add("misses", e.getValue().misses)
+                    .add("evictions", e.getValue().evictions));
         }
-        return cacheValue;
+        return Json.createObjectBuilder()
+                .add("entries", this.cache.size())
+                .add("bytesUsed", this.bytes)
+                .add("maxBytes", this.maxBytes)
+                .add("keyNames", keyNames)
+                .build();
+    }
+
+    private static class Stats {
+        long hits;
+        long misses;
+        long evictions;
     }
-}
 
+    private static class Entry {
+        final Key key;
+        volatile KeyValues values;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+    }
 
-class CacheValue {
-    int[] keyValues;
-    boolean newValue;
+    static class Key {
+        final String keyName;
+        final IndexReader.CacheKey segment;
+        final IndexReader.CacheHelper helper;
 
-    CacheValue(int[] keyValues, boolean newValue) {
-        this.keyValues = keyValues;
-        this.newValue = newValue;
+        Key(String keyName, IndexReader.CacheKey segment, IndexReader.CacheHelper helper) {
+            this.keyName = keyName;
+            this.segment = segment;
+            this.helper = helper;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.segment == other.segment && this.keyName.equals(other.keyName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.segment) + this.keyName.hashCode();
+        }
     }
 }
@@ -28,73 +28,171 @@
 package org.meresco.lucene.search.join;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.Scorable;
 import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.meresco.lucene.Utils;
 import org.meresco.lucene.search.NumericDocValuesRandomAccess;
 import org.meresco.lucene.search.SubCollector;
 import org.meresco.lucene.search.SuperCollector;
 
-public class ScoreSuperCollector extends SuperCollector<ScoreSubCollector> {
+/**
+ * Scores of keys, as float16 in a table indexed by key. Documents with the
+ * same key are combined with the Aggregate, MAX unless given otherwise.
+ *
+ * Scores are collected per segment, so they can be cached per segment:
+ * segments whose scores are given are not searched again. Each sub, once
+ * done, composes its segments and the given ones it can take into a table
+ * and merges it with the tables of the subs done before it, so composing
+ * overlaps the subs still searching.
+ */
+public class ScoreSuperCollector extends SuperCollector<ScoreSubCollector> implements Accountable {
     final String keyName;
-    final BlockingDeque<byte[]> arrayPool = new LinkedBlockingDeque<>();
-    private byte[] scores;
+    final Aggregate aggregate;
+    private SegmentScores[] given;
+    private final Queue<SegmentScores> uncomposed = new ConcurrentLinkedQueue<>();
+    private final BlockingDeque<short[]> tablePool = new LinkedBlockingDeque<>();
+    private final Map<Integer, SegmentScores> segmentScores = new HashMap<>();
+    private short[] scores = new short[0];
+
+    public enum Aggregate {
+        MAX {
+            @Override
+            float apply(float a, float b) {
+                return Math.max(a, b);
+            }
+        },
+        SUM {
+            @Override
+            float apply(float a, float b) {
+                return a + b;
+            }
+        };
+
+        abstract float apply(float a, float b);
+
+        short apply(short a, short b) {
+            if (a == 0)
+                return b;
+            if (b == 0)
+                return a;
+            return Utils.floatToHalf(apply(Utils.halfToFloat(a), Utils.halfToFloat(b)));
+        }
+    }
 
     public ScoreSuperCollector(String keyName) {
+        this(keyName, Aggregate.MAX, null);
+    }
+
+    /**
+     * given has an element for every leaf of the reader that will be
+     * searched, by ord; leaves with scores given are not collected.
+     */
+    public ScoreSuperCollector(String keyName, Aggregate aggregate, SegmentScores[] given) {
         this.keyName = keyName;
+        this.aggregate = aggregate;
+        this.given = given;
+        if (given != null)
+            for (SegmentScores scores : given)
+                if (scores != null)
+                    this.uncomposed.add(scores);
     }
 
     public float score(int key) {
-        int scoresIndex = key * 2;
-        if ((scoresIndex + 1) < this.scores.length) {
-            int scoreAsBytes = (this.scores[scoresIndex] & 0xff) << 8 | (this.scores[scoresIndex + 1] & 0xff);
-            return Utils.int1120ToFloat(scoreAsBytes);
-        }
+        if (key < this.scores.length)
+            return Utils.halfToFloat(this.scores[key]);
         return 0;
     }
 
+    boolean isGiven(int ord) {
+        return this.given != null && this.given[ord] != null;
+    }
+
     @Override
     protected ScoreSubCollector createSubCollector() throws IOException {
         return new ScoreSubCollector(this);
     }
 
+    void compose(List<SegmentScores> segments) {
+        SegmentScores given;
+        while ((given = this.uncomposed.poll()) != null)
+            segments.add(given);
+        if (segments.isEmpty())
+            return;
+        int maxKey = 0;
+        for (SegmentScores s : segments)
+            maxKey = Math.max(maxKey, s.maxKey());
+        short[] table = new short[maxKey + 1];
+        for (SegmentScores s : segments)
+            s.aggregateInto(table, this.aggregate);
+        short[] other;
+        while ((other = this.tablePool.poll()) != null)
+            table = merge(table, other);
+        this.tablePool.push(table);
+    }
+
+    private short[] merge(short[] a, short[] b) {
+        if (b.length > a.length)
+            return merge(b, a);
+        for (int i = 0; i < b.length; i++)
+            if (b[i] != 0)
+                a[i] = this.aggregate.apply(a[i], b[i]);
+        return a;
+    }
+
     @Override
     public void complete() {
-        mergePool(this.arrayPool.poll());
-        this.scores = this.arrayPool.poll();
+        compose(new ArrayList<>());
+        short[] table = this.tablePool.poll();
+        short[] other;
+        while ((other = this.tablePool.poll()) != null)
+            table = merge(table, other);
+        if (table != null)
+            this.scores = table;
+        for (ScoreSubCollector sub : super.subs)
+            for (Map.Entry<Integer, SegmentScores> entry : sub.segmentScores.entrySet())
+                this.segmentScores.merge(entry.getKey(), entry.getValue(), (a, b) -> SegmentScores.merge(a, b, this.aggregate));
         super.subs.clear();
     }
 
-    public void mergePool(byte[] scores) {
-        byte[] other = this.arrayPool.poll();
-        while (other != null) {
-            scores = resize(scores, other.length);
-            for (int i = 0; i < Math.min(scores.length, other.length); i++) {
-                if (scores[i] == 0) {
-                    scores[i] = other[i];
-                }
-            }
-            other = this.arrayPool.poll();
-        }
-        this.arrayPool.push(scores);
+    /**
+     * The scores collected from the leaf with this ord, for caching.
+     */
+    public SegmentScores getSegmentScores(int ord) {
+        return this.segmentScores.getOrDefault(ord, SegmentScores.EMPTY);
     }
 
-    static byte[] resize(byte[] a, int newSize) {
-        if (newSize <= a.length) {
-            return a;
-        }
-        byte[] dest = new byte[newSize];
-        System.arraycopy(a, 0, dest, 0, a.length);
-        return dest;
+    /**
+     * Drops the scores per segment once they are cached on their own, so a
+     * cached ScoreSuperCollector holds only its table.
+     */
+    public void releaseSegmentScores() {
+        this.segmentScores.clear();
+        this.given = null;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.shallowSizeOf(this) + RamUsageEstimator.sizeOf(this.scores);
     }
 }
 
 class ScoreSubCollector extends SubCollector {
-    private byte[] scores = new byte[0];
+    private final Map<Integer, SegmentScores.Builder> segments = new HashMap<>();
+    final Map<Integer, SegmentScores> segmentScores = new HashMap<>();
+    private SegmentScores.Builder current;
     private Scorable scorer;
     private NumericDocValuesRandomAccess keyValues;
     private final ScoreSuperCollector parent;
@@ -106,7 +204,10 @@ class ScoreSubCollector extends SubCollector {
 
     @Override
     public void doSetNextReader(LeafReaderContext context) throws IOException {
+        if (this.parent.isGiven(context.ord))
+            throw new CollectionTerminatedException();
         this.keyValues = new NumericDocValuesRandomAccess(context.reader(), parent.keyName);
+        this.current = this.segments.computeIfAbsent(context.ord, ord -> new SegmentScores.Builder(this.parent.aggregate));
     }
 
     @Override
@@ -117,20 +218,16 @@ class ScoreSubCollector extends SubCollector {
     @Override
     public void collect(int doc) throws IOException {
         int value = (int) this.keyValues.get(doc);
-        if (value > 0) {
-            int scoresIndex = value * 2;
-            if ((scoresIndex + 1) >= this.scores.length) {
-                this.scores = ScoreSuperCollector.resize(this.scores, (int) ((scoresIndex + 2) * 1.25));
-            }
-            int scoreAsBytes = Utils.floatToInt1120(scorer.score());
-            this.scores[scoresIndex] = (byte) ((scoreAsBytes >>> 8) & 0xff);
-            this.scores[scoresIndex + 1] = (byte) (scoreAsBytes & 0xff);
-        }
+        if (value > 0)
+            this.current.add(value, scorer.score());
     }
 
     @Override
     public void complete() {
-        this.parent.mergePool(this.scores);
+        for (Map.Entry<Integer, SegmentScores.Builder> entry : this.segments.entrySet())
+            this.segmentScores.put(entry.getKey(), entry.getValue().build());
+        this.segments.clear();
+        this.parent.compose(new ArrayList<>(this.segmentScores.values()));
     }
 
     @Override
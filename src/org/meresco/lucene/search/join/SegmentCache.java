@@ -0,0 +1,237 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.Accountable;
+import org.meresco.lucene.queries.KeyFilter;
+
+/**
+ * Results of one core per segment, keyName and queries, like the keys of a
+ * filter or the scores of a rank query. Queries are cached by queryKey():
+ * a KeyFilter by the fingerprint of its keys, so entries do not keep key
+ * sets that are not counted in maxBytes. A refresh only adds the new
+ * segments, so results are collected for those and composed with the cached
+ * ones instead of starting over. Composed results can be kept too, keyed by
+ * the top level reader, so as long as nothing changes they cost a lookup.
+ *
+ * An entry is keyed by the core of the segment and remembers the reader it
+ * was collected from: the reader cache key changes with every change to the
+ * live docs, so after deletes the entry no longer matches and is replaced.
+ * All entries of a segment go when the segment is closed; least recently
+ * used ones are evicted when they take more than maxBytes.
+ */
+public class SegmentCache<T extends Accountable> {
+    private final Map<Key, Entry<T>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<IndexReader.CacheKey> segments = new HashSet<>();
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public SegmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    /**
+     * What results for the queries are cached by; null when they can not be
+     * cached, because a KeyFilter can not be fingerprinted or is part of
+     * another query.
+     */
+    public static Object queryKey(Query... queries) {
+        List<Object> keys = new ArrayList<>();
+        for (Query query : queries) {
+            Object key = query;
+            if (query instanceof KeyFilter)
+                key = ((KeyFilter) query).cacheKey();
+            else if (query != null && containsKeyFilter(query))
+                key = null;
+            if (key == null && query != null)
+                return null;
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static boolean containsKeyFilter(Query query) {
+        boolean[] found = {false};
+        query.visit(new QueryVisitor() {
+            @Override
+            public void visitLeaf(Query leaf) {
+                found[0] |= leaf instanceof KeyFilter;
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                return this;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * Returns null when nothing was collected for this segment, or it was
+     * collected before its live docs changed.
+     */
+    public synchronized T get(IndexReader reader, String keyName, Object queryKey) {
+        Key key = key(reader, keyName, queryKey);
+        Entry<T> entry = key == null ? null : this.cache.get(key);
+        if (entry == null || entry.liveDocs != reader.getReaderCacheHelper().getKey()) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(IndexReader reader, String keyName, Object queryKey, T value) {
+        Key key = key(reader, keyName, queryKey);
+        long size = value.ramBytesUsed();
+        if (key == null || size > this.maxBytes)
+            return;
+        if (this.segments.add(key.segment)) {
+            try {
+                segmentCacheHelper(reader).addClosedListener(this::clearSegment);
+            } catch (AlreadyClosedException e) {
+                this.segments.remove(key.segment);
+                return;
+            }
+        }
+        Entry<T> old = this.cache.put(key, new Entry<>(reader.getReaderCacheHelper().getKey(), value));
+        if (old != null)
+            this.bytes -= old.value.ramBytesUsed();
+        this.bytes += size;
+        evict();
+    }
+
+    private static Key key(IndexReader reader, String keyName, Object queryKey) {
+        IndexReader.CacheHelper segment = segmentCacheHelper(reader);
+        if (segment == null || reader.getReaderCacheHelper() == null || queryKey == null)
+            return null;
+        return new Key(segment.getKey(), keyName, queryKey);
+    }
+
+    private static IndexReader.CacheHelper segmentCacheHelper(IndexReader reader) {
+        if (reader instanceof LeafReader)
+            return ((LeafReader) reader).getCoreCacheHelper();
+        return reader.getReaderCacheHelper();
+    }
+
+    private void evict() {
+        Iterator<Entry<T>> entries = this.cache.values().iterator();
+        while (this.bytes > this.maxBytes && entries.hasNext()) {
+            this.bytes -= entries.next().value.ramBytesUsed();
+            entries.remove();
+            this.evictions++;
+        }
+    }
+
+    synchronized void clearSegment(IndexReader.CacheKey segment) {
+        this.segments.remove(segment);
+        Iterator<Map.Entry<Key, Entry<T>>> entries = this.cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Entry<T>> entry = entries.next();
+            if (entry.getKey().segment == segment) {
+                this.bytes -= entry.getValue().value.ramBytesUsed();
+                entries.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.cache.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized JsonObject statsAsJson() {
+        return Json.createObjectBuilder()
+                .add("entries", this.cache.size())
+                .add("bytesUsed", this.bytes)
+                .add("maxBytes", this.maxBytes)
+                .add("hits", this.hits)
+                .add("misses", this.misses)
+                .add("evictions", this.evictions)
+                .build();
+    }
+
+    private static class Entry<T> {
+        final IndexReader.CacheKey liveDocs;
+        final T value;
+
+        Entry(IndexReader.CacheKey liveDocs, T value) {
+            this.liveDocs = liveDocs;
+            this.value = value;
+        }
+    }
+
+    private static class Key {
+        final IndexReader.CacheKey segment;
+        final String keyName;
+        final Object query;
+
+        Key(IndexReader.CacheKey segment, String keyName, Object query) {
+            this.segment = segment;
+            this.keyName = keyName;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.segment == other.segment && this.keyName.equals(other.keyName) && Objects.equals(this.query, other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(this.segment) + this.keyName.hashCode()) + Objects.hashCode(this.query);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.meresco.lucene.search.SuperCollector;
+
+/**
+ * Collects keys per segment, skipping the segments whose keys are known
+ * already, so the keys of a filter can be cached per segment.
+ */
+public class SegmentKeySuperCollector extends SuperCollector<SegmentKeySuperCollector.SegmentKeyCollector> {
+    private final String keyName;
+    private final boolean[] skip;
+    private KeySet[] segmentKeys;
+
+    /**
+     * skip has an element for every leaf of the reader that will be searched,
+     * by ord; leaves for which it is true are not collected.
+     */
+    public SegmentKeySuperCollector(String keyName, boolean[] skip) {
+        this.keyName = keyName;
+        this.skip = skip;
+    }
+
+    @Override
+    protected SegmentKeyCollector createSubCollector() throws IOException {
+        return new SegmentKeyCollector(this.keyName, this.skip);
+    }
+
+    @Override
+    public void complete() throws IOException {
+        KeySet.Builder[] builders = new KeySet.Builder[this.skip.length];
+        for (SegmentKeyCollector sub : super.subs)
+            for (Map.Entry<Integer, KeySet.Builder> entry : sub.segments.entrySet()) {
+                int ord = entry.getKey();
+                if (builders[ord] == null)
+                    builders[ord] = new KeySet.Builder();
+                builders[ord].addAll(entry.getValue());
+            }
+        super.subs.clear();
+        this.segmentKeys = new KeySet[this.skip.length];
+        for (int ord = 0; ord < this.skip.length; ord++)
+            if (!this.skip[ord])
+                this.segmentKeys[ord] = builders[ord] == null ? KeySet.empty() : builders[ord].build();
+    }
+
+    /**
+     * The keys of the leaf with this ord, or null for a skipped leaf.
+     */
+    public KeySet getSegmentKeys(int ord) {
+        return this.segmentKeys[ord];
+    }
+
+    static class SegmentKeyCollector extends KeyCollector {
+        private final boolean[] skip;
+        final Map<Integer, KeySet.Builder> segments = new HashMap<>();
+
+        SegmentKeyCollector(String keyName, boolean[] skip) {
+            super(keyName);
+            this.skip = skip;
+        }
+
+        @Override
+        public void doSetNextReader(LeafReaderContext context) throws IOException {
+            if (this.skip[context.ord])
+                throw new CollectionTerminatedException();
+            super.doSetNextReader(context);
+            super.keys = this.segments.computeIfAbsent(context.ord, ord -> new KeySet.Builder());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.meresco.lucene.Utils;
+import org.meresco.lucene.search.join.ScoreSuperCollector.Aggregate;
+
+/**
+ * The scores one segment gave to keys: the keys in increasing order, each
+ * with the aggregate of the scores of its documents as a float16.
+ */
+public final class SegmentScores implements Accountable {
+    static final SegmentScores EMPTY = new SegmentScores(new int[0], new short[0]);
+
+    private final int[] keys;
+    private final short[] scores;
+
+    private SegmentScores(int[] keys, short[] scores) {
+        this.keys = keys;
+        this.scores = scores;
+    }
+
+    public int size() {
+        return this.keys.length;
+    }
+
+    public int maxKey() {
+        return this.keys.length == 0 ? 0 : this.keys[this.keys.length - 1];
+    }
+
+    /**
+     * table is indexed by key and must be longer than maxKey().
+     */
+    void aggregateInto(short[] table, Aggregate aggregate) {
+        for (int i = 0; i < this.keys.length; i++)
+            table[this.keys[i]] = aggregate.apply(table[this.keys[i]], this.scores[i]);
+    }
+
+    static SegmentScores merge(SegmentScores a, SegmentScores b, Aggregate aggregate) {
+        int[] keys = new int[a.keys.length + b.keys.length];
+        short[] scores = new short[keys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.keys.length || j < b.keys.length) {
+            if (j == b.keys.length || (i < a.keys.length && a.keys[i] < b.keys[j])) {
+                keys[n] = a.keys[i];
+                scores[n++] = a.scores[i++];
+            } else if (i == a.keys.length || b.keys[j] < a.keys[i]) {
+                keys[n] = b.keys[j];
+                scores[n++] = b.scores[j++];
+            } else {
+                keys[n] = a.keys[i];
+                scores[n++] = aggregate.apply(a.scores[i++], b.scores[j++]);
+            }
+        }
+        return new SegmentScores(Arrays.copyOf(keys, n), Arrays.copyOf(scores, n));
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.shallowSizeOf(this) + RamUsageEstimator.sizeOf(this.keys) + RamUsageEstimator.sizeOf(this.scores);
+    }
+
+    /**
+     * Scores in collection order; a key may come more than once. When full,
+     * the scores are aggregated per key in place, so the builder grows with
+     * the distinct keys of the segment rather than with its documents.
+     */
+    static class Builder {
+        private final Aggregate aggregate;
+        private int[] keys = new int[16];
+        private float[] scores = new float[16];
+        private int size;
+
+        Builder(Aggregate aggregate) {
+            this.aggregate = aggregate;
+        }
+
+        void add(int key, float score) {
+            if (this.size == this.keys.length) {
+                compact();
+                if (this.size > this.keys.length / 2) {
+                    this.keys = ArrayUtil.grow(this.keys, this.size + 1);
+                    this.scores = ArrayUtil.growExact(this.scores, this.keys.length);
+                }
+            }
+            this.keys[this.size] = key;
+            this.scores[this.size++] = score;
+        }
+
+        private void compact() {
+            new IntroSorter() {
+                private int pivot;
+
+                @Override
+                protected void swap(int i, int j) {
+                    int key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    float score = scores[i];
+                    scores[i] = scores[j];
+                    scores[j] = score;
+                }
+
+                @Override
+                protected int compare(int i, int j) {
+                    return Integer.compare(keys[i], keys[j]);
+                }
+
+                @Override
+                protected void setPivot(int i) {
+                    this.pivot = keys[i];
+                }
+
+                @Override
+                protected int comparePivot(int j) {
+                    return Integer.compare(this.pivot, keys[j]);
+                }
+            }.sort(0, this.size);
+            int n = -1;
+            for (int i = 0; i < this.size; i++) {
+                if (n >= 0 && this.keys[n] == this.keys[i])
+                    this.scores[n] = this.aggregate.apply(this.scores[n], this.scores[i]);
+                else {
+                    this.keys[++n] = this.keys[i];
+                    this.scores[n] = this.scores[i];
+                }
+            }
+            this.size = n + 1;
+        }
+
+        SegmentScores build() {
+            compact();
+            if (this.size == 0)
+                return EMPTY;
+            short[] halfs = new short[this.size];
+            for (int i = 0; i < this.size; i++)
+                halfs[i] = Utils.floatToHalf(this.scores[i]);
+            return new SegmentScores(Arrays.copyOf(this.keys, this.size), halfs);
+        }
+    }
+}
@@ -25,30 +25,30 @@
 package org.meresco.lucene.search.join.relational;
 
 import org.apache.lucene.search.DocIdSetIterator;
-import org.apache.lucene.util.FixedBitSet;
 import org.meresco.lucene.Lucene;
 import org.meresco.lucene.queries.KeyFilter;
+import org.meresco.lucene.search.join.KeySet;
 
 
 public class KeyBits {
-    FixedBitSet bitset;
+    KeySet keySet;
     boolean inverted;
 
-    public KeyBits(FixedBitSet bitSet) {
-        this.bitset = bitSet;
+    public KeyBits(KeySet keySet) {
+        this.keySet = keySet;
     }
 
-    public KeyBits(FixedBitSet bitSet, boolean inverted) {
-        this.bitset = bitSet;
+    public KeyBits(KeySet keySet, boolean inverted) {
+        this.keySet = keySet;
         this.inverted = inverted;
     }
 
     public KeyFilter keyFilterFor(String keyName) {
-        return new KeyFilter(this.bitset, keyName, this.inverted);
+        return new KeyFilter(this.keySet, keyName, this.inverted);
     }
 
-    public FixedBitSet getBitSet(Lucene lucene, String keyName) throws Throwable {
-        FixedBitSet result = this.bitset;
+    public KeySet getKeySet(Lucene lucene, String keyName) throws Throwable {
+        KeySet result = this.keySet;
         if (this.inverted) {
             result = lucene.collectKeys(this.keyFilterFor(keyName), keyName, null);
         }
@@ -56,36 +56,34 @@ public class KeyBits {
     }
 
     /**
-     * mutates in place
+     * replaces the key set of this
      */
     public void intersect(KeyBits other) {
-        FixedBitSet otherBitSet = other.bitset;
-        this.normalizeBitSet(otherBitSet.length());
+        this.normalize(other.keySet.length());
         if (other.inverted) {
-            this.bitset.andNot(otherBitSet);
+            this.keySet = this.keySet.andNot(other.keySet);
         }
         else {
-            this.bitset.and(otherBitSet);
+            this.keySet = this.keySet.and(other.keySet);
         }
     }
 
     /**
-     * mutates in place
+     * replaces the key set of this
      */
     public void union(KeyBits other) {
-        other.normalizeBitSet(this.bitset.length());
-        FixedBitSet otherBitSet = other.bitset;
-        this.normalizeBitSet(otherBitSet.length());
-        this.bitset.or(otherBitSet);
+        other.normalize(this.keySet.length());
+        this.normalize(other.keySet.length());
+        this.keySet = this.keySet.or(other.keySet);
     }
 
     /**
-     * mutates in place
+     * An inverted key set becomes the keys below size (or its own length)
+     * that are not in it.
      */
-    KeyBits normalizeBitSet(int size) {
-        this.bitset = FixedBitSet.ensureCapacity(this.bitset, size);
+    KeyBits normalize(int size) {
         if (this.inverted) {
-            this.bitset.flip(0, this.bitset.length());  // seems expensive
+            this.keySet = KeySet.range(0, Math.max(size, this.keySet.length())).andNot(this.keySet);
             this.inverted = false;
         }
         return this;
@@ -94,16 +92,14 @@ public class KeyBits {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(getClass().getSimpleName() + "(bitset=[");
+        sb.append(getClass().getSimpleName() + "(keySet=[");
         boolean listStart = true;
-        if (this.bitset.cardinality() > 0) {
-            for (int i = this.bitset.nextSetBit(0); i != DocIdSetIterator.NO_MORE_DOCS; i = this.bitset.nextSetBit(i+1)) {
-                if (!listStart) {
-                    sb.append(", ");
-                }
-                sb.append("" + i);
-                listStart = false;
+        for (int i = this.keySet.nextKey(0); i != DocIdSetIterator.NO_MORE_DOCS; i = this.keySet.nextKey(i+1)) {
+            if (!listStart) {
+                sb.append(", ");
             }
+            sb.append("" + i);
+            listStart = false;
         }
         sb.append("], inverted=" + inverted + ")");
         return sb.toString();
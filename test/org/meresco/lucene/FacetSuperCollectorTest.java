@@ -28,10 +28,13 @@ package org.meresco.lucene;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
+
 import org.apache.lucene.facet.FacetsConfig;
 import org.apache.lucene.facet.taxonomy.CachedOrdinalsReader;
 import org.apache.lucene.facet.taxonomy.DocValuesOrdinalsReader;
 import org.junit.Test;
+import org.meresco.lucene.search.FacetCounts;
 import org.meresco.lucene.search.FacetSuperCollector;
 
 public class FacetSuperCollectorTest extends SeecrTestCase {
@@ -39,21 +42,29 @@ public class FacetSuperCollectorTest extends SeecrTestCase {
     @Test
     public void testEmpty() {
         FacetSuperCollector f = new FacetSuperCollector(null, new FacetsConfig(), new CachedOrdinalsReader(new DocValuesOrdinalsReader()));
-        assertEquals(null, f.getFirstArray());
+        assertEquals(null, f.getFirstCounts());
     }
 
     @Test
     public void testOneArray() {
         FacetSuperCollector f = new FacetSuperCollector(null, new FacetsConfig(), new CachedOrdinalsReader(new DocValuesOrdinalsReader()));
-        f.mergePool(new int[] {0, 1, 2, 3, 4});
-        assertArrayEquals(new int[] {0, 1, 2, 3, 4}, f.getFirstArray());
+        f.mergePool(counts(0, 1, 2, 3, 4));
+        assertArrayEquals(new int[] {0, 1, 2, 3, 4}, Arrays.copyOf(f.getFirstCounts().values(), 5));
     }
 
     @Test
     public void testMergeTwoArray() {
         FacetSuperCollector f = new FacetSuperCollector(null, new FacetsConfig(), new CachedOrdinalsReader(new DocValuesOrdinalsReader()));
-        f.mergePool(new int[] {0, 1, 2, 3, 4});
-        f.mergePool(new int[] {0, 0, 1, 1, 1});
-        assertArrayEquals(new int[] {0, 1, 3, 4, 5}, f.getFirstArray());
+        f.mergePool(counts(0, 1, 2, 3, 4));
+        f.mergePool(counts(0, 0, 1, 1, 1));
+        assertArrayEquals(new int[] {0, 1, 3, 4, 5}, Arrays.copyOf(f.getFirstCounts().values(), 5));
+    }
+
+    private static FacetCounts counts(int... values) {
+        FacetCounts counts = new FacetCounts(values.length, values.length);
+        for (int ord = 0; ord < values.length; ord++)
+            if (values[ord] > 0)
+                counts.add(ord, values[ord]);
+        return counts;
     }
 }
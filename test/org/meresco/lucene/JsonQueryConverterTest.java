@@ -29,6 +29,7 @@ package org.meresco.lucene;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.StringReader;
@@ -59,6 +60,7 @@ import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.search.spell.SuggestMode;
 import org.junit.Test;
 import org.meresco.lucene.JsonQueryConverter.FacetRequest;
+import org.meresco.lucene.JsonQueryConverter.RangeFacetRequest;
 import org.meresco.lucene.search.JoinSortField;
 import org.meresco.lucene.search.join.relational.JoinAndQuery;
 import org.meresco.lucene.search.join.relational.JoinOrQuery;
@@ -83,6 +85,24 @@ public class JsonQueryConverterTest {
         assertEquals(new TermQuery(new Term("field", "value")), q.query);
     }
 
+    @Test
+    public void testTimeBudgetStartsWhenParsed() throws Exception {
+        JsonObject json = Json.createObjectBuilder()
+                .add("query", Json.createObjectBuilder()
+                    .add("type", "MatchAllDocsQuery"))
+                .add("timeAllowed", 1)
+                .build();
+        QueryData q = new QueryData(new StringReader(json.toString()), queryConverter);
+        Thread.sleep(5);
+        assertTrue(q.timeBudget().shouldExit());
+
+        json = Json.createObjectBuilder()
+                .add("query", Json.createObjectBuilder()
+                    .add("type", "MatchAllDocsQuery"))
+                .build();
+        assertNull(new QueryData(new StringReader(json.toString()), queryConverter).timeBudget());
+    }
+
     @Test
     public void testTermQueryWithBoost() {
         JsonObject json = Json.createObjectBuilder()
@@ -390,6 +410,38 @@ public class JsonQueryConverterTest {
         assertArrayEquals(new String[] {"value1", "subvalue2"}, facets.get(0).path);
     }
 
+    @Test
+    public void testRangeFacets() {
+        JsonObject json = Json.createObjectBuilder()
+                .add("query", Json.createObjectBuilder()
+                        .add("type", "MatchAllDocsQuery"))
+                .add("facets", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder()
+                                .add("fieldname", "price")
+                                .add("type", "Double")
+                                .add("ranges", Json.createArrayBuilder()
+                                    .add(Json.createObjectBuilder().add("label", "cheap").add("max", 10))
+                                    .add(Json.createObjectBuilder().add("label", "other").add("min", 10))))
+                        .add(Json.createObjectBuilder()
+                                .add("fieldname", "year")
+                                .add("interval", 10)))
+                .build();
+        QueryData q = new QueryData(new StringReader(json.toString()), queryConverter);
+        assertEquals(2, q.facets.size());
+        RangeFacetRequest price = (RangeFacetRequest) q.facets.get(0);
+        assertEquals("price", price.fieldname);
+        assertTrue(price.doubles);
+        assertFalse(price.isHistogram());
+        assertEquals(2, price.ranges.size());
+        assertEquals("cheap", price.ranges.get(0).label);
+        assertEquals(Double.NEGATIVE_INFINITY, price.ranges.get(0).min, 0);
+        assertEquals(10, price.ranges.get(0).max, 0);
+        assertEquals(Double.POSITIVE_INFINITY, price.ranges.get(1).max, 0);
+        RangeFacetRequest year = (RangeFacetRequest) q.facets.get(1);
+        assertFalse(year.doubles);
+        assertEquals(10, year.interval, 0);
+    }
+
     @Test
     public void testSortKeys() {
         JsonObject json = Json.createObjectBuilder()
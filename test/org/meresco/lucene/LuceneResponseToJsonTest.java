@@ -27,6 +27,8 @@
 package org.meresco.lucene;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -41,6 +43,7 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.search.spell.SuggestWord;
 import org.junit.Test;
 import org.meresco.lucene.LuceneResponse.ClusterHit;
@@ -50,6 +53,7 @@ import org.meresco.lucene.LuceneResponse.Hit;
 import org.meresco.lucene.search.MerescoCluster;
 import org.meresco.lucene.search.MerescoCluster.DocScore;
 import org.meresco.lucene.search.MerescoCluster.TermScore;
+import org.meresco.lucene.search.TimeBudget;
 
 
 public class LuceneResponseToJsonTest {
@@ -154,6 +158,41 @@ public class LuceneResponseToJsonTest {
         assertEquals(5, duplicateCount.getInt("__key__"));
     }
 
+    @Test
+    public void testTotalRelation() {
+        LuceneResponse response = new LuceneResponse(10);
+        assertFalse(response.toJson().containsKey("totalRelation"));
+        response.totalRelation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+        assertEquals("GREATER_THAN_OR_EQUAL_TO", response.toJson().getString("totalRelation"));
+    }
+
+    @Test
+    public void testTimedOut() {
+        LuceneResponse response = new LuceneResponse(2);
+        JsonObject json = response.toJson();
+        assertFalse(json.containsKey("timedOut"));
+
+        TimeBudget budget = new TimeBudget(0);
+        budget.shouldExit();
+        response.setTimeBudget(budget);
+        json = response.toJson();
+        assertTrue(json.getBoolean("timedOut"));
+        assertEquals(0, json.getInt("segments"));
+        assertEquals(0, json.getInt("segmentsSearched"));
+    }
+
+    @Test
+    public void testDrilldownNotExact() {
+        LuceneResponse response = new LuceneResponse(2);
+        DrilldownData dd = new DrilldownData("core", "field");
+        dd.terms = new ArrayList<>();
+        response.drilldownData.add(dd);
+        assertFalse(response.toJson().getJsonArray("drilldownData").getJsonObject(0).containsKey("exact"));
+
+        dd.exact = false;
+        assertFalse(response.toJson().getJsonArray("drilldownData").getJsonObject(0).getBoolean("exact"));
+    }
+
     @Test
     public void testClustering() {
         LuceneResponse response = new LuceneResponse(2);
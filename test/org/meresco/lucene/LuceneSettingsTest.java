@@ -29,9 +29,12 @@ package org.meresco.lucene;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import javax.json.Json;
@@ -54,6 +57,11 @@ public class LuceneSettingsTest {
                     .add("maxMergeAtOnce", 2))
             .add("lruTaxonomyWriterCacheSize", 4000)
             .add("numberOfConcurrentTasks", 6)
+            .add("maxConcurrentQueries", 50)
+            .add("admissionTimeout", 100)
+            .add("facetResultCacheSize", 100000)
+            .add("keyCollectorCacheSize", 64)
+            .add("scoreCollectorCacheSize", 64)
             .add("commitCount", 100000)
             .add("commitTimeout", 10)
             .add("cacheFacetOrdinals", true)
@@ -83,6 +91,16 @@ public class LuceneSettingsTest {
         assertEquals(1, settings.commitTimeout);
     }
 
+    @Test
+    public void testSearchExecutorSettingsFromJson() throws Exception {
+        LuceneSettings settings = new LuceneSettings();
+        settings.updateSettings(new StringReader("{\"maxConcurrentQueries\": 3, \"admissionTimeout\": 250, \"facetResultCacheSize\": 500}"));
+        assertEquals(3, settings.maxConcurrentQueries);
+        assertEquals(250, settings.admissionTimeout);
+        assertEquals(500, settings.facetResultCacheSize);
+        assertEquals(3, settings.asJson().getInt("maxConcurrentQueries"));
+    }
+
     @Test
     public void testConfigureMergePolicy() throws Exception {
         LuceneSettings settings = new LuceneSettings();
@@ -213,6 +231,20 @@ public class LuceneSettingsTest {
         assertEquals("$facets", field2.indexFieldName);
     }
 
+    @Test
+    public void testSortedSetDrilldownFields() throws Exception {
+        LuceneSettings settings = new LuceneSettings();
+        settings.updateSettings(new StringReader("{\"drilldownFields\": [{\"dim\": \"author\", \"sortedSetDocValues\": true}, {\"dim\": \"subject\"}]}"));
+        assertEquals(new HashSet<>(Arrays.asList("author")), settings.sortedSetFacetDims);
+        assertEquals(LuceneSettings.SORTED_SET_FACETS_FIELD, settings.facetsConfig.getDimConfig("author").indexFieldName);
+        assertEquals("$facets", settings.facetsConfig.getDimConfig("subject").indexFieldName);
+        try {
+            settings.updateSettings(new StringReader("{\"drilldownFields\": [{\"dim\": \"path\", \"hierarchical\": true, \"sortedSetDocValues\": true}]}"));
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
     @Test
     public void testClusterConfig() throws Exception {
         LuceneSettings settings = new LuceneSettings();
@@ -29,10 +29,14 @@ package org.meresco.lucene;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -41,6 +45,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.json.JsonObject;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -54,6 +63,11 @@ import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.facet.FacetField;
 import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
@@ -66,19 +80,25 @@ import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spell.SuggestMode;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.meresco.lucene.JsonQueryConverter.FacetRequest;
+import org.meresco.lucene.JsonQueryConverter.RangeFacetRequest;
 import org.meresco.lucene.Lucene.TermCount;
 import org.meresco.lucene.LuceneResponse.ClusterHit;
 import org.meresco.lucene.LuceneResponse.DedupHit;
+import org.meresco.lucene.LuceneResponse.DrilldownData;
 import org.meresco.lucene.LuceneResponse.Hit;
+import org.meresco.lucene.queries.KeyFilter;
+import org.meresco.lucene.search.FacetOrdinalsCache;
 import org.meresco.lucene.search.InterpolateEpsilon;
 import org.meresco.lucene.search.MerescoCluster.DocScore;
 import org.meresco.lucene.search.MerescoCluster.TermScore;
+import org.meresco.lucene.search.SearchExecutor;
 import org.meresco.lucene.search.join.AggregateScoreSuperCollector;
+import org.meresco.lucene.search.join.KeySet;
 import org.meresco.lucene.search.join.KeySuperCollector;
 import org.meresco.lucene.search.join.ScoreSuperCollector;
 
@@ -161,6 +181,56 @@ public class LuceneTest extends SeecrTestCase {
         assertEquals(0, result.total);
     }
 
+    @Test
+    public void testTimeAllowed() throws Throwable {
+        lucene.addDocument("id1", new Document());
+        lucene.addDocument("id2", new Document());
+        QueryData q = new QueryData();
+        LuceneResponse response = lucene.executeQuery(q);
+        assertEquals(null, response.timedOut);
+
+        q = new QueryData();
+        q.setTimeAllowed(60000);
+        response = lucene.executeQuery(q);
+        assertEquals(2, response.total);
+        assertEquals(false, response.timedOut);
+        assertEquals(response.segments, response.segmentsSearched);
+    }
+
+    @Test
+    public void testTotalHitsThreshold() throws Throwable {
+        for (int i = 0; i < 5; i++)
+            lucene.addDocument("id" + i, new Document());
+        QueryData q = new QueryData();
+        LuceneResponse response = lucene.executeQuery(q);
+        assertEquals(5, response.total);
+        assertEquals(null, response.totalRelation);
+
+        q = new QueryData();
+        q.stop = 2;
+        q.totalHitsThreshold = 2;
+        response = lucene.executeQuery(q);
+        assertEquals(2, response.hits.size());
+        assertTrue(response.total >= 2);
+        assertTrue(response.totalRelation != null);
+    }
+
+    @Test
+    public void testAdmitQuery() throws Throwable {
+        lucene.getSettings().maxConcurrentQueries = 1;
+        lucene.getSettings().admissionTimeout = 0;
+        SearchExecutor.Admission admission = lucene.admitQuery();
+        try {
+            lucene.admitQuery();
+            fail();
+        } catch (Lucene.SearchRejectedException e) {
+            assertEquals(SearchExecutor.shared().retryAfter(), e.retryAfter);
+        } finally {
+            admission.close();
+        }
+        lucene.admitQuery().close();
+    }
+
     @Test
     public void testTwoQueries() throws Throwable {
         LuceneResponse result = lucene.executeQuery(new MatchAllDocsQuery());
@@ -253,6 +323,174 @@ public class LuceneTest extends SeecrTestCase {
         assertEquals("second", result.drilldownData.get(0).terms.get(0).label);
     }
 
+    @Test
+    public void testHierarchicalFacetsTree() throws Throwable {
+        this.lucene.getSettings().facetsConfig.setHierarchical("facet-field", true);
+        String[][] paths = {{"a", "x"}, {"a", "x"}, {"a", "x", "1"}, {"a", "y"}, {"a", "y"}, {"a", "z"}, {"b", "x"}, {"b", "y"}, {"c", "x"}};
+        for (int i = 0; i < paths.length; i++) {
+            Document doc = new Document();
+            doc.add(new FacetField("facet-field", paths[i]));
+            this.lucene.addDocument("id" + i, doc);
+        }
+
+        ArrayList<FacetRequest> facets = new ArrayList<>();
+        facets.add(new FacetRequest("facet-field", 2));
+        List<DrilldownData.Term> terms = lucene.executeQuery(new MatchAllDocsQuery(), facets).drilldownData.get(0).terms;
+        assertEquals(2, terms.size());
+        assertEquals("a", terms.get(0).label);
+        assertEquals(6, terms.get(0).count);
+        assertEquals("b", terms.get(1).label);
+        assertEquals(2, terms.get(1).count);
+        List<DrilldownData.Term> a = terms.get(0).subTerms;
+        assertEquals(2, a.size());
+        assertEquals("x", a.get(0).label);
+        assertEquals(3, a.get(0).count);
+        assertEquals("y", a.get(1).label);
+        assertEquals(2, a.get(1).count);
+        assertEquals(1, a.get(0).subTerms.size());
+        assertEquals("1", a.get(0).subTerms.get(0).label);
+        assertNull(a.get(1).subTerms);
+        List<DrilldownData.Term> b = terms.get(1).subTerms;
+        assertEquals("x", b.get(0).label);
+        assertEquals("y", b.get(1).label);
+
+        FacetRequest facet = new FacetRequest("facet-field", 0);
+        facet.path = new String[] {"a"};
+        facets.set(0, facet);
+        a = lucene.executeQuery(new MatchAllDocsQuery(), facets).drilldownData.get(0).terms;
+        assertEquals(3, a.size());
+        assertEquals("z", a.get(2).label);
+    }
+
+    @Test
+    public void testFacetSampleNotExact() throws Throwable {
+        for (int i = 0; i < 4; i++) {
+            Document doc = new Document();
+            doc.add(new FacetField("facet-field", "value"));
+            this.lucene.addDocument("id" + i, doc);
+        }
+        QueryData q = new QueryData();
+        q.facets = new ArrayList<>();
+        q.facets.add(new FacetRequest("facet-field", 10));
+        q.facetSampleSize = 4;
+        LuceneResponse result = lucene.executeQuery(q);
+        assertTrue(result.drilldownData.get(0).exact);
+
+        q.facetSampleSize = 2;
+        result = lucene.executeQuery(q);
+        assertFalse(result.drilldownData.get(0).exact);
+        assertEquals(4, result.drilldownData.get(0).terms.get(0).count);
+    }
+
+    @Test
+    public void testRangeFacets() throws Throwable {
+        double[] prices = {1.5, 9.99, 10, 25, 120};
+        for (int i = 0; i < prices.length; i++) {
+            Document doc = new Document();
+            doc.add(new NumericDocValuesField("price", NumericUtils.doubleToSortableLong(prices[i])));
+            doc.add(new NumericDocValuesField("year", 1995 + i * 4));
+            doc.add(new FacetField("facet-field", "value"));
+            lucene.addDocument("id" + i, doc);
+        }
+        RangeFacetRequest price = new RangeFacetRequest("price", true);
+        price.addRange("cheap", Double.NEGATIVE_INFINITY, 10);
+        price.addRange("normal", 10, 100);
+        price.addRange("none", 200, 300);
+        RangeFacetRequest year = new RangeFacetRequest("year", false);
+        year.interval = 10;
+        ArrayList<FacetRequest> facets = new ArrayList<>();
+        facets.add(price);
+        facets.add(new FacetRequest("facet-field", 10));
+        facets.add(year);
+
+        LuceneResponse result = lucene.executeQuery(new MatchAllDocsQuery(), facets);
+        assertEquals(3, result.drilldownData.size());
+        List<DrilldownData.Term> terms = result.drilldownData.get(0).terms;
+        assertEquals("price", result.drilldownData.get(0).fieldname);
+        assertEquals(3, terms.size());
+        assertEquals("cheap", terms.get(0).label);
+        assertEquals(2, terms.get(0).count);
+        assertEquals(2, terms.get(1).count);
+        assertEquals(0, terms.get(2).count);
+        assertEquals(5, result.drilldownData.get(1).terms.get(0).count);
+        terms = result.drilldownData.get(2).terms;
+        assertEquals(3, terms.size());
+        assertEquals("1990", terms.get(0).label);
+        assertEquals(2, terms.get(0).count);
+        assertEquals("2000", terms.get(1).label);
+        assertEquals(2, terms.get(1).count);
+        assertEquals("2010", terms.get(2).label);
+        assertEquals(1, terms.get(2).count);
+
+        facets.remove(1);
+        assertEquals(2, lucene.facets(facets, null, null, null).size());
+    }
+
+    @Test
+    public void testSortedSetFacets() throws Throwable {
+        lucene.getSettings().updateSettings(new StringReader("{\"drilldownFields\": [{\"dim\": \"genre\", \"sortedSetDocValues\": true}]}"));
+        String[] genres = {"novel", "poetry", "novel"};
+        for (int i = 0; i < genres.length; i++) {
+            Document doc = new Document();
+            doc.add(new FacetField("genre", genres[i]));
+            doc.add(new FacetField("facet-field", "value" + i));
+            lucene.addDocument("id" + i, doc);
+        }
+        int taxonomySize = lucene.data.getTaxoWriter().getSize();
+        Document doc = new Document();
+        doc.add(new FacetField("genre", "drama"));
+        lucene.addDocument("id3", doc);
+        assertEquals(taxonomySize, lucene.data.getTaxoWriter().getSize());
+
+        ArrayList<FacetRequest> facets = new ArrayList<>();
+        facets.add(new FacetRequest("genre", 10));
+        facets.add(new FacetRequest("facet-field", 10));
+        LuceneResponse result = lucene.executeQuery(new MatchAllDocsQuery(), facets);
+        assertEquals(4, result.total);
+        assertEquals(2, result.drilldownData.size());
+        List<DrilldownData.Term> terms = result.drilldownData.get(0).terms;
+        assertEquals("genre", result.drilldownData.get(0).fieldname);
+        assertEquals(3, terms.size());
+        assertEquals("novel", terms.get(0).label);
+        assertEquals(2, terms.get(0).count);
+        assertEquals(3, result.drilldownData.get(1).terms.size());
+
+        result = lucene.executeQuery(new QueryData(), null, Arrays.asList(new String[] {"genre"}, new String[] {"novel"}), null, null, null);
+        assertEquals(2, result.total);
+
+        terms = lucene.facets(facets, null, null, new TermQuery(new Term("__id__", "id1"))).get(0).terms;
+        assertEquals(1, terms.size());
+        assertEquals("poetry", terms.get(0).label);
+    }
+
+    @Test
+    public void testSortedSetStateBuiltOncePerReader() throws Throwable {
+        lucene.getSettings().updateSettings(new StringReader("{\"drilldownFields\": [{\"dim\": \"genre\", \"sortedSetDocValues\": true}]}"));
+        Document doc = new Document();
+        doc.add(new FacetField("genre", "novel"));
+        lucene.addDocument("id0", doc);
+        lucene.commit();
+        String indexFieldName = lucene.data.getFacetsConfig().getDimConfig("genre").indexFieldName;
+        SearcherAndTaxonomy reference = lucene.data.getManager().acquire();
+        try {
+            IndexReader reader = reference.searcher.getIndexReader();
+            List<Future<SortedSetDocValuesReaderState>> states = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                for (int i = 0; i < 4; i++)
+                    states.add(executor.submit(() -> lucene.sortedSetState(reader, indexFieldName)));
+                for (Future<SortedSetDocValuesReaderState> state : states)
+                    assertSame(states.get(0).get(), state.get());
+            } finally {
+                executor.shutdownNow();
+            }
+            assertNotNull(states.get(0).get());
+            assertNull(lucene.sortedSetState(reader, "$no_such_field"));
+        } finally {
+            lucene.data.getManager().release(reference);
+        }
+    }
+
     @Test
     public void testFacetsInDifferentIndexFieldName() throws Throwable {
         FacetsConfig facetsConfig = lucene.getSettings().facetsConfig;
@@ -454,7 +692,7 @@ public class LuceneTest extends SeecrTestCase {
         final KeySuperCollector k = new KeySuperCollector("field1");
         assertEquals(2, lucene.executeQuery(new QueryData(), null, null, null, null, new ArrayList<KeySuperCollector>() {{ add(k); }}).total);
 
-        FixedBitSet collectedKeys = k.getCollectedKeys();
+        KeySet collectedKeys = k.getCollectedKeys();
         assertEquals(false, collectedKeys.get(0));
         assertEquals(true, collectedKeys.get(1));
         assertEquals(true, collectedKeys.get(2));
@@ -467,7 +705,7 @@ public class LuceneTest extends SeecrTestCase {
         q.query = field0Query;
         assertEquals(1, lucene.executeQuery(q, null, null, null, null, new ArrayList<KeySuperCollector>() {{ add(k1); }}).total);
 
-        FixedBitSet keysWithFilter = k1.getCollectedKeys();
+        KeySet keysWithFilter = k1.getCollectedKeys();
         assertEquals(false, keysWithFilter.get(0));
         assertEquals(true, keysWithFilter.get(1));
         assertEquals(false, keysWithFilter.get(2));
@@ -643,6 +881,56 @@ public class LuceneTest extends SeecrTestCase {
         assertEquals(4, result.drilldownData.get(0).terms.get(0).count);
     }
 
+    @SuppressWarnings({ "serial", "unchecked", "rawtypes" })
+    @Test
+    public void testDedupReturnsStopUniqueHitsWhenDuplicatesRankFirst() throws Throwable {
+        for (int i = 0; i < 200; i++) {
+            final int rank = i;
+            addDocument(lucene, "urn:dup" + i, new HashMap() {{put("__key__", 1); put("rank", rank);}}, null);
+        }
+        addDocument(lucene, "urn:a", new HashMap() {{put("__key__", 2); put("rank", 1000);}}, null);
+        addDocument(lucene, "urn:b", new HashMap() {{put("rank", 1001);}}, null);
+        addDocument(lucene, "urn:c", new HashMap() {{put("__key__", 3); put("rank", 1002);}}, null);
+        QueryData q = new QueryData();
+        q.stop = 3;
+        q.sort = new Sort(new SortField("rank", SortField.Type.LONG));
+        q.dedupField = "__key__";
+        q.dedupSortFields = new String[] {"rank"};
+        LuceneResponse result = lucene.executeQuery(q);
+        assertEquals(4, result.total);
+        assertEquals(Long.valueOf(203), result.totalWithDuplicates);
+        assertEquals(3, result.hits.size());
+        assertEquals("urn:dup199", result.hits.get(0).id);
+        assertEquals(200, ((DedupHit) result.hits.get(0)).duplicateCount);
+        assertEquals("urn:a", result.hits.get(1).id);
+        assertEquals("urn:b", result.hits.get(2).id);
+
+        q.start = 1;
+        result = lucene.executeQuery(q);
+        assertEquals(2, result.hits.size());
+        assertEquals("urn:a", result.hits.get(0).id);
+        assertEquals("urn:b", result.hits.get(1).id);
+    }
+
+    @Test
+    public void testQueryPhasesInMetrics() throws Throwable {
+        addDocument(lucene, "id1", null, null);
+        long collect = Metrics.histogram("collect").count();
+        long storedFields = Metrics.histogram("storedFields").count();
+        lucene.executeQuery(new QueryData());
+        assertTrue(Metrics.histogram("rewrite").count() > 0);
+        assertTrue(Metrics.histogram("createWeight").count() > 0);
+        assertTrue(Metrics.histogram("collect").count() > collect);
+        assertEquals(storedFields, Metrics.histogram("storedFields").count());
+        QueryData q = new QueryData();
+        q.storedFields = Arrays.asList("field1");
+        lucene.executeQuery(q);
+        assertEquals(storedFields + 1, Metrics.histogram("storedFields").count());
+        lucene.collectKeys(new MatchAllDocsQuery(), "__key__", null, false);
+        assertTrue(Metrics.histogram("collectKeys." + lucene.name).count() > 0);
+        assertTrue(Metrics.histogram("commit").count() > 0);
+    }
+
     @Test
     public void testClusteringOnVectors() throws Throwable {
         LuceneSettings settings = lucene.getSettings();
@@ -1022,9 +1310,9 @@ public class LuceneTest extends SeecrTestCase {
         }
         lucene.commit();
         long t0 = System.currentTimeMillis();
-        FixedBitSet keys1 = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
+        KeySet keys1 = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
         long t1 = System.currentTimeMillis();
-        FixedBitSet keys2 = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
+        KeySet keys2 = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
         long t2 = System.currentTimeMillis();
         assertTrue(t2 - t1 <= t1 - t0);
         assertTrue(t2 - t1 < 2);
@@ -1044,23 +1332,118 @@ public class LuceneTest extends SeecrTestCase {
         assertNotSame(keys1, keys2);
     }
 
+    @Test
+    public void testKeyCollectorCachePerSegment() throws Throwable {
+        for (int i=0; i<10; i++) {
+            Document doc = new Document();
+            doc.add(new NumericDocValuesField("field1", i));
+            lucene.addDocument("id" + i, doc);
+        }
+        lucene.commit();
+        KeySet keys = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
+        assertEquals(9, keys.cardinality());
+        assertEquals(0, lucene.keyCollectorCacheStats().getInt("hits"));
+
+        Document doc = new Document();
+        doc.add(new NumericDocValuesField("field1", 100));
+        lucene.addDocument("id100", doc);
+        lucene.commit();
+        keys = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
+        assertEquals(10, keys.cardinality());
+        assertTrue(keys.get(100));
+        assertTrue(lucene.keyCollectorCacheStats().getInt("hits") > 0);
+
+        lucene.deleteDocument("id5");
+        lucene.commit();
+        keys = this.lucene.collectKeys(new MatchAllDocsQuery(), "field1", null);
+        assertEquals(9, keys.cardinality());
+        assertFalse(keys.get(5));
+        assertTrue(keys.get(100));
+    }
+
+    @Test
+    public void testKeyCollectorCacheKeyedByQueryAndKeyFilterFingerprint() throws Throwable {
+        for (int i=0; i<10; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("parity", i % 2 == 0 ? "even" : "odd", Store.NO));
+            doc.add(new NumericDocValuesField("field1", i));
+            lucene.addDocument("id" + i, doc);
+        }
+        lucene.commit();
+        assertEquals(9, lucene.collectKeys(new MatchAllDocsQuery(), "field1", null).cardinality());
+        KeySet even = lucene.collectKeys(new MatchAllDocsQuery(), "field1", new TermQuery(new Term("parity", "even")), true, null);
+        assertEquals(4, even.cardinality());
+        assertFalse(even.get(1));
+
+        KeySet keys = lucene.collectKeys(new KeyFilter(KeySet.range(2, 5), "field1"), "field1", null);
+        assertEquals(3, keys.cardinality());
+        int hits = lucene.keyCollectorCacheStats().getInt("hits");
+        assertSame(keys, lucene.collectKeys(new KeyFilter(KeySet.range(2, 5), "field1"), "field1", null));
+        assertEquals(hits + 1, lucene.keyCollectorCacheStats().getInt("hits"));
+    }
+
+    @Test
+    public void testScoreCollectorCachePerSegment() throws Throwable {
+        for (int i=0; i<10; i++) {
+            Document doc = new Document();
+            doc.add(new NumericDocValuesField("field1", i));
+            lucene.addDocument("id" + i, doc);
+        }
+        lucene.commit();
+        ScoreSuperCollector scoreCollector = this.lucene.scoreCollector("field1", new MatchAllDocsQuery());
+        assertEquals(1.0, scoreCollector.score(9), 0);
+        assertEquals(0, lucene.scoreCollectorCacheStats().getJsonObject("segments").getInt("hits"));
+
+        Document doc = new Document();
+        doc.add(new NumericDocValuesField("field1", 100));
+        lucene.addDocument("id100", doc);
+        lucene.commit();
+        scoreCollector = this.lucene.scoreCollector("field1", new MatchAllDocsQuery());
+        assertEquals(1.0, scoreCollector.score(9), 0);
+        assertEquals(1.0, scoreCollector.score(100), 0);
+        assertTrue(lucene.scoreCollectorCacheStats().getJsonObject("segments").getInt("hits") > 0);
+
+        lucene.deleteDocument("id5");
+        lucene.commit();
+        scoreCollector = this.lucene.scoreCollector("field1", new MatchAllDocsQuery());
+        assertEquals(0, scoreCollector.score(5), 0);
+        assertEquals(1.0, scoreCollector.score(100), 0);
+    }
+
+    @Test
+    public void testComposedScoresCachedBeyondBudget() throws Throwable {
+        lucene.updateSettings(new StringReader("{\"scoreCollectorCacheSize\": 0}"));
+        Document doc = new Document();
+        doc.add(new NumericDocValuesField("field1", 100000));
+        lucene.addDocument("id1", doc);
+        lucene.commit();
+        ScoreSuperCollector scoreCollector = this.lucene.scoreCollector("field1", new MatchAllDocsQuery());
+        assertSame(scoreCollector, this.lucene.scoreCollector("field1", new MatchAllDocsQuery()));
+        JsonObject composed = lucene.scoreCollectorCacheStats().getJsonObject("composed");
+        assertEquals(1, composed.getInt("entries"));
+        assertEquals(4 * scoreCollector.ramBytesUsed(), composed.getJsonNumber("maxBytes").longValue());
+
+        lucene.updateSettings(new StringReader("{\"scoreCollectorCacheSize\": 0}"));
+        assertEquals(1, lucene.scoreCollectorCacheStats().getJsonObject("composed").getInt("entries"));
+    }
+
     @Test
     public void testDontClearCachesIfNothingChanged() throws Throwable {
         Document doc1 = new Document();
         doc1.add(new NumericDocValuesField("keyfield", 1));
         lucene.addDocument("id1", doc1);
         ScoreSuperCollector scoreCollector1 = lucene.scoreCollector("keyfield", new MatchAllDocsQuery());
-        FixedBitSet keys1 = lucene.collectKeys(new MatchAllDocsQuery(), "keyfield", null);
+        KeySet keys1 = lucene.collectKeys(new MatchAllDocsQuery(), "keyfield", null);
         lucene.commit();
         lucene.commit();
         ScoreSuperCollector scoreCollector2 = lucene.scoreCollector("keyfield", new MatchAllDocsQuery());
-        FixedBitSet keys2 = lucene.collectKeys(new MatchAllDocsQuery(), "keyfield", null);
+        KeySet keys2 = lucene.collectKeys(new MatchAllDocsQuery(), "keyfield", null);
         assertSame(scoreCollector1, scoreCollector2);
         assertSame(keys1, keys2);
         lucene.addDocument("id1", new Document());
         lucene.commit();
         ScoreSuperCollector scoreCollector3 = lucene.scoreCollector("keyfield", new MatchAllDocsQuery());
-        FixedBitSet keys3 = lucene.collectKeys(new MatchAllDocsQuery(), "keyfield", null);
+        KeySet keys3 = lucene.collectKeys(new MatchAllDocsQuery(), "keyfield", null);
         assertNotSame(scoreCollector1, scoreCollector3);
         assertNotSame(keys1, keys3);
     }
@@ -1133,6 +1516,124 @@ public class LuceneTest extends SeecrTestCase {
         assertEquals(10, response.hits.get(0).getFields("intField")[0].numericValue().intValue());
     }
 
+    @Test
+    public void testLoadStoredFieldsInRankOrder() throws Throwable {
+        for (int i = 0; i < 5; i++) {
+            Document doc = new Document();
+            doc.add(new StoredField("fieldA", "a" + i));
+            doc.add(new StoredField("fieldB", "b" + i));
+            doc.add(new NumericDocValuesField("rank", i));
+            lucene.addDocument("id:" + i, doc);
+        }
+        QueryData data = new QueryData();
+        data.sort = new Sort(new SortField("rank", SortField.Type.LONG, true));
+        data.storedFields = Arrays.asList("fieldA");
+        LuceneResponse response = lucene.executeQuery(data);
+        assertEquals(5, response.hits.size());
+        for (int i = 0; i < 5; i++) {
+            Hit hit = response.hits.get(i);
+            assertEquals("id:" + (4 - i), hit.id);
+            assertEquals("a" + (4 - i), hit.getFields("fieldA")[0].stringValue());
+        }
+
+        SearcherAndTaxonomy reference = lucene.data.getManager().acquire();
+        try {
+            Document[] documents = Lucene.getDocuments(reference.searcher.getIndexReader(), new int[] {3, 0, 3}, Collections.singleton("fieldB"));
+            assertEquals("b3", documents[0].get("fieldB"));
+            assertEquals("b0", documents[1].get("fieldB"));
+            assertEquals("b3", documents[2].get("fieldB"));
+            assertEquals(null, documents[0].get("fieldA"));
+        } finally {
+            lucene.data.getManager().release(reference);
+        }
+    }
+
+    @Test
+    public void testIdentifiersFromDocValues() throws Throwable {
+        lucene.addDocument("id:0", new Document());
+        Document old = new Document();
+        old.add(new StringField(Lucene.ID_FIELD, "id:1", Store.YES));
+        lucene.addDocument(old);
+        lucene.commit();
+
+        SearcherAndTaxonomy reference = lucene.data.getManager().acquire();
+        try {
+            IndexReader reader = reference.searcher.getIndexReader();
+            assertArrayEquals(new String[] {"id:1", "id:0", "id:1"}, Lucene.getIdentifiers(reader, new int[] {1, 0, 1}));
+            assertFalse(MultiDocValues.getBinaryValues(reader, Lucene.ID_FIELD).advanceExact(1));
+        } finally {
+            lucene.data.getManager().release(reference);
+        }
+
+        assertTrue(lucene.startBackfillIdentifiers());
+        while (lucene.backfillStatus().getBoolean("running"))
+            Thread.sleep(10);
+        assertEquals(1, lucene.backfillStatus().getInt("updated"));
+        assertEquals(0, lucene.backfillIdentifiers());
+        assertEquals(2, lucene.numDocs());
+        reference = lucene.data.getManager().acquire();
+        try {
+            BinaryDocValues values = MultiDocValues.getBinaryValues(reference.searcher.getIndexReader(), Lucene.ID_FIELD);
+            assertTrue(values.advanceExact(1));
+            assertEquals("id:1", values.binaryValue().utf8ToString());
+        } finally {
+            lucene.data.getManager().release(reference);
+        }
+        LuceneResponse response = lucene.executeQuery(new MatchAllDocsQuery());
+        assertEquals(new HashSet<>(Arrays.asList("id:0", "id:1")), new HashSet<>(Arrays.asList(response.hits.get(0).id, response.hits.get(1).id)));
+    }
+
+    @Test
+    public void testFacetOrdinalsBuiltOnRefresh() throws Throwable {
+        Document doc = new Document();
+        doc.add(new FacetField("facet-field", "first"));
+        lucene.addDocument("id0", doc);
+        ArrayList<FacetRequest> facets = new ArrayList<>();
+        facets.add(new FacetRequest("facet-field", 10));
+        lucene.executeQuery(new MatchAllDocsQuery(), facets);
+
+        doc = new Document();
+        doc.add(new FacetField("facet-field", "second"));
+        lucene.addDocument("id1", doc);
+        long misses = FacetOrdinalsCache.shared().statsAsJson().getInt("misses");
+        long hits = FacetOrdinalsCache.shared().statsAsJson().getInt("hits");
+        LuceneResponse result = lucene.executeQuery(new MatchAllDocsQuery(), facets);
+        assertEquals(2, result.drilldownData.get(0).terms.size());
+        assertEquals(misses, FacetOrdinalsCache.shared().statsAsJson().getInt("misses"));
+        assertEquals(hits + 2, FacetOrdinalsCache.shared().statsAsJson().getInt("hits"));
+    }
+
+    @Test
+    public void testFacetResultCache() throws Throwable {
+        Document doc = new Document();
+        doc.add(new FacetField("facet-field", "first"));
+        lucene.addDocument("id0", doc);
+        ArrayList<FacetRequest> facets = new ArrayList<>();
+        facets.add(new FacetRequest("facet-field", 10));
+        LuceneResponse result = lucene.executeQuery(new MatchAllDocsQuery(), facets);
+        assertTrue(result.times.containsKey("facetTime"));
+        assertFalse(result.times.containsKey("facetCacheTime"));
+
+        LuceneResponse cached = lucene.executeQuery(new MatchAllDocsQuery(), facets);
+        assertFalse(cached.times.containsKey("facetTime"));
+        assertTrue(cached.times.containsKey("facetCacheTime"));
+        assertEquals(result.drilldownData, cached.drilldownData);
+        assertEquals(result.drilldownData, lucene.facets(facets, null, null, null));
+        assertEquals(2, lucene.facetResultCacheStats().getInt("hits"));
+
+        facets.add(new FacetRequest("facet-field", 1));
+        assertTrue(lucene.executeQuery(new MatchAllDocsQuery(), facets).times.containsKey("facetTime"));
+        facets.remove(1);
+
+        doc = new Document();
+        doc.add(new FacetField("facet-field", "first"));
+        lucene.addDocument("id1", doc);
+        assertEquals(0, lucene.facetResultCacheStats().getInt("entries"));
+        result = lucene.executeQuery(new MatchAllDocsQuery(), facets);
+        assertTrue(result.times.containsKey("facetTime"));
+        assertEquals(2, result.drilldownData.get(0).terms.get(0).count);
+    }
+
     @Test
     public void testBoostQuery() throws Throwable {
         Document doc1 = new Document();
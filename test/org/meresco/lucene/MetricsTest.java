@@ -0,0 +1,77 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.json.JsonObject;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[] {0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE / 2}) {
+            int bucket = Metrics.Histogram.bucket(value);
+            assertTrue(Metrics.Histogram.lowest(bucket) <= value);
+            assertTrue(value - Metrics.Histogram.lowest(bucket + 1) < 0);
+        }
+        assertEquals(8, Metrics.Histogram.bucket(8));
+        assertEquals(9, Metrics.Histogram.bucket(9));
+        assertEquals(16, Metrics.Histogram.bucket(16));
+        assertEquals(16, Metrics.Histogram.bucket(17));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.percentile(0.5));
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+        assertEquals(1000, histogram.count());
+        assertEquals(1000000, histogram.max());
+        assertPercentile(500000, histogram.percentile(0.5));
+        assertPercentile(990000, histogram.percentile(0.99));
+        assertEquals(1000000, histogram.percentile(1.0));
+
+        JsonObject json = histogram.asJson();
+        assertEquals(1000, json.getInt("count"));
+        assertEquals(500500, json.getJsonNumber("meanNs").longValue());
+        assertEquals(1000000, json.getJsonNumber("maxNs").longValue());
+    }
+
+    @Test
+    public void testNamedHistograms() {
+        Metrics.record("metricsTest", 42);
+        assertEquals(1, Metrics.histogram("metricsTest").count());
+        assertEquals(42, Metrics.asJson().getJsonObject("metricsTest").getJsonNumber("maxNs").longValue());
+    }
+
+    private static void assertPercentile(long expected, long actual) {
+        assertTrue(actual + " for " + expected, actual >= expected && actual <= expected * 1.125);
+    }
+}
@@ -30,10 +30,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
@@ -48,7 +51,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.meresco.lucene.JsonQueryConverter.FacetRequest;
 import org.meresco.lucene.LuceneResponse.DrilldownData;
+import org.meresco.lucene.search.SearchExecutor;
 import org.meresco.lucene.search.TermFrequencySimilarity;
+import org.meresco.lucene.search.join.KeySet;
 import org.meresco.lucene.search.join.relational.JoinAndQuery;
 import org.meresco.lucene.search.join.relational.RelationalLuceneQuery;
 import org.meresco.lucene.search.join.relational.RelationalNotQuery;
@@ -189,6 +194,34 @@ public class MultiLuceneTest extends SeecrTestCase {
         LuceneTest.compareHits(result, "B-N>A-M", "B-N>A-MQ", "B-N", "B", "B-P>A-M", "B-P>A-MQ", "B-P");
     }
 
+    @Test
+    public void testJoinQueryWithExcludeFiltersAndTimeAllowed() throws Throwable {
+        ComposedQuery q = new ComposedQuery("coreA");
+        q.addExcludeFilterQuery("coreC", new TermQuery(new Term("S", "true")));
+        q.addMatch("coreA", "coreC", "A", "C");
+        q.queryData.setTimeAllowed(60000);
+        LuceneResponse result = this.multiLucene.executeComposedQuery(q);
+        assertEquals(false, result.timedOut);
+        assertEquals(7, result.total);
+        assertTrue(result.segments > 0);
+        assertEquals(result.segments, result.segmentsSearched);
+
+        this.luceneC.getSettings().commitCount = 1;
+        this.luceneC.deleteDocument("C-R");
+        this.luceneC.commit();
+        q = new ComposedQuery("coreA");
+        q.addExcludeFilterQuery("coreC", new TermQuery(new Term("S", "true")));
+        q.addMatch("coreA", "coreC", "A", "C");
+        q.queryData.setTimeAllowed(1);
+        Thread.sleep(5);
+        result = this.multiLucene.executeComposedQuery(q);
+        assertEquals(true, result.timedOut);
+        int misses = this.luceneC.keyCollectorCacheStats().getInt("misses");
+        KeySet excludeKeys = this.luceneC.collectKeys(new TermQuery(new Term("S", "true")), "C", null, true);
+        assertEquals(1, excludeKeys.cardinality());
+        assertEquals(misses, this.luceneC.keyCollectorCacheStats().getInt("misses"));
+    }
+
     @Test
     public void testExcludeFilterWithSingleCoreQuery() throws Throwable {
         ComposedQuery q = new ComposedQuery("coreA", new MatchAllDocsQuery());
@@ -236,6 +269,40 @@ public class MultiLuceneTest extends SeecrTestCase {
         assertEquals(1, result.drilldownData.get(1).terms.get(1).count);
     }
 
+    @Test
+    public void testJoinFacetsFromSearchThread() throws Throwable {
+        List<String> expected = facets(this.multiLucene.executeComposedQuery(joinFacetQuery()));
+        assertEquals(Arrays.asList("cat_S", "true=1", "false=1", "cat_N", "true=2", "false=2"), expected);
+        Future<LuceneResponse> result = SearchExecutor.shared().submit(() -> {
+            assertTrue(SearchExecutor.isSearchThread());
+            try {
+                return this.multiLucene.executeComposedQuery(joinFacetQuery());
+            } catch (Throwable e) {
+                throw new Exception(e);
+            }
+        });
+        assertEquals(expected, facets(result.get()));
+    }
+
+    private static ComposedQuery joinFacetQuery() {
+        ComposedQuery q = new ComposedQuery("coreA", new TermQuery(new Term("Q", "true")));
+        q.addFacet("coreB", new JsonQueryConverter.FacetRequest("cat_N", 10));
+        q.addFacet("coreC", new JsonQueryConverter.FacetRequest("cat_S", 10));
+        q.addMatch("coreA", "coreB", "A", "B");
+        q.addMatch("coreA", "coreC", "A", "C");
+        return q;
+    }
+
+    private static List<String> facets(LuceneResponse response) {
+        List<String> facets = new ArrayList<>();
+        for (DrilldownData drilldownData : response.drilldownData) {
+            facets.add(drilldownData.fieldname);
+            for (DrilldownData.Term term : drilldownData.terms)
+                facets.add(term.label + "=" + term.count);
+        }
+        return facets;
+    }
+
     @Test
     public void testJoinFacetWithDrilldownQueryFilters() throws Throwable {
         ComposedQuery q = new ComposedQuery("coreA");
@@ -885,7 +952,7 @@ public class MultiLuceneTest extends SeecrTestCase {
         expected.set(6);
         expected.set(7);
         expected.set(8);
-        assertEquals(expected, result.keys);
+        assertEquals(expected, result.keys.toFixedBitSet());
     }
 
     @Test
@@ -899,7 +966,7 @@ public class MultiLuceneTest extends SeecrTestCase {
         expected.set(6);
         expected.set(7);
         expected.set(8);
-        assertEquals(expected, result.keys);
+        assertEquals(expected, result.keys.toFixedBitSet());
     }
 
     @Test
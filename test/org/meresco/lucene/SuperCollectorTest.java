@@ -28,25 +28,35 @@ package org.meresco.lucene;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
 import org.apache.lucene.facet.FacetField;
 import org.apache.lucene.facet.FacetResult;
 import org.apache.lucene.facet.LabelAndValue;
 import org.apache.lucene.facet.taxonomy.DocValuesOrdinalsReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
 import org.meresco.lucene.search.FacetSuperCollector;
@@ -108,6 +118,44 @@ public class SuperCollectorTest extends SeecrTestCase {
         assertEquals(1, td.scoreDocs[0].score, 0);
     }
 
+    @Test
+    public void testSearchTopDocsApproximateTotal() throws Throwable {
+        LuceneSettings settings = new LuceneSettings();
+        settings.commitCount = 10000;
+        Lucene I = new Lucene(this.tmpDir, settings);
+        for (int i = 0; i < 2000; i++) {
+            Document doc = new Document();
+            doc.add(new TextField("body", String.join(" ", Collections.nCopies(i % 10 + 1, "aap")) + " noot", Store.NO));
+            I.addDocument("id" + i, doc);
+        }
+        I.commit();
+        TermQuery Q = new TermQuery(new Term("body", "aap"));
+        TopScoreDocSuperCollector exact = new TopScoreDocSuperCollector(5);
+        I.search(Q, null, exact);
+        TopScoreDocSuperCollector approximate = new TopScoreDocSuperCollector(5, 10);
+        I.search(Q, null, approximate);
+        TotalHitCountSuperCollector count = new TotalHitCountSuperCollector();
+        TopScoreDocSuperCollector approximateWithCount = new TopScoreDocSuperCollector(5, 10);
+        I.search(Q, null, new MultiSuperCollector(approximateWithCount, count));
+        I.close();
+
+        assertEquals(2000, exact.getTotalHits());
+        assertEquals(TotalHits.Relation.EQUAL_TO, exact.getTotalHitsRelation());
+        assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, approximate.getTotalHitsRelation());
+        assertTrue(approximate.getTotalHits() >= 10);
+        assertTrue(approximate.getTotalHits() <= 2000);
+        assertEquals(2000, count.getTotalHits());
+        ScoreDoc[] expected = exact.topDocs(0).scoreDocs;
+        for (TopScoreDocSuperCollector c : Arrays.asList(approximate, approximateWithCount)) {
+            ScoreDoc[] scoreDocs = c.topDocs(0).scoreDocs;
+            assertEquals(expected.length, scoreDocs.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i].doc, scoreDocs[i].doc);
+                assertEquals(expected[i].score, scoreDocs[i].score, 0);
+            }
+        }
+    }
+
     @Test
     public void testFacetSuperCollector() throws Throwable {
         Lucene I = new Lucene(this.tmpDir, new LuceneSettings());
@@ -141,6 +189,42 @@ public class SuperCollectorTest extends SeecrTestCase {
         assertArrayEquals(expected, tc.labelValues);
     }
 
+    @Test
+    public void testFacetSuperCollectorSample() throws Throwable {
+        Lucene I = new Lucene(this.tmpDir, new LuceneSettings());
+        Random random = new Random(42);
+        int expected = 0;
+        for (int i = 0; i < 2000; i++) {
+            Map<String, String> facets = new HashMap<String, String>();
+            boolean first = random.nextBoolean();
+            if (first)
+                expected++;
+            facets.put("facet1", first ? "first" : "second");
+            I.addDocument("id" + i, createDocument(new HashMap<String, String>(), facets));
+        }
+        I.close();
+        I = new Lucene(this.tmpDir, new LuceneSettings());
+        FacetSuperCollector C = new FacetSuperCollector(I.data.getManager().acquire().taxonomyReader, I.data.getFacetsConfig(), new DocValuesOrdinalsReader());
+        C.setSampleSize(200);
+        I.search(new MatchAllDocsQuery(), null, C);
+        assertTrue(C.isSampled());
+        FacetResult tc = C.getTopChildren(10, "facet1");
+        int total = 0;
+        for (LabelAndValue lv : tc.labelValues) {
+            assertEquals(0, lv.value.intValue() % 10);
+            total += lv.value.intValue();
+            if (lv.label.equals("first"))
+                assertEquals(expected, lv.value.intValue(), 300);
+        }
+        assertEquals(2000, total);
+
+        C = new FacetSuperCollector(I.data.getManager().acquire().taxonomyReader, I.data.getFacetsConfig(), new DocValuesOrdinalsReader());
+        C.setSampleSize(2000);
+        I.search(new MatchAllDocsQuery(), null, C);
+        assertFalse(C.isSampled());
+        assertEquals(expected, C.getTopChildren(10, "facet1").labelValues[expected >= 1000 ? 0 : 1].value.intValue());
+    }
+
     @Test
     public void testFacetAndTopsMultiCollector() throws Throwable {
         Lucene I = new Lucene(this.tmpDir, new LuceneSettings());
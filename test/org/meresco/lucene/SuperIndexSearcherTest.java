@@ -26,31 +26,48 @@
 
 package org.meresco.lucene;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.SimpleFSDirectory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.meresco.lucene.analysis.MerescoStandardAnalyzer;
+import org.meresco.lucene.search.DeDupFilterSuperCollector;
+import org.meresco.lucene.search.SearchExecutor;
 import org.meresco.lucene.search.SuperIndexSearcher;
-import org.meresco.lucene.test.DummyIndexReader;
+import org.meresco.lucene.search.TimeBudget;
+import org.meresco.lucene.search.TopScoreDocSuperCollector;
+import org.meresco.lucene.search.TotalHitCountSuperCollector;
+import org.meresco.lucene.search.join.KeySuperCollector;
 
 public class SuperIndexSearcherTest extends SeecrTestCase {
 
     private IndexWriter writer;
     private DirectoryReader reader;
-    private SuperIndexSearcher sis;
     private ExecutorService executor;
 
     @Before
@@ -59,9 +76,19 @@ public class SuperIndexSearcherTest extends SeecrTestCase {
         this.executor = Executors.newFixedThreadPool(5);
         Directory indexDirectory = new SimpleFSDirectory(this.tmpDir);
         IndexWriterConfig conf = new IndexWriterConfig(new MerescoStandardAnalyzer());
+        conf.setMergePolicy(NoMergePolicy.INSTANCE);
         this.writer = new IndexWriter(indexDirectory, conf);
+        for (int segment = 0; segment < 4; segment++) {
+            for (int i = 0; i < 10; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("segment", "s" + segment, Store.NO));
+                doc.add(new NumericDocValuesField("key", segment * 10 + i + 1));
+                doc.add(new NumericDocValuesField("dedup", i % 3 + 1));
+                this.writer.addDocument(doc);
+            }
+            this.writer.commit();
+        }
         this.reader = DirectoryReader.open(this.writer, true, true);
-        this.sis = new SuperIndexSearcher(this.reader);
     }
 
     @After
@@ -73,80 +100,163 @@ public class SuperIndexSearcherTest extends SeecrTestCase {
     }
 
     @Test
-    public void testGroupLeaves() {
-        List<LeafReaderContext> contexts = new ArrayList<LeafReaderContext>();
-        contexts.add(DummyIndexReader.dummyIndexReader(10).getContext());
-        List<List<LeafReaderContext>> result = this.sis.group_leaves_test(contexts, 5);
-        assertEquals(1, result.size());
-        List<LeafReaderContext> firstContext = result.get(0);
-        assertEquals(1, firstContext.size());
+    public void testLeafWorkInDocBaseOrder() throws Exception {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 2);
+        List<int[]> work = sis.leafWork_test(new MatchAllDocsQuery());
+        assertEquals(4, work.size());
+        for (int i = 0; i < 4; i++)
+            assertArrayEquals(new int[] {i * 10, 0, DocIdSetIterator.NO_MORE_DOCS}, work.get(i));
     }
 
     @Test
-    public void testGroupLeaves1ForEach() {
-        ArrayList<LeafReaderContext> contexts = new ArrayList<LeafReaderContext>();
-        contexts.add(DummyIndexReader.dummyIndexReader(10).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(9).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(8).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(7).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(6).getContext());
-        List<List<LeafReaderContext>> result = this.sis.group_leaves_test(contexts, 5);
-        assertEquals(5, result.size());
-        for (int i = 0; i < 5; i++) {
-            List<LeafReaderContext> context = result.get(i);
-            assertEquals(1, context.size());
-        }
+    public void testLeafWorkSkipsLeavesWithoutMatches() throws Exception {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 2);
+        List<int[]> work = sis.leafWork_test(new TermQuery(new Term("segment", "s2")));
+        assertEquals(1, work.size());
+        assertEquals(20, work.get(0)[0]);
     }
 
     @Test
-    public void testGroupLeaves1TooMuch() {
-        ArrayList<LeafReaderContext> contexts = new ArrayList<LeafReaderContext>();
-        contexts.add(DummyIndexReader.dummyIndexReader(10).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(9).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(8).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(7).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(6).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(5).getContext());
-        List<List<LeafReaderContext>> result = this.sis.group_leaves_test(contexts, 5);
-        assertEquals(5, result.size());
-        for (int i = 0; i < 4; i++) {
-            List<LeafReaderContext> context = result.get(i);
-            assertEquals(1, context.size());
-        }
-        List<LeafReaderContext> context = result.get(4);
-        assertEquals(2, context.size());
+    public void testLeafWorkSplitsExpensiveLeafInRanges() throws Exception {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 4);
+        sis.setMinDocsPerRange(5);
+        List<int[]> work = sis.leafWork_test(new TermQuery(new Term("segment", "s2")));
+        assertEquals(2, work.size());
+        assertArrayEquals(new int[] {20, 0, 5}, work.get(0));
+        assertArrayEquals(new int[] {20, 5, 10}, work.get(1));
+    }
+
+    @Test
+    public void testLeafWorkNotSplitBelowMinDocsPerRange() throws Exception {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 4);
+        List<int[]> work = sis.leafWork_test(new TermQuery(new Term("segment", "s2")));
+        assertEquals(1, work.size());
+    }
+
+    @Test
+    public void testLeavesScoredWithWhatGaveTheirCost() throws Throwable {
+        BooleanQuery conjunction = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("segment", "s2")), Occur.MUST)
+                .add(new MatchAllDocsQuery(), Occur.FILTER)
+                .build();
+        BooleanQuery disjunction = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("segment", "s1")), Occur.SHOULD)
+                .add(new TermQuery(new Term("segment", "s2")), Occur.SHOULD)
+                .build();
+        assertTrue(SuperIndexSearcher.usesDefaultBulkScorer(conjunction));
+        assertTrue(SuperIndexSearcher.usesDefaultBulkScorer(new TermQuery(new Term("segment", "s2"))));
+        assertFalse(SuperIndexSearcher.usesDefaultBulkScorer(disjunction));
+        assertFalse(SuperIndexSearcher.usesDefaultBulkScorer(new MatchAllDocsQuery()));
+
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 4);
+        TotalHitCountSuperCollector collector = new TotalHitCountSuperCollector();
+        sis.search(conjunction, collector);
+        assertEquals(10, collector.getTotalHits());
+        collector = new TotalHitCountSuperCollector();
+        sis.search(disjunction, collector);
+        assertEquals(20, collector.getTotalHits());
+
+        sis.setMinDocsPerRange(3);
+        collector = new TotalHitCountSuperCollector();
+        sis.search(disjunction, collector);
+        assertEquals(20, collector.getTotalHits());
     }
 
     @Test
-    public void testGroupLeavesAllDouble() {
-        ArrayList<LeafReaderContext> contexts = new ArrayList<LeafReaderContext>();
-        contexts.add(DummyIndexReader.dummyIndexReader(10).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(9).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(8).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(7).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(6).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(5).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(4).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(3).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(2).getContext());
-        contexts.add(DummyIndexReader.dummyIndexReader(1).getContext());
-        List<List<LeafReaderContext>> result = this.sis.group_leaves_test(contexts, 5);
-        assertEquals(5, result.size());
-        for (int i = 0; i < 4; i++) {
-            List<LeafReaderContext> context = result.get(i);
-            assertEquals(2, context.size());
-            int totalDocs = context.get(0).reader().numDocs() + context.get(1).reader().numDocs();
-            assertEquals(11, totalDocs);
+    public void testRangesWithStatefulCollectors() throws Throwable {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 5);
+        sis.setMinDocsPerRange(2);
+        TermQuery q = new TermQuery(new Term("segment", "s3"));
+        assertEquals(5, sis.leafWork_test(q).size());
+
+        KeySuperCollector keyCollector = new KeySuperCollector("key");
+        sis.search(q, keyCollector);
+        assertEquals(10, keyCollector.getCollectedKeys().cardinality());
+        for (int key = 31; key <= 40; key++)
+            assertEquals(true, keyCollector.getCollectedKeys().get(key));
+
+        TopScoreDocSuperCollector topCollector = new TopScoreDocSuperCollector(10);
+        DeDupFilterSuperCollector dedupCollector = new DeDupFilterSuperCollector("dedup", null, topCollector);
+        sis.search(q, dedupCollector);
+        assertEquals(10, topCollector.getTotalHits());
+        assertEquals(3, dedupCollector.adjustTotalHits(10));
+        assertEquals(4, dedupCollector.keyForDocId(30).getCount());
+        for (int i = 0; i < 10; i++)
+            assertEquals(30 + i, topCollector.topDocs(0).scoreDocs[i].doc);
+    }
+
+    @Test
+    public void testSearchAllLeavesWithFewerTasks() throws Throwable {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 3);
+        TotalHitCountSuperCollector collector = new TotalHitCountSuperCollector();
+        sis.search(new MatchAllDocsQuery(), collector);
+        assertEquals(40, collector.getTotalHits());
+    }
+
+    @Test
+    public void testNoMoreTasksThanLeavesWithMatches() throws Throwable {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 5);
+        TopScoreDocSuperCollector collector = new TopScoreDocSuperCollector(5);
+        sis.search(new TermQuery(new Term("segment", "s1")), collector);
+        assertEquals(10, collector.getTotalHits());
+        assertEquals(5, collector.topDocs(0).scoreDocs.length);
+        assertEquals(10, collector.topDocs(0).scoreDocs[0].doc);
+    }
+
+    @Test
+    public void testSearchWithoutExecutor() throws Throwable {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader);
+        TotalHitCountSuperCollector collector = new TotalHitCountSuperCollector();
+        sis.search(new MatchAllDocsQuery(), collector);
+        assertEquals(40, collector.getTotalHits());
+    }
+
+    @Test
+    public void testSearchWithSaturatedExecutor() throws Throwable {
+        SearchExecutor executor = new SearchExecutor(1, 1);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.execute(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                }
+            });
+            while (executor.getActiveCount() == 0)
+                Thread.sleep(1);
+            executor.execute(() -> {});
+            SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, executor, 4);
+            TotalHitCountSuperCollector collector = new TotalHitCountSuperCollector();
+            sis.search(new MatchAllDocsQuery(), collector);
+            assertEquals(40, collector.getTotalHits());
+            assertEquals(3, executor.metricsAsJson().getInt("rejectedTasks"));
+        } finally {
+            latch.countDown();
+            executor.shutdown();
         }
+    }
 
+    @Test
+    public void testSearchWithinTimeBudget() throws Throwable {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 4);
+        TimeBudget budget = new TimeBudget(60000);
+        TotalHitCountSuperCollector collector = new TotalHitCountSuperCollector();
+        sis.search(new MatchAllDocsQuery(), collector, budget);
+        assertEquals(40, collector.getTotalHits());
+        assertFalse(budget.isExceeded());
+        assertEquals(4, budget.segments());
+        assertEquals(4, budget.segmentsSearched());
     }
 
     @Test
-    public void testFindSmallestSlice() {
-        assertEquals(0, this.sis.find_smallest_slice_test(new int[] {0, 0, 0, 0, 0}));
-        assertEquals(1, this.sis.find_smallest_slice_test(new int[] {1, 0, 0, 0, 0}));
-        assertEquals(1, this.sis.find_smallest_slice_test(new int[] {1, 0, 1, 0, 0}));
-        assertEquals(0, this.sis.find_smallest_slice_test(new int[] {1, 1, 1, 1, 1}));
-        assertEquals(4, this.sis.find_smallest_slice_test(new int[] {2, 1, 1, 1, 0}));
+    public void testSearchStopsWhenTimeBudgetExceeded() throws Throwable {
+        SuperIndexSearcher sis = new SuperIndexSearcher(this.reader, this.executor, 4);
+        TimeBudget budget = new TimeBudget(0);
+        TotalHitCountSuperCollector collector = new TotalHitCountSuperCollector();
+        sis.search(new TermQuery(new Term("segment", "s2")), collector, budget);
+        assertEquals(0, collector.getTotalHits());
+        assertTrue(budget.isExceeded());
+        assertEquals(4, budget.segments());
+        assertEquals(3, budget.segmentsSearched());
     }
 }
@@ -73,28 +73,17 @@ public class UtilsTest {
     }
 
     @Test
-    public void testInt1120() {
-        assertEquals(0, Utils.int1120ToFloat(Utils.floatToInt1120(0)), 0);
-        assertEquals(0, Utils.int1120ToFloat(Utils.floatToInt1120(-1.f)), 0);
-
-        float smallestFloat = Float.intBitsToFloat((1<<(23-11)) + ((127-20) << 23)); // 9.5414E-7
-        assertEquals(smallestFloat, toInt1120AndBack(smallestFloat), 0);
-
-        float smallerThanSmallestFloat = smallestFloat * 0.5f;
-        assertEquals(smallestFloat, toInt1120AndBack(smallerThanSmallestFloat), 0);
-
-        float biggestFloat = Float.intBitsToFloat((0xffff<<(23-11)) + ((127-20) << 23)); // 4095.0
-        assertEquals(biggestFloat, toInt1120AndBack(biggestFloat), 0);
-
-        float biggerThanBiggestFloat = biggestFloat * 2.0f;
-        assertEquals(biggestFloat, toInt1120AndBack(biggerThanBiggestFloat), 0);
-
-        assertEquals(3.140625f, toInt1120AndBack((float)Math.PI), 0);
-    }
-
-    float toInt1120AndBack(float f) {
-        int i = Utils.floatToInt1120(f);
-        i &= 0xffff;
-        return Utils.int1120ToFloat(i);
+    public void testHalf() {
+        assertEquals(0, Utils.floatToHalf(0));
+        assertEquals(0, Utils.floatToHalf(-1.f));
+        assertEquals(0, Utils.floatToHalf(Float.NaN));
+        assertEquals(1.0f, Utils.halfToFloat(Utils.floatToHalf(1.0f)), 0);
+        assertEquals(3.140625f, Utils.halfToFloat(Utils.floatToHalf((float)Math.PI)), 0);
+        assertEquals(65504.0f, Utils.halfToFloat(Utils.floatToHalf(1e10f)), 0);
+        assertEquals(0x1p-24f, Utils.halfToFloat(Utils.floatToHalf(1e-30f)), 0);
+        assertEquals(0x1p-14f, Utils.halfToFloat(Utils.floatToHalf(0x1p-14f)), 0);
+        assertEquals(3 * 0x1p-24f, Utils.halfToFloat(Utils.floatToHalf(3 * 0x1p-24f)), 0);
+        for (int h = 1; h < 0x7c00; h++)
+            assertEquals(h, Utils.floatToHalf(Utils.halfToFloat((short) h)));
     }
 }
@@ -0,0 +1,237 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.queries;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import javax.json.JsonObject;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RoaringDocIdSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.meresco.lucene.SeecrTestCase;
+import org.meresco.lucene.analysis.MerescoStandardAnalyzer;
+import org.meresco.lucene.search.join.KeySet;
+
+public class KeyFilterTest extends SeecrTestCase {
+    private IndexWriter writer;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private FixedBitSet keySet = new FixedBitSet(100);
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Directory indexDirectory = new SimpleFSDirectory(this.tmpDir);
+        this.writer = new IndexWriter(indexDirectory, new IndexWriterConfig(new MerescoStandardAnalyzer()));
+        for (int i = 0; i < 1000; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("field", i % 100 == 0 ? "rare" : "common", Store.NO));
+            doc.add(new NumericDocValuesField("key", i % 100 + 1));
+            this.writer.addDocument(doc);
+        }
+        this.writer.forceMerge(1);
+        this.reader = DirectoryReader.open(this.writer, true, true);
+        this.searcher = new IndexSearcher(this.reader);
+        this.searcher.setQueryCache(null);
+        for (int key = 1; key <= 20; key++)
+            this.keySet.set(key);
+        KeyFilterCache.shared().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.reader.close();
+        this.writer.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        assertEquals(200, this.searcher.count(new KeyFilter(this.keySet, "key")));
+        assertEquals(800, this.searcher.count(new KeyFilter(this.keySet, "key", true)));
+        assertEquals(0, this.searcher.count(new KeyFilter(new FixedBitSet(0), "key")));
+        assertEquals(1000, this.searcher.count(new KeyFilter(new FixedBitSet(0), "key", true)));
+    }
+
+    @Test
+    public void testCountWithSelectiveQuery() throws Exception {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new TermQuery(new Term("field", "rare")), Occur.MUST);
+        builder.add(new KeyFilter(this.keySet, "key"), Occur.FILTER);
+        assertEquals(10, this.searcher.count(builder.build()));
+
+        builder = new BooleanQuery.Builder();
+        builder.add(new TermQuery(new Term("field", "rare")), Occur.MUST);
+        builder.add(new KeyFilter(this.keySet, "key"), Occur.MUST_NOT);
+        assertEquals(0, this.searcher.count(builder.build()));
+    }
+
+    @Test
+    public void testCostFromKeySetDensity() throws Exception {
+        ScorerSupplier supplier = scorerSupplier(new KeyFilter(this.keySet, "key"));
+        assertEquals(200, supplier.cost());
+        assertEquals(1000, scorerSupplier(new KeyFilter(this.keySet, "key", true)).cost());
+        assertNull(scorerSupplier(new KeyFilter(new FixedBitSet(10), "key")));
+    }
+
+    @Test
+    public void testVerifyOnlyWhenAnotherClauseLeads() throws Exception {
+        Scorer scorer = scorerSupplier(new KeyFilter(this.keySet, "key")).get(10);
+        assertNotNull(scorer.twoPhaseIterator());
+
+        scorer = scorerSupplier(new KeyFilter(this.keySet, "key")).get(Long.MAX_VALUE);
+        assertNull(scorer.twoPhaseIterator());
+        assertEquals(200, scorer.iterator().cost());
+        assertEquals(0, scorer.iterator().nextDoc());
+    }
+
+    @Test
+    public void testEmptyIteratorWhenNoDocHasTheKeys() throws Exception {
+        FixedBitSet otherKeys = new FixedBitSet(1000);
+        otherKeys.set(500);
+        Scorer scorer = scorerSupplier(new KeyFilter(otherKeys, "key")).get(Long.MAX_VALUE);
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.iterator().nextDoc());
+        assertEquals(0, this.searcher.count(new KeyFilter(otherKeys, "key")));
+        scorer = scorerSupplier(new KeyFilter(otherKeys, "key")).get(Long.MAX_VALUE);
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.iterator().nextDoc());
+    }
+
+    @Test
+    public void testCachedDocIdSetForSameKeySet() throws Exception {
+        FixedBitSet sameKeys = new FixedBitSet(1000);
+        sameKeys.or(this.keySet);
+        assertEquals(200, this.searcher.count(new KeyFilter(this.keySet, "key")));
+        assertEquals(1, KeyFilterCache.shared().statsAsJson().getInt("entries"));
+
+        int hits = KeyFilterCache.shared().statsAsJson().getInt("hits");
+        ScorerSupplier supplier = scorerSupplier(new KeyFilter(sameKeys, "key"));
+        Scorer scorer = supplier.get(10);
+        assertNull(scorer.twoPhaseIterator());
+        assertEquals(200, supplier.cost());
+        assertEquals(hits + 1, KeyFilterCache.shared().statsAsJson().getInt("hits"));
+
+        assertNotNull(scorerSupplier(new KeyFilter(this.keySet, "key", true)).get(10).twoPhaseIterator());
+    }
+
+    @Test
+    public void testDocIdSetSharedByScorersOfOneLeaf() throws Exception {
+        long maxBytes = KeyFilterCache.shared().statsAsJson().getJsonNumber("maxBytes").longValue();
+        KeyFilterCache.shared().setMaxBytes(0);
+        try {
+            Weight weight = this.searcher.createWeight(new KeyFilter(this.keySet, "key"), ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+            LeafReaderContext context = this.reader.leaves().get(0);
+            DocIdSetIterator first = weight.scorerSupplier(context).get(Long.MAX_VALUE).iterator();
+            DocIdSetIterator second = weight.scorerSupplier(context).get(Long.MAX_VALUE).iterator();
+            assertEquals(200, first.cost());
+            assertEquals(200, second.cost());
+            assertEquals(second.advance(500), first.advance(500));
+            assertEquals(0, KeyFilterCache.shared().statsAsJson().getInt("entries"));
+        } finally {
+            KeyFilterCache.shared().setMaxBytes(maxBytes);
+        }
+    }
+
+    @Test
+    public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+        KeyFilterCache cache = new KeyFilterCache(1000);
+        LeafReader leaf = this.reader.leaves().get(0).reader();
+        KeyFilterCache.Key key1 = cache.key("key", false, new long[] {1, 1}, leaf);
+        KeyFilterCache.Key key2 = cache.key("key", false, new long[] {2, 2}, leaf);
+        KeyFilterCache.Key key3 = cache.key("key", false, new long[] {3, 3}, leaf);
+        DocIdSet docIdSet = new RoaringDocIdSet.Builder(1000).add(5).build();
+        long size = docIdSet.ramBytesUsed();
+        cache.setMaxBytes(2 * size);
+        cache.put(key1, docIdSet);
+        cache.put(key2, docIdSet);
+        assertNotNull(cache.get(key1));
+        cache.put(key3, docIdSet);
+        assertNull(cache.get(key2));
+        assertNotNull(cache.get(key1));
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(2, stats.getInt("entries"));
+        assertEquals(2 * size, stats.getJsonNumber("ramBytesUsed").longValue());
+        assertEquals(1, stats.getInt("evictions"));
+        assertEquals(2, stats.getInt("hits"));
+        assertEquals(1, stats.getInt("misses"));
+    }
+
+    @Test
+    public void testFingerprintIgnoresLength() throws Exception {
+        FixedBitSet longer = new FixedBitSet(10000);
+        longer.or(this.keySet);
+        assertArrayEquals(KeyFilterCache.fingerprint(this.keySet), KeyFilterCache.fingerprint(longer));
+        longer.set(5000);
+        assertFalse(Arrays.equals(KeyFilterCache.fingerprint(this.keySet), KeyFilterCache.fingerprint(longer)));
+    }
+
+    @Test
+    public void testFingerprintOfKeySetCountsValuesPerChunk() throws Exception {
+        KeySet.Builder builder = new KeySet.Builder();
+        builder.add(65536);
+        builder.add(65537);
+        KeySet twoKeys = builder.build();
+        builder = new KeySet.Builder();
+        builder.add(65537);
+        KeySet oneKey = builder.build();
+        assertFalse(Arrays.equals(KeyFilterCache.fingerprint(twoKeys), KeyFilterCache.fingerprint(oneKey)));
+    }
+
+    private ScorerSupplier scorerSupplier(KeyFilter filter) throws Exception {
+        Weight weight = this.searcher.createWeight(filter, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+        LeafReaderContext context = this.reader.leaves().get(0);
+        return weight.scorerSupplier(context);
+    }
+}
@@ -34,6 +34,8 @@ import java.util.Arrays;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
 import org.junit.After;
 import org.junit.Before;
@@ -68,6 +70,27 @@ public class DedupFilterCollectorTest extends SeecrTestCase {
         assertEquals(1, tc.topDocs(0).totalHits.value);
     }
 
+    @Test
+    public void testTopDocsKeepBestDocumentPerKey() throws Throwable {
+        addDocument("urn:1", 1L, 4L);
+        addDocument("urn:2", 1L, 1L);
+        addDocument("urn:3", null, 2L);
+        addDocument("urn:4", 2L, 3L);
+        addDocument("urn:5", 2L, 5L);
+        addDocument("urn:6", 3L, 6L);
+        DeDupTopDocsSuperCollector tc = new DeDupTopDocsSuperCollector("__isformatof__", new Sort(new SortField("__sort__", SortField.Type.LONG)), 3);
+        DeDupFilterSuperCollector c = new DeDupFilterSuperCollector("__isformatof__", null, tc);
+        lucene.search(new MatchAllDocsQuery(), null, c);
+        TopDocs topDocs = tc.topDocs(0);
+        assertEquals(6, topDocs.totalHits.value);
+        assertEquals(4, c.adjustTotalHits(topDocs.totalHits.value));
+        String[] identifiers = new String[topDocs.scoreDocs.length];
+        for (int i = 0; i < identifiers.length; i++)
+            identifiers[i] = lucene.getDocument(topDocs.scoreDocs[i].doc).get(Lucene.ID_FIELD);
+        assertArrayEquals(new String[] {"urn:2", "urn:3", "urn:4"}, identifiers);
+        assertEquals(1, tc.topDocs(2).scoreDocs.length);
+    }
+
     public void addDocument(String identifier, Long isformatof, Long sort) throws Throwable {
         Document doc = new Document();
         if (isformatof != null)
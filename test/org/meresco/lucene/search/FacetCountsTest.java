@@ -0,0 +1,212 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import gnu.trove.list.array.TIntArrayList;
+
+public class FacetCountsTest {
+
+    @Test
+    public void testSparseUntilTooManyOrdinals() {
+        FacetCounts counts = new FacetCounts(8000, 10);
+        assertTrue(counts.isSparse());
+        for (int ord = 0; ord < 62; ord++)
+            counts.add(ord, 2);
+        assertTrue(counts.isSparse());
+        assertEquals(null, counts.untrackedValues());
+        counts.increment(62);
+        counts.increment(0);
+        assertFalse(counts.isSparse());
+        assertEquals(8000, counts.cardinality());
+        assertSame(counts.values(), counts.untrackedValues());
+        assertEquals(3, counts.values()[0]);
+        assertEquals(2, counts.values()[61]);
+        assertEquals(1, counts.values()[62]);
+        assertEquals(0, counts.values()[63]);
+        counts.release();
+    }
+
+    @Test
+    public void testDenseWhenManyHitsExpected() {
+        FacetCounts counts = new FacetCounts(8000, 200);
+        assertFalse(counts.isSparse());
+        assertEquals(null, counts.untrackedValues());
+        counts.increment(5);
+        assertEquals(1, counts.cardinality());
+        counts.release();
+
+        counts = new FacetCounts(8000, 1000);
+        assertNotNull(counts.untrackedValues());
+        counts.release();
+    }
+
+    @Test
+    public void testMergeSparseIntoDense() {
+        FacetCounts dense = new FacetCounts(1000, 100);
+        dense.add(3, 1);
+        FacetCounts sparse = new FacetCounts(1000, 1);
+        sparse.add(3, 2);
+        sparse.add(7, 1);
+        FacetCounts merged = sparse.merge(dense);
+        assertSame(dense, merged);
+        assertArrayEquals(new int[] {0, 0, 0, 3, 0, 0, 0, 1}, Arrays.copyOf(merged.values(), 8));
+        merged.release();
+    }
+
+    @Test
+    public void testMergeSparse() {
+        FacetCounts a = new FacetCounts(1000, 1);
+        a.add(1, 1);
+        FacetCounts b = new FacetCounts(1000, 1);
+        b.add(1, 1);
+        b.add(999, 4);
+        FacetCounts merged = a.merge(b);
+        assertSame(b, merged);
+        assertTrue(merged.isSparse());
+        assertEquals(2, merged.values()[1]);
+        assertEquals(4, merged.values()[999]);
+        merged.release();
+    }
+
+    @Test
+    public void testMergeAllSequential() throws Exception {
+        FacetCounts a = new FacetCounts(8000, 1);
+        a.add(10, 1);
+        FacetCounts b = new FacetCounts(8000, 100);
+        b.add(10, 2);
+        b.add(20, 1);
+        FacetCounts c = new FacetCounts(8000, 100);
+        c.add(30, 5);
+        FacetCounts merged = FacetCounts.mergeAll(Arrays.asList(a, b, c), null, 1);
+        assertSame(b, merged);
+        assertEquals(3, merged.cardinality());
+        assertEquals(3, merged.values()[10]);
+        assertEquals(1, merged.values()[20]);
+        assertEquals(5, merged.values()[30]);
+        merged.release();
+    }
+
+    @Test
+    public void testMergeAllByRangeOnExecutor() throws Exception {
+        int size = 1 << 17;
+        FacetCounts a = new FacetCounts(size, size);
+        FacetCounts b = new FacetCounts(size, size);
+        FacetCounts c = new FacetCounts(size, size);
+        for (int ord = 0; ord < size; ord++) {
+            if (ord % 2 == 0)
+                a.increment(ord);
+            b.increment(ord);
+            c.add(ord, 2);
+        }
+        FacetCounts sparse = new FacetCounts(size, 1);
+        sparse.add(1, 10);
+        SearchExecutor executor = new SearchExecutor(4, 100);
+        try {
+            FacetCounts merged = FacetCounts.mergeAll(Arrays.asList(a, sparse, b, c), executor, 4);
+            assertEquals(size, merged.cardinality());
+            int[] values = merged.values();
+            assertEquals(4, values[0]);
+            assertEquals(13, values[1]);
+            assertEquals(4, values[size - 2]);
+            assertEquals(3, values[size - 1]);
+            merged.release();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMergeAllInlineOnBusySearchThreads() throws Exception {
+        int size = 1 << 17;
+        FacetCounts a = new FacetCounts(size, size);
+        FacetCounts b = new FacetCounts(size, size);
+        for (int ord = 0; ord < size; ord++) {
+            a.increment(ord);
+            b.increment(ord);
+        }
+        SearchExecutor executor = new SearchExecutor(1, 100);
+        try {
+            FacetCounts merged = executor.submit(() -> FacetCounts.mergeAll(Arrays.asList(a, b), executor, 4)).get(10, TimeUnit.SECONDS);
+            assertEquals(2, merged.values()[size - 1]);
+            merged.release();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPoolClearsTouchedOrdinals() {
+        FacetCounts.Pool pool = new FacetCounts.Pool(1024);
+        int[] values = pool.borrow(100);
+        assertEquals(104, values.length);
+        values[5] = 3;
+        values[80] = 1;
+        pool.release(values, new TIntArrayList(new int[] {5, 80}));
+        assertEquals(4 * 104, pool.pooledBytes());
+        int[] reused = pool.borrow(101);
+        assertSame(values, reused);
+        assertEquals(0, reused[5]);
+        assertEquals(0, reused[80]);
+        assertEquals(0, pool.pooledBytes());
+
+        reused[50] = 1;
+        pool.release(reused, null);
+        assertEquals(0, pool.borrow(100)[50]);
+    }
+
+    @Test
+    public void testPoolKeepsAtMostMaxBytes() {
+        FacetCounts.Pool pool = new FacetCounts.Pool(300);
+        int[] a = pool.borrow(64);
+        int[] b = pool.borrow(64);
+        pool.release(a, new TIntArrayList());
+        pool.release(b, new TIntArrayList());
+        assertEquals(256, pool.pooledBytes());
+        assertSame(a, pool.borrow(64));
+        assertFalse(b == pool.borrow(64));
+    }
+
+    @Test
+    public void testSizeClass() {
+        assertEquals(64, FacetCounts.Pool.sizeClass(1));
+        assertEquals(64, FacetCounts.Pool.sizeClass(64));
+        assertEquals(72, FacetCounts.Pool.sizeClass(65));
+        assertEquals(1 << 20, FacetCounts.Pool.sizeClass(1 << 20));
+        assertEquals(9 << 17, FacetCounts.Pool.sizeClass((1 << 20) + 1));
+    }
+}
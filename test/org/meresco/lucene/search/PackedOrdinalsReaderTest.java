@@ -0,0 +1,196 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.json.JsonObject;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.FacetField;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.taxonomy.DocValuesOrdinalsReader;
+import org.apache.lucene.facet.taxonomy.OrdinalsReader;
+import org.apache.lucene.facet.taxonomy.OrdinalsReader.OrdinalsSegmentReader;
+import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.IntsRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.meresco.lucene.SeecrTestCase;
+import org.meresco.lucene.analysis.MerescoStandardAnalyzer;
+
+public class PackedOrdinalsReaderTest extends SeecrTestCase {
+    private IndexWriter writer;
+    private DirectoryTaxonomyWriter taxoWriter;
+    private FacetsConfig config = new FacetsConfig();
+    private DirectoryReader reader;
+    private OrdinalsReader source = new DocValuesOrdinalsReader();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        this.config.setMultiValued("dim", true);
+        IndexWriterConfig writerConfig = new IndexWriterConfig(new MerescoStandardAnalyzer());
+        writerConfig.setMergePolicy(NoMergePolicy.INSTANCE);
+        this.writer = new IndexWriter(new SimpleFSDirectory(this.tmpDir.resolve("index")), writerConfig);
+        this.taxoWriter = new DirectoryTaxonomyWriter(new SimpleFSDirectory(this.tmpDir.resolve("taxo")));
+        Random random = new Random(1);
+        for (int segment = 0; segment < 2; segment++) {
+            for (int i = 0; i < 300; i++) {
+                Document doc = new Document();
+                for (int j = random.nextInt(4); j > 0; j--)
+                    doc.add(new FacetField("dim", "value" + random.nextInt(500)));
+                this.writer.addDocument(this.config.build(this.taxoWriter, doc));
+            }
+            this.writer.commit();
+        }
+        this.reader = DirectoryReader.open(this.writer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.reader.close();
+        this.writer.close();
+        this.taxoWriter.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void testSameOrdinalsAsDocValues() throws Exception {
+        FacetOrdinalsCache cache = new FacetOrdinalsCache(1 << 20);
+        PackedOrdinalsReader packed = new PackedOrdinalsReader(this.source, cache);
+        assertEquals(2, this.reader.leaves().size());
+        for (LeafReaderContext context : this.reader.leaves()) {
+            OrdinalsSegmentReader expected = this.source.getReader(context);
+            OrdinalsSegmentReader actual = packed.getReader(context);
+            for (int doc = 0; doc < context.reader().maxDoc(); doc += 1 + doc % 3)
+                assertArrayEquals(ordinals(expected, doc), ordinals(actual, doc));
+        }
+        Random random = new Random(2);
+        for (LeafReaderContext context : this.reader.leaves()) {
+            OrdinalsSegmentReader actual = packed.getReader(context);
+            for (int i = 0; i < 100; i++) {
+                int doc = random.nextInt(context.reader().maxDoc());
+                assertArrayEquals(ordinals(this.source.getReader(context), doc), ordinals(actual, doc));
+            }
+        }
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(2, stats.getInt("entries"));
+        assertEquals(2, stats.getInt("misses"));
+        assertEquals(2, stats.getInt("hits"));
+        assertTrue(stats.getInt("offHeapBytesUsed") > 600);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        FacetOrdinalsCache cache = new FacetOrdinalsCache(1 << 20);
+        PackedOrdinalsReader packed = new PackedOrdinalsReader(this.source, cache);
+        LeafReaderContext first = this.reader.leaves().get(0);
+        LeafReaderContext second = this.reader.leaves().get(1);
+        long firstBytes = packed.build(first).ramBytesUsed();
+        packed.getReader(first);
+        packed.getReader(second);
+        cache.setMaxBytes(cache.statsAsJson().getJsonNumber("offHeapBytesUsed").longValue() - 1);
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(1, stats.getInt("evictions"));
+        assertEquals(stats.getJsonNumber("offHeapBytesUsed").longValue() + firstBytes, cache.maxBytes() + 1);
+        assertNull(cache.get(cache.key(this.source.getIndexFieldName(), first.reader())));
+    }
+
+    @Test
+    public void testReadFromSourceWhenTooLarge() throws Exception {
+        FacetOrdinalsCache cache = new FacetOrdinalsCache(100);
+        PackedOrdinalsReader packed = new PackedOrdinalsReader(this.source, cache);
+        LeafReaderContext context = this.reader.leaves().get(0);
+        assertNull(packed.build(context));
+        assertArrayEquals(ordinals(this.source.getReader(context), 5), ordinals(packed.getReader(context), 5));
+        assertEquals(0, cache.statsAsJson().getInt("entries"));
+    }
+
+    @Test
+    public void testTooLargeSegmentsAreNotPackedAgain() throws Exception {
+        FacetOrdinalsCache cache = new FacetOrdinalsCache(100);
+        PackedOrdinalsReader packed = new PackedOrdinalsReader(this.source, cache);
+        LeafReaderContext context = this.reader.leaves().get(0);
+        packed.getReader(context);
+        packed.getReader(context);
+        packed.warm(this.reader);
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(2, stats.getInt("tooLarge"));
+        assertEquals(1, stats.getInt("misses"));
+
+        cache.setMaxBytes(1 << 20);
+        assertArrayEquals(ordinals(this.source.getReader(context), 5), ordinals(packed.getReader(context), 5));
+        stats = cache.statsAsJson();
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(1, stats.getInt("tooLarge"));
+    }
+
+    @Test
+    public void testWarm() throws Exception {
+        FacetOrdinalsCache cache = new FacetOrdinalsCache(1 << 20);
+        PackedOrdinalsReader packed = new PackedOrdinalsReader(this.source, cache);
+        packed.warm(this.reader);
+        assertEquals(2, cache.statsAsJson().getInt("entries"));
+        packed.getReader(this.reader.leaves().get(1));
+        assertEquals(1, cache.statsAsJson().getInt("hits"));
+        assertEquals(0, cache.statsAsJson().getInt("misses"));
+    }
+
+    @Test
+    public void testClosedSegmentsLeaveTheCache() throws Exception {
+        FacetOrdinalsCache cache = new FacetOrdinalsCache(1 << 20);
+        new PackedOrdinalsReader(this.source, cache).warm(this.reader);
+        this.reader.close();
+        this.writer.deleteAll();
+        this.writer.commit();
+        this.reader = DirectoryReader.open(this.writer);
+        assertEquals(0, cache.statsAsJson().getInt("entries"));
+        assertEquals(0, cache.statsAsJson().getInt("offHeapBytesUsed"));
+    }
+
+    private static int[] ordinals(OrdinalsSegmentReader reader, int doc) throws Exception {
+        IntsRef ordinals = new IntsRef();
+        reader.get(doc, ordinals);
+        int[] result = Arrays.copyOfRange(ordinals.ints, ordinals.offset, ordinals.offset + ordinals.length);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.json.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchExecutorTest {
+    private SearchExecutor executor;
+    private CountDownLatch latch = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        this.executor = new SearchExecutor(1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        this.latch.countDown();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testAdmitPerCore() throws Exception {
+        SearchExecutor.Admission admission = this.executor.admit("core", 1, 0);
+        assertNotNull(admission);
+        assertNull(this.executor.admit("core", 1, 10));
+        assertNotNull(this.executor.admit("other", 1, 0));
+        admission.close();
+        assertNotNull(this.executor.admit("core", 1, 0));
+
+        JsonObject core = this.executor.metricsAsJson().getJsonObject("cores").getJsonObject("core");
+        assertEquals(1, core.getInt("running"));
+        assertEquals(2, core.getInt("admitted"));
+        assertEquals(1, core.getInt("rejected"));
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        for (int i = 0; i < 10; i++)
+            assertNotNull(this.executor.admit("core", 0, 0));
+    }
+
+    @Test
+    public void testBoundedQueue() throws Exception {
+        this.executor.execute(() -> await());
+        while (this.executor.getActiveCount() == 0)
+            Thread.sleep(1);
+        assertFalse(this.executor.isSaturated());
+        this.executor.execute(() -> {});
+        assertTrue(this.executor.isSaturated());
+        try {
+            this.executor.execute(() -> {});
+            fail();
+        } catch (RejectedExecutionException e) {
+        }
+        assertNull(this.executor.admit("core", 0, 0));
+
+        JsonObject metrics = this.executor.metricsAsJson();
+        assertEquals(1, metrics.getInt("queued"));
+        assertEquals(1, metrics.getInt("rejectedTasks"));
+        assertEquals(1, metrics.getJsonObject("cores").getJsonObject("core").getInt("rejected"));
+    }
+
+    @Test
+    public void testConfigure() throws Exception {
+        this.executor.configure(4, 10, 5);
+        assertEquals(4, this.executor.getMaximumPoolSize());
+        assertEquals(10, this.executor.metricsAsJson().getInt("maxQueued"));
+        assertEquals(5, this.executor.retryAfter());
+        this.executor.configure(2, 10, 5);
+        assertEquals(2, this.executor.getCorePoolSize());
+        assertEquals(2, this.executor.getMaximumPoolSize());
+        this.executor.configure(2, 0, 0);
+        assertEquals(1, this.executor.metricsAsJson().getInt("maxQueued"));
+        assertEquals(1, this.executor.retryAfter());
+        assertFalse(this.executor.isSaturated());
+        assertNotNull(this.executor.admit("core", 0, 0));
+    }
+
+    @Test
+    public void testIsSearchThread() throws Exception {
+        assertFalse(SearchExecutor.isSearchThread());
+        assertTrue(this.executor.submit(() -> SearchExecutor.isSearchThread()).get());
+    }
+
+    @Test
+    public void testTasksOnSearchThreadFollowIdleThreads() throws Exception {
+        assertEquals(4, SearchExecutor.tasks(this.executor, 4));
+        assertEquals(1, SearchExecutor.tasks(null, 4));
+        assertEquals(1, SearchExecutor.tasks(this.executor, 0));
+        assertEquals(1, (int) this.executor.submit(() -> SearchExecutor.tasks(this.executor, 4)).get());
+
+        this.executor.configure(3, 10, 1);
+        assertEquals(3, (int) this.executor.submit(() -> SearchExecutor.tasks(this.executor, 4)).get());
+        this.executor.execute(() -> await());
+        while (this.executor.getActiveCount() == 0)
+            Thread.sleep(1);
+        assertEquals(2, (int) this.executor.submit(() -> SearchExecutor.tasks(this.executor, 4)).get());
+    }
+
+    private void await() {
+        try {
+            this.latch.await();
+        } catch (InterruptedException e) {
+        }
+    }
+}
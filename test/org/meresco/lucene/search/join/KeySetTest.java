@@ -0,0 +1,176 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Test;
+
+public class KeySetTest {
+    private Random random = new Random(1);
+
+    @Test
+    public void testSparse() {
+        KeySet.Builder builder = new KeySet.Builder();
+        builder.add(30000000);
+        builder.add(5);
+        builder.add(70000);
+        KeySet keySet = builder.build();
+        assertEquals(3, keySet.cardinality());
+        assertEquals(30000001, keySet.length());
+        assertTrue(keySet.get(5));
+        assertTrue(keySet.get(70000));
+        assertTrue(keySet.get(30000000));
+        assertFalse(keySet.get(6));
+        assertFalse(keySet.get(40000000));
+        assertTrue(keySet.ramBytesUsed() < 8000);
+        assertEquals(5, keySet.nextKey(0));
+        assertEquals(70000, keySet.nextKey(6));
+        assertEquals(30000000, keySet.nextKey(70001));
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, keySet.nextKey(30000001));
+        assertEquals("KeySet(5, 70000, 30000000)", keySet.toString());
+    }
+
+    @Test
+    public void testSameAsFixedBitSet() {
+        for (int i = 0; i < 20; i++) {
+            FixedBitSet a = randomBitSet();
+            FixedBitSet b = randomBitSet();
+            KeySet keysA = KeySet.of(a);
+            KeySet keysB = KeySet.of(b);
+            assertEquals(a.cardinality(), keysA.cardinality());
+            assertEquals(a, keysA.toFixedBitSet());
+
+            FixedBitSet expected = grow(a, b.length());
+            expected.and(b);
+            assertSameKeys(expected, keysA.and(keysB));
+            expected = grow(a, b.length());
+            expected.or(b);
+            assertSameKeys(expected, keysA.or(keysB));
+            expected = grow(a, b.length());
+            expected.andNot(b);
+            assertSameKeys(expected, keysA.andNot(keysB));
+        }
+    }
+
+    @Test
+    public void testEqualsWhateverTheOrigin() {
+        FixedBitSet bitSet = randomBitSet();
+        KeySet keySet = KeySet.of(bitSet);
+        KeySet.Builder builder = new KeySet.Builder();
+        for (int key = bitSet.length() - 1; key >= 0; key--)
+            if (bitSet.get(key))
+                builder.add(key);
+        assertEquals(keySet, builder.build());
+        assertEquals(keySet, keySet.or(KeySet.empty()));
+        assertEquals(keySet, keySet.andNot(keySet).or(keySet));
+        assertNotEquals(keySet, keySet.andNot(KeySet.range(0, keySet.nextKey(0) + 1)));
+        assertEquals(KeySet.empty(), keySet.andNot(keySet));
+        assertEquals(keySet.hashCode(), builder.build().hashCode());
+    }
+
+    @Test
+    public void testHashCodeOfContents() {
+        assertNotEquals(KeySet.range(1, 2).hashCode(), KeySet.range(2, 3).hashCode());
+        assertNotEquals(KeySet.range(0, 5000).hashCode(), KeySet.range(1, 5001).hashCode());
+        assertEquals(KeySet.range(1, 5001).hashCode(), KeySet.range(1, 5001).hashCode());
+    }
+
+    @Test
+    public void testBuilderAddAll() {
+        KeySet.Builder a = new KeySet.Builder();
+        a.add(1);
+        a.add(200000);
+        KeySet.Builder b = new KeySet.Builder();
+        b.add(2);
+        b.addAll(a);
+        KeySet keySet = b.build();
+        assertEquals(3, keySet.cardinality());
+        assertTrue(keySet.get(1));
+        assertTrue(keySet.get(2));
+        assertTrue(keySet.get(200000));
+        assertEquals(2, a.build().cardinality());
+    }
+
+    @Test
+    public void testRange() {
+        KeySet keySet = KeySet.range(3, 70000);
+        assertEquals(69997, keySet.cardinality());
+        assertEquals(70000, keySet.length());
+        assertFalse(keySet.get(2));
+        assertTrue(keySet.get(3));
+        assertTrue(keySet.get(69999));
+        assertFalse(keySet.get(70000));
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        KeySet keySet = KeySet.of(randomBitSet());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        keySet.writeTo(new DataOutputStream(bytes));
+        KeySet read = KeySet.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(keySet, read);
+        assertEquals(keySet.length(), read.length());
+
+        KeySet.Builder builder = new KeySet.Builder();
+        builder.add(20000000);
+        bytes = new ByteArrayOutputStream();
+        builder.build().writeTo(new DataOutputStream(bytes));
+        assertEquals(4 + 4 + 2 + 4 + 2, bytes.size());
+    }
+
+    private FixedBitSet randomBitSet() {
+        FixedBitSet bitSet = new FixedBitSet(1 + this.random.nextInt(300000));
+        // dense and sparse chunks
+        int keys = this.random.nextBoolean() ? bitSet.length() / 2 : this.random.nextInt(100);
+        for (int i = 0; i < keys; i++)
+            bitSet.set(this.random.nextInt(bitSet.length()));
+        return bitSet;
+    }
+
+    private static FixedBitSet grow(FixedBitSet bitSet, int length) {
+        FixedBitSet grown = new FixedBitSet(Math.max(bitSet.length(), length));
+        grown.or(bitSet);
+        return grown;
+    }
+
+    private static void assertSameKeys(FixedBitSet expected, KeySet keySet) {
+        assertEquals(expected.cardinality(), keySet.cardinality());
+        for (int key = expected.nextSetBit(0); key != DocIdSetIterator.NO_MORE_DOCS; key = key + 1 < expected.length() ? expected.nextSetBit(key + 1) : DocIdSetIterator.NO_MORE_DOCS)
+            assertTrue(keySet.get(key));
+    }
+}
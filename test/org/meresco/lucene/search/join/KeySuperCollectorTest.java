@@ -0,0 +1,103 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KeySuperCollectorTest {
+
+    @Test
+    public void testSharedKeysEqualMergedKeys() throws Exception {
+        Random random = new Random(1);
+        int[][] keys = new int[4][50000];
+        for (int[] slice : keys)
+            for (int i = 0; i < slice.length; i++)
+                slice[i] = 1 + random.nextInt(200000);
+        KeySet merged = collect(new KeySuperCollector("key"), keys);
+        KeySet shared = collect(new KeySuperCollector("key", 200000), keys);
+        assertEquals(merged, shared);
+        assertTrue(shared.get(keys[3][0]));
+    }
+
+    @Test
+    public void testSharedKeysOnlyForLargeResults() throws Exception {
+        KeySuperCollector collector = new KeySuperCollector("key", 30000000);
+        KeySet keySet = collect(collector, new int[][] {{1, 70000, 29000000}, {5}});
+        assertNull(collector.sharedKeys());
+        assertEquals(4, keySet.cardinality());
+
+        int[][] keys = new int[2][1000];
+        for (int i = 0; i < 1000; i++) {
+            keys[0][i] = 1 + 30000 * i;
+            keys[1][i] = 2 + 30000 * i;
+        }
+        collector = new KeySuperCollector("key", 30000000);
+        keySet = collect(collector, keys);
+        assertNotNull(collector.sharedKeys());
+        assertEquals(collect(new KeySuperCollector("key"), keys), keySet);
+        assertEquals(2000, keySet.cardinality());
+    }
+
+    @Test
+    public void testKeysBeyondKeySpace() throws Exception {
+        int[][] keys = new int[][] {{1, 10, 100000}, {10, 99, 100}};
+        KeySet keySet = collect(new KeySuperCollector("key", 99), keys);
+        assertEquals(5, keySet.cardinality());
+        assertTrue(keySet.get(99));
+        assertTrue(keySet.get(100));
+        assertTrue(keySet.get(100000));
+    }
+
+    private KeySet collect(KeySuperCollector collector, int[][] keys) throws Exception {
+        List<KeyCollector> subs = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++)
+            subs.add(collector.subCollector());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            KeyCollector sub = subs.get(i);
+            int[] slice = keys[i];
+            Thread thread = new Thread(() -> {
+                for (int key : slice)
+                    sub.add(key);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        collector.complete();
+        return collector.getCollectedKeys();
+    }
+}
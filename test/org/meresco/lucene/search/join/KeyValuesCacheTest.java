@@ -0,0 +1,152 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+package org.meresco.lucene.search.join;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.json.JsonObject;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.meresco.lucene.SeecrTestCase;
+import org.meresco.lucene.analysis.MerescoStandardAnalyzer;
+
+public class KeyValuesCacheTest extends SeecrTestCase {
+    private IndexWriter writer;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        IndexWriterConfig writerConfig = new IndexWriterConfig(new MerescoStandardAnalyzer());
+        writerConfig.setMergePolicy(NoMergePolicy.INSTANCE);
+        this.writer = new IndexWriter(new SimpleFSDirectory(this.tmpDir.resolve("index")), writerConfig);
+        addDocuments(0, 1000);
+        this.reader = DirectoryReader.open(this.writer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.reader.close();
+        this.writer.close();
+        super.tearDown();
+    }
+
+    private void addDocuments(int start, int count) throws Exception {
+        for (int i = start; i < start + count; i++) {
+            Document doc = new Document();
+            if (i % 10 != 0)
+                doc.add(new NumericDocValuesField("key", i * 3));
+            this.writer.addDocument(doc);
+        }
+        this.writer.commit();
+    }
+
+    @Test
+    public void testPackedValues() throws Exception {
+        KeyValuesCache cache = new KeyValuesCache(1 << 20);
+        LeafReader leaf = this.reader.leaves().get(0).reader();
+        KeyValues values = cache.values(leaf, "key", true);
+        assertEquals(1000, values.size());
+        assertEquals(0, values.get(0));
+        assertEquals(3, values.get(1));
+        assertEquals(2997, values.get(999));
+        assertTrue(values.ramBytesUsed() < 1000 * 4);
+        assertNull(cache.values(leaf, "other", true));
+
+        assertSame(values, cache.values(leaf, "key", true));
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(values.ramBytesUsed(), stats.getInt("bytesUsed"));
+        JsonObject key = stats.getJsonObject("keyNames").getJsonObject("key");
+        assertEquals(1, key.getInt("entries"));
+        assertEquals(1, key.getInt("misses"));
+        assertEquals(1, key.getInt("hits"));
+    }
+
+    @Test
+    public void testWarmNewSegments() throws Exception {
+        KeyValuesCache cache = new KeyValuesCache(1 << 20);
+        cache.warm(this.reader);
+        assertEquals(0, cache.statsAsJson().getInt("entries"));
+        cache.values(this.reader.leaves().get(0).reader(), "key", true);
+
+        addDocuments(1000, 500);
+        DirectoryReader newReader = DirectoryReader.openIfChanged(this.reader);
+        this.reader.close();
+        this.reader = newReader;
+        cache.warm(this.reader);
+        assertEquals(2, cache.statsAsJson().getInt("entries"));
+        KeyValues values = cache.values(this.reader.leaves().get(1).reader(), "key", true);
+        assertEquals(3003, values.get(1));
+        JsonObject key = cache.statsAsJson().getJsonObject("keyNames").getJsonObject("key");
+        assertEquals(1, key.getInt("misses"));
+        assertEquals(1, key.getInt("hits"));
+    }
+
+    @Test
+    public void testEvictWithinBudget() throws Exception {
+        addDocuments(1000, 1000);
+        DirectoryReader newReader = DirectoryReader.openIfChanged(this.reader);
+        this.reader.close();
+        this.reader = newReader;
+        KeyValuesCache cache = new KeyValuesCache(1 << 20);
+        KeyValues first = cache.values(this.reader.leaves().get(0).reader(), "key", true);
+        cache.setMaxBytes(first.ramBytesUsed() + 100);
+        KeyValues second = cache.values(this.reader.leaves().get(1).reader(), "key", true);
+        assertEquals(3003, second.get(1));
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(second.ramBytesUsed(), stats.getInt("bytesUsed"));
+        assertEquals(1, stats.getJsonObject("keyNames").getJsonObject("key").getInt("evictions"));
+        assertEquals(3, first.get(1));
+    }
+
+    @Test
+    public void testClosedSegmentsRemoved() throws Exception {
+        KeyValuesCache cache = new KeyValuesCache(1 << 20);
+        cache.values(this.reader.leaves().get(0).reader(), "key", true);
+        this.writer.deleteAll();
+        this.writer.commit();
+        DirectoryReader newReader = DirectoryReader.openIfChanged(this.reader);
+        this.reader.close();
+        this.reader = newReader;
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(0, stats.getInt("entries"));
+        assertEquals(0, stats.getInt("bytesUsed"));
+    }
+}
@@ -0,0 +1,88 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.meresco.lucene.search.join.ScoreSuperCollector.Aggregate;
+
+public class ScoreSuperCollectorTest {
+
+    @Test
+    public void testAggregate() {
+        SegmentScores max = build(Aggregate.MAX, 3, 1.0f, 1, 0.5f, 3, 2.0f);
+        SegmentScores sum = build(Aggregate.SUM, 3, 1.0f, 1, 0.5f, 3, 2.0f);
+        assertEquals(2, max.size());
+        assertEquals(3, max.maxKey());
+        assertEquals(2.0f, compose(Aggregate.MAX, max).score(3), 0);
+        assertEquals(3.0f, compose(Aggregate.SUM, sum).score(3), 0);
+        assertEquals(0.5f, compose(Aggregate.SUM, sum).score(1), 0);
+    }
+
+    @Test
+    public void testComposeSegments() {
+        ScoreSuperCollector collector = compose(Aggregate.SUM, build(Aggregate.SUM, 1, 1.0f, 5, 2.0f), null, build(Aggregate.SUM, 5, 3.0f, 100, 4.0f));
+        assertEquals(1.0f, collector.score(1), 0);
+        assertEquals(5.0f, collector.score(5), 0);
+        assertEquals(4.0f, collector.score(100), 0);
+        assertEquals(0, collector.score(2), 0);
+        assertEquals(0, collector.score(1000), 0);
+
+        SegmentScores merged = SegmentScores.merge(build(Aggregate.MAX, 1, 1.0f, 5, 2.0f), build(Aggregate.MAX, 5, 3.0f, 100, 4.0f), Aggregate.MAX);
+        assertEquals(3, merged.size());
+        assertEquals(3.0f, compose(Aggregate.MAX, merged).score(5), 0);
+    }
+
+    @Test
+    public void testBuilderAggregatesWhenFull() {
+        SegmentScores.Builder builder = new SegmentScores.Builder(Aggregate.SUM);
+        for (int i = 0; i < 1000; i++)
+            builder.add(1000 - i % 3, 0.25f);
+        builder.add(7, 1.0f);
+        SegmentScores scores = builder.build();
+        assertEquals(4, scores.size());
+        assertEquals(1000, scores.maxKey());
+        ScoreSuperCollector collector = compose(Aggregate.SUM, scores);
+        assertEquals(83.5f, collector.score(1000), 0);
+        assertEquals(83.25f, collector.score(999), 0);
+        assertEquals(83.25f, collector.score(998), 0);
+        assertEquals(1.0f, collector.score(7), 0);
+    }
+
+    private SegmentScores build(Aggregate aggregate, Object... keysAndScores) {
+        SegmentScores.Builder builder = new SegmentScores.Builder(aggregate);
+        for (int i = 0; i < keysAndScores.length; i += 2)
+            builder.add((Integer) keysAndScores[i], (Float) keysAndScores[i + 1]);
+        return builder.build();
+    }
+
+    private ScoreSuperCollector compose(Aggregate aggregate, SegmentScores... segments) {
+        ScoreSuperCollector collector = new ScoreSuperCollector("key", aggregate, segments);
+        collector.complete();
+        return collector;
+    }
+}
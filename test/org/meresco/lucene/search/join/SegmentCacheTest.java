@@ -0,0 +1,111 @@
+/* begin license *
+ *
+ * "Meresco Lucene" is a set of components and tools to integrate Lucene (based on PyLucene) into Meresco
+ *
+ * Copyright (C) 2026 Seecr (Seek You Too B.V.) https://seecr.nl
+ *
+ * This file is part of "Meresco Lucene"
+ *
+ * "Meresco Lucene" is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * "Meresco Lucene" is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with "Meresco Lucene"; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * end license */
+
+
+package org.meresco.lucene.search.join;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import javax.json.JsonObject;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.Accountable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.meresco.lucene.SeecrTestCase;
+import org.meresco.lucene.analysis.MerescoStandardAnalyzer;
+
+public class SegmentCacheTest extends SeecrTestCase {
+    private IndexWriter writer;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        IndexWriterConfig writerConfig = new IndexWriterConfig(new MerescoStandardAnalyzer());
+        writerConfig.setMergePolicy(NoMergePolicy.INSTANCE);
+        this.writer = new IndexWriter(new SimpleFSDirectory(this.tmpDir.resolve("index")), writerConfig);
+        for (int i = 0; i < 2; i++) {
+            Document doc = new Document();
+            doc.add(new NumericDocValuesField("key", i));
+            this.writer.addDocument(doc);
+            this.writer.commit();
+        }
+        this.reader = DirectoryReader.open(this.writer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.reader.close();
+        this.writer.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void testOversizedValueNotCached() throws Exception {
+        SegmentCache<Accountable> cache = new SegmentCache<>(1000);
+        Object queryKey = SegmentCache.queryKey(new MatchAllDocsQuery());
+        LeafReader first = this.reader.leaves().get(0).reader();
+        LeafReader second = this.reader.leaves().get(1).reader();
+        Accountable small = () -> 400;
+        cache.put(first, "key", queryKey, small);
+        cache.put(second, "key", queryKey, () -> 1001);
+
+        assertSame(small, cache.get(first, "key", queryKey));
+        assertNull(cache.get(second, "key", queryKey));
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(400, stats.getInt("bytesUsed"));
+        assertEquals(0, stats.getInt("evictions"));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        SegmentCache<Accountable> cache = new SegmentCache<>(1000);
+        Object queryKey = SegmentCache.queryKey(new MatchAllDocsQuery());
+        LeafReader first = this.reader.leaves().get(0).reader();
+        LeafReader second = this.reader.leaves().get(1).reader();
+        Accountable value = () -> 600;
+        cache.put(first, "key", queryKey, () -> 600);
+        cache.put(second, "key", queryKey, value);
+
+        assertNull(cache.get(first, "key", queryKey));
+        assertSame(value, cache.get(second, "key", queryKey));
+        JsonObject stats = cache.statsAsJson();
+        assertEquals(1, stats.getInt("entries"));
+        assertEquals(600, stats.getInt("bytesUsed"));
+        assertEquals(1, stats.getInt("evictions"));
+    }
+}
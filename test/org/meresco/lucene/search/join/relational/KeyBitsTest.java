@@ -29,6 +29,7 @@ import static org.junit.Assert.assertEquals;
 import org.apache.lucene.util.FixedBitSet;
 import org.junit.Test;
 import org.meresco.lucene.SeecrTestCase;
+import org.meresco.lucene.search.join.KeySet;
 
 
 public class KeyBitsTest extends SeecrTestCase {
@@ -37,16 +38,16 @@ public class KeyBitsTest extends SeecrTestCase {
         FixedBitSet b1 = new FixedBitSet(4);
         b1.set(0);
         b1.set(1);
-        KeyBits r1 = new KeyBits(b1);
+        KeyBits r1 = new KeyBits(KeySet.of(b1));
 
         FixedBitSet b2 = new FixedBitSet(5);
         b2.set(1);
         b2.set(4);
-        KeyBits r2 = new KeyBits(b2);
+        KeyBits r2 = new KeyBits(KeySet.of(b2));
 
         r2.intersect(r1);
 
-        b2 = r2.bitset;
+        b2 = r2.keySet.toFixedBitSet();
         assertEquals(true, b2.get(1));
         assertEquals(false, b2.get(0));
         assertEquals(false, b2.get(4));
@@ -57,16 +58,16 @@ public class KeyBitsTest extends SeecrTestCase {
         FixedBitSet b1 = new FixedBitSet(4);
         b1.set(0);
         b1.set(1);
-        KeyBits r1 = new KeyBits(b1);
+        KeyBits r1 = new KeyBits(KeySet.of(b1));
 
         FixedBitSet b2 = new FixedBitSet(5);
         b2.set(1);
         b2.set(4);
-        KeyBits r2 = new KeyBits(b2);
+        KeyBits r2 = new KeyBits(KeySet.of(b2));
 
         r1.intersect(r2);
 
-        b1 = r1.bitset;
+        b1 = r1.keySet.toFixedBitSet();
         assertEquals(true, b1.get(1));
         assertEquals(false, b1.get(0));
         assertEquals(false, b1.get(4));
@@ -77,17 +78,17 @@ public class KeyBitsTest extends SeecrTestCase {
         FixedBitSet b1 = new FixedBitSet(4);
         b1.set(0);
         b1.set(1);
-        KeyBits r1 = new KeyBits(b1);
+        KeyBits r1 = new KeyBits(KeySet.of(b1));
         r1.inverted = true;
 
         FixedBitSet b2 = new FixedBitSet(5);
         b2.set(1);
         b2.set(4);
-        KeyBits r2 = new KeyBits(b2);
+        KeyBits r2 = new KeyBits(KeySet.of(b2));
 
         r2.intersect(r1);
 
-        b2 = r2.bitset;
+        b2 = r2.keySet.toFixedBitSet();
         assertEquals(false, b2.get(1));
         assertEquals(false, b2.get(0));
         assertEquals(true, b2.get(4));
@@ -98,17 +99,17 @@ public class KeyBitsTest extends SeecrTestCase {
         FixedBitSet b1 = new FixedBitSet(4);
         b1.set(0);
         b1.set(1);
-        KeyBits r1 = new KeyBits(b1);
+        KeyBits r1 = new KeyBits(KeySet.of(b1));
         r1.inverted = true;
 
         FixedBitSet b2 = new FixedBitSet(5);
         b2.set(1);
         b2.set(4);
-        KeyBits r2 = new KeyBits(b2);
+        KeyBits r2 = new KeyBits(KeySet.of(b2));
 
         r1.intersect(r2);
 
-        b1 = r1.bitset;
+        b1 = r1.keySet.toFixedBitSet();
         assertEquals(false, b1.get(1));
         assertEquals(false, b1.get(0));
         assertEquals(true, b1.get(4));
@@ -119,18 +120,18 @@ public class KeyBitsTest extends SeecrTestCase {
         FixedBitSet b1 = new FixedBitSet(4);
         b1.set(0);
         b1.set(1);
-        KeyBits r1 = new KeyBits(b1);
+        KeyBits r1 = new KeyBits(KeySet.of(b1));
         r1.inverted = true;
 
         FixedBitSet b2 = new FixedBitSet(5);
         b2.set(1);
         b2.set(4);
-        KeyBits r2 = new KeyBits(b2);
+        KeyBits r2 = new KeyBits(KeySet.of(b2));
         r2.inverted = true;
 
         r1.intersect(r2);
 
-        b1 = r1.bitset;
+        b1 = r1.keySet.toFixedBitSet();
 
         assertEquals(false, b1.get(0));
         assertEquals(false, b1.get(1));
@@ -91,7 +91,7 @@ public class RelationalQueryTest extends SeecrTestCase {
             new RelationalLuceneQuery("coreB", "B", new TermQuery(new Term("N", "true"))  /* here all those args*/ ),
             new RelationalLuceneQuery("coreA", "A", new TermQuery(new Term("M", "true"))));
         KeyBits result = root.collectKeys(this.lucenes);
-        assertEquals(4, result.bitset.cardinality());
+        assertEquals(4, result.keySet.cardinality());
         LuceneResponse response = responseForResult(result, luceneA, "A");
         LuceneTest.compareHits(response, "A-M", "A-MU", "A-MQ", "A-MQU");
     }
@@ -580,7 +580,7 @@ public class RelationalQueryTest extends SeecrTestCase {
 
     private LuceneResponse responseForResult(KeyBits result, Lucene lucene, String keyName) {
         try {
-            Query keyFilter = new KeyFilter(result.bitset, keyName);
+            Query keyFilter = new KeyFilter(result.keySet, keyName);
             if (result.inverted) {
                 BooleanQuery.Builder builder = new BooleanQuery.Builder();
                 builder.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);